@@ -0,0 +1,36 @@
+package peernet.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Runs the benchmarks selected on the command line, which takes the usual JMH
+ * options. Unless specified otherwise with <code>-rf</code> and
+ * <code>-rff</code>, results are written as JSON to
+ * <code>jmh-result.json</code>, so that runs can be compared by tools.
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.shouldHelp()) {
+            cmd.showHelp();
+            return;
+        }
+
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+        if (!cmd.getResultFormat().hasValue())
+            options.resultFormat(ResultFormatType.JSON);
+        if (!cmd.getResult().hasValue())
+            options.result("jmh-result.json");
+
+        Runner runner = new Runner(options.build());
+        if (cmd.shouldList())
+            runner.list();
+        else
+            runner.run();
+    }
+}
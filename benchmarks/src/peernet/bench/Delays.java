@@ -0,0 +1,44 @@
+package peernet.bench;
+
+import java.util.Random;
+
+
+/**
+ * Delay distributions of the benchmarks, drawn in advance so that random
+ * number generation is not part of the measurements.
+ */
+enum Delays {
+    /** Uniform in [1, 100], like {@link peernet.transport.UniformRandomTransport} */
+    UNIFORM {
+        long draw(Random r) {
+            return 1 + r.nextInt(100);
+        }
+    },
+
+    /** Exponential with mean 50 */
+    EXPONENTIAL {
+        long draw(Random r) {
+            return 1 + (long) (-50 * Math.log(1 - r.nextDouble()));
+        }
+    },
+
+    /** 90% message delays in [1, 10], and 10% timeouts in [1000, 2000) */
+    BIMODAL {
+        long draw(Random r) {
+            return r.nextInt(10) < 9 ? 1 + r.nextInt(10) : 1000 + r.nextInt(1000);
+        }
+    };
+
+    abstract long draw(Random r);
+
+    /**
+     * Returns <code>n</code> delays, drawn with a fixed seed.
+     */
+    long[] sample(int n) {
+        Random r = new Random(42);
+        long[] delays = new long[n];
+        for (int i = 0; i < n; i++)
+            delays[i] = draw(r);
+        return delays;
+    }
+}
@@ -0,0 +1,86 @@
+package peernet.bench;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import peernet.Simulator;
+import peernet.core.Engine;
+
+
+/**
+ * End-to-end dispatch by {@link peernet.core.EngineSim}: each operation runs
+ * a complete experiment of 100 time units, in which every node runs a
+ * reference protocol with a period of 10, over a
+ * {@link peernet.transport.UniformRandomTransport} with delays in [1, 10].
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EngineSimBenchmark {
+    @Param({"ping", "gossip"})
+    public String protocol;
+
+    @Param({"1000", "10000"})
+    public int size;
+
+    @Param({"peernet.core.Heap", "peernet.core.LadderQueue"})
+    public String queue;
+
+    @Param({"false", "true"})
+    public boolean timingWheel;
+
+    private Properties config;
+
+
+    @Setup
+    public void setup() {
+        config = Experiments.config(size);
+        config.setProperty("engine.mode", "sim");
+        config.setProperty("engine.duration", "100");
+        config.setProperty(Simulator.PAR_SIM_HEAP, queue);
+        if (timingWheel)
+            config.setProperty(Simulator.PAR_SIM_WHEEL, "");
+        String prefix = "protocol." + protocol;
+        config.setProperty(prefix, protocol.equals("ping") ? PingProtocol.class.getName() : GossipProtocol.class.getName());
+        config.setProperty(prefix + ".peer", "peernet.core.Peer");
+        config.setProperty(prefix + ".step", "10");
+        config.setProperty(prefix + ".randstart", "");
+        config.setProperty("sim.transport", "peernet.transport.UniformRandomTransport");
+        config.setProperty("sim.transport.mindelay", "1");
+        config.setProperty("sim.transport.maxdelay", "10");
+    }
+
+
+    /**
+     * Runs an experiment.
+     *
+     * @return the number of events left in the queue
+     */
+    @Benchmark
+    public long experiment() {
+        Experiments.enter(config);
+        try {
+            Engine engine = Engine.instance();
+            engine.startExperiment();
+            return engine.pendingEvents();
+        }
+        finally {
+            Experiments.exit();
+        }
+    }
+}
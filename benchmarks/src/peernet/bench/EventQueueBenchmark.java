@@ -0,0 +1,106 @@
+package peernet.bench;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import peernet.config.Configuration;
+import peernet.core.CalendarQueue;
+import peernet.core.DaryHeap;
+import peernet.core.Event;
+import peernet.core.EventQueue;
+import peernet.core.Heap;
+import peernet.core.LadderQueue;
+import peernet.core.RadixHeap;
+
+
+/**
+ * The classic hold model: the queue holds a constant number of events, and
+ * each operation removes the first event and adds a new one, some delay after
+ * it. Keys are built as by the SIM engine, with 8 random bits.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EventQueueBenchmark {
+    private static final int RBITS = 8;
+
+    private static final int SAMPLES = 1 << 16;
+
+    @Param({"Heap", "DaryHeap", "CalendarQueue", "LadderQueue", "RadixHeap"})
+    public String queue;
+
+    @Param({"UNIFORM", "EXPONENTIAL", "BIMODAL"})
+    public Delays delays;
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    private EventQueue q;
+
+    private long[] sample;
+
+    private int next = 0;
+
+
+    @Setup
+    public void setup() {
+        // Queues read their optional parameters from the configuration
+        Configuration.setLocalConfig(new Properties());
+        q = create(queue);
+        Configuration.setLocalConfig(null);
+        sample = delays.sample(SAMPLES);
+        for (int i = 0; i < size; i++)
+            q.add(key(0), null, null, (byte) 0, null);
+    }
+
+
+    private static EventQueue create(String queue) {
+        switch (queue) {
+            case "Heap":
+                return new Heap();
+            case "DaryHeap":
+                return new DaryHeap();
+            case "CalendarQueue":
+                return new CalendarQueue();
+            case "LadderQueue":
+                return new LadderQueue();
+            case "RadixHeap":
+                return new RadixHeap(RBITS);
+            default:
+                throw new IllegalArgumentException(queue);
+        }
+    }
+
+
+    /**
+     * Returns the key of an event scheduled after <code>time</code>.
+     */
+    private long key(long time) {
+        int i = next++ & (SAMPLES - 1);
+        return (time + sample[i]) << RBITS | (i * 0x9E3779B1 >>> 24);
+    }
+
+
+    @Benchmark
+    public long hold() {
+        Event ev = q.removeFirst();
+        long time = ev.time >>> RBITS;
+        q.add(key(time), null, null, (byte) 0, null);
+        return time;
+    }
+}
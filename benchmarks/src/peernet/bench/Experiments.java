@@ -0,0 +1,49 @@
+package peernet.bench;
+
+import java.util.Properties;
+
+import peernet.config.Configuration;
+import peernet.core.SimulationContext;
+
+
+/**
+ * Sets up experiments for the benchmarks. Each experiment runs in a
+ * {@link SimulationContext} of its own, bound to the benchmark thread, as with
+ * {@link peernet.rangesim.RangeSimulator}, so that a JVM can run many of them.
+ */
+final class Experiments {
+    private Experiments() {
+    }
+
+
+    /**
+     * Returns the parameters common to all benchmarks: a network of
+     * <code>size</code> nodes, a fixed random seed, and no periodic logging.
+     */
+    static Properties config(int size) {
+        Properties p = new Properties();
+        p.setProperty("random.seed", "1");
+        p.setProperty("network.size", Integer.toString(size));
+        p.setProperty("engine.logtime", Long.toString(Long.MAX_VALUE));
+        return p;
+    }
+
+
+    /**
+     * Binds a new context, created from <code>config</code>, to the calling
+     * thread.
+     */
+    static void enter(Properties config) {
+        Configuration.setLocalConfig(config);
+        SimulationContext.bind(new SimulationContext());
+    }
+
+
+    /**
+     * Unbinds the context of the calling thread.
+     */
+    static void exit() {
+        SimulationContext.bind(null);
+        Configuration.setLocalConfig(null);
+    }
+}
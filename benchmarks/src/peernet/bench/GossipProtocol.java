@@ -0,0 +1,39 @@
+package peernet.bench;
+
+import peernet.core.CommonState;
+import peernet.core.Network;
+import peernet.core.Node;
+import peernet.core.Protocol;
+import peernet.transport.Address;
+import peernet.transport.AddressSim;
+
+
+/**
+ * Reference protocol: push gossip of the largest node ID. At each cycle, a
+ * node sends the largest value it knows to a random node.
+ */
+public class GossipProtocol extends Protocol {
+    public long value = -1;
+
+
+    public GossipProtocol(String prefix) {
+        super(prefix);
+    }
+
+
+    @Override
+    public void nextCycle(int schedId) {
+        if (value < 0)
+            value = myNode().getID();
+        Node dest = Network.get(CommonState.r.nextInt(Network.size()));
+        send(new AddressSim(dest), myPid(), Long.valueOf(value));
+    }
+
+
+    @Override
+    public void processEvent(Address src, Object event) {
+        long received = (Long) event;
+        if (received > value)
+            value = received;
+    }
+}
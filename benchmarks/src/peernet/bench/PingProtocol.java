@@ -0,0 +1,63 @@
+package peernet.bench;
+
+import peernet.core.CommonState;
+import peernet.core.Network;
+import peernet.core.Node;
+import peernet.core.Protocol;
+import peernet.core.Timer;
+import peernet.transport.Address;
+import peernet.transport.AddressSim;
+
+
+/**
+ * Reference protocol: at each cycle, sends a ping to a random node, which
+ * answers with a pong, and sets a timer that expires before most pongs arrive.
+ * The ping carries its timer, and the pong brings it back to be cancelled, so
+ * the engine also has to discard the timers of the pongs that arrive in time.
+ */
+public class PingProtocol extends Protocol {
+    private static final String TIMEOUT = "timeout";
+
+    public long pings, pongs, timeouts;
+
+
+    private static final class Message {
+        final Timer timer;
+        final boolean pong;
+
+        Message(Timer timer, boolean pong) {
+            this.timer = timer;
+            this.pong = pong;
+        }
+    }
+
+
+    public PingProtocol(String prefix) {
+        super(prefix);
+    }
+
+
+    @Override
+    public void nextCycle(int schedId) {
+        Node dest = Network.get(CommonState.r.nextInt(Network.size()));
+        Timer timer = scheduleTimer(5, TIMEOUT);
+        send(new AddressSim(dest), myPid(), new Message(timer, false));
+    }
+
+
+    @Override
+    public void processEvent(Address src, Object event) {
+        if (event == TIMEOUT)
+            timeouts++;
+        else {
+            Message message = (Message) event;
+            if (message.pong) {
+                pongs++;
+                message.timer.cancel();
+            } else {
+                pings++;
+                send(src, myPid(), new Message(message.timer, true));
+            }
+        }
+    }
+}
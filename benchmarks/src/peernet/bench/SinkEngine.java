@@ -0,0 +1,21 @@
+package peernet.bench;
+
+import peernet.core.EngineSim;
+import peernet.core.Node;
+import peernet.transport.Address;
+
+
+/**
+ * SIM engine that drops all events, so that benchmarks of send paths do not
+ * measure the event queue.
+ */
+public class SinkEngine extends EngineSim {
+    /** Sum of the times of the events, so that they are not optimized away */
+    public long sink = 0;
+
+
+    @Override
+    public void addEventAt(long time, Address src, Node node, int pid, Object event) {
+        sink += time;
+    }
+}
@@ -0,0 +1,107 @@
+package peernet.bench;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import peernet.core.CommonState;
+import peernet.core.Network;
+import peernet.core.Node;
+import peernet.transport.Address;
+import peernet.transport.AddressSim;
+import peernet.transport.RouterNetwork;
+import peernet.transport.Transport;
+import peernet.transport.TransportEmu;
+import peernet.transport.UniformRandomTransport;
+
+
+/**
+ * The send paths of the SIM transports, from {@link Transport#send} to the
+ * engine, which drops the events (see {@link SinkEngine}).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TransportBenchmark {
+    private static final String PREFIX = "transport.bench";
+
+    private static final int ROUTERS = 100;
+
+    /** UniformRandomTransport, or TransportEmu over a router latency matrix */
+    @Param({"uniform", "router"})
+    public String transport;
+
+    /** Whether delays are drawn from per-node substreams */
+    @Param({"false", "true"})
+    public boolean substreams;
+
+    private Transport t;
+
+    private Node[] nodes;
+
+    private Address[] addresses;
+
+    private int next = 0;
+
+
+    @Setup
+    public void setup() {
+        Properties config = Experiments.config(1000);
+        config.setProperty("engine.mode", "simcustom");
+        config.setProperty("engine.simengine", SinkEngine.class.getName());
+        config.setProperty(PREFIX + ".mindelay", "1");
+        config.setProperty(PREFIX + ".maxdelay", "100");
+        if (substreams)
+            config.setProperty(CommonState.PAR_SUBSTREAMS, "");
+        Experiments.enter(config);
+
+        Network.reset();
+        nodes = new Node[Network.size()];
+        addresses = new Address[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = Network.get(i);
+            addresses[i] = new AddressSim(nodes[i]);
+        }
+
+        if (transport.equals("uniform"))
+            t = new UniformRandomTransport(PREFIX);
+        else {
+            RouterNetwork.reset(ROUTERS, true);
+            for (int i = 0; i < ROUTERS; i++)
+                for (int j = 0; j < i; j++)
+                    RouterNetwork.setLatency(i, j, 1 + CommonState.r.nextInt(100));
+            t = new TransportEmu(PREFIX);
+        }
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        Experiments.exit();
+    }
+
+
+    @Benchmark
+    public void send() {
+        int i = next++;
+        int n = nodes.length;
+        t.send(nodes[i % n], addresses[(i * 7919) % n], 0, Boolean.TRUE);
+        if (next == Integer.MAX_VALUE / 7919)
+            next = 0;
+    }
+}
@@ -38,8 +38,9 @@ import peernet.dynamics.BootstrapServer;
  * simulator. The known simulators at this moment, along with the way to detect
  * them are the following:
  * <ul>
- * <li>{@link CDSimulator}: if {@link CDSimulator#isConfigurationCycleDriven}
- * returns true</li>
+ * <li>{@link peernet.core.EngineCD}: cycle-driven simulation, if
+ * <code>engine.mode</code> is <code>simcustom</code> and
+ * <code>engine.simengine</code> is <code>peernet.core.EngineCD</code></li>
  * <li>{@link Engine}: if {@link Engine#isConfigurationEventDriven}
  * returns true</li>
  * </ul>
@@ -47,6 +48,9 @@ import peernet.dynamics.BootstrapServer;
  * is, if more than one return true, then the first will be taken. Note that
  * this class checks only for these clues and does not check if the
  * configuration is consistent or valid.
+ * <p>
+ * To run several experiments concurrently in the same JVM, e.g., one per
+ * random seed, see {@link peernet.rangesim.RangeSimulator}.
  * 
  * @see #main
  */
@@ -86,11 +90,42 @@ public class Simulator
   /**
    * If present, this parameter defines the data structure that is used for the Event Queue. The
    * default is the Peersim Heap. the value of the parameter must be the complete name of the 
-   * class to be used to maintain the simulator events.
+   * class to be used to maintain the simulator events. Besides {@link peernet.core.Heap}, the
+   * following implementations are available:
+   * <ul>
+   * <li>{@link peernet.core.CalendarQueue}: O(1) amortized calendar queue</li>
+   * <li>{@link peernet.core.LadderQueue}: O(1) amortized ladder queue, robust to skewed delays</li>
+   * <li>{@link peernet.core.RadixHeap}: monotone radix heap, SIM engine only</li>
+   * <li>{@link peernet.core.DaryHeap}: cache-aware d-ary heap</li>
+   * </ul>
    */
   
   public static final String PAR_SIM_HEAP = "simulation.heap";
 
+  /**
+   * If present, the SIM engine keeps the periodic {@link peernet.core.Schedule}
+   * events of protocols in a {@link peernet.core.TimingWheel} instead of the
+   * event queue defined by {@value #PAR_SIM_HEAP}, which then only holds
+   * messages and controls. Re-arming a protocol for its next cycle then takes
+   * constant time. Both are merged in key order, and on equal keys (same time
+   * and same tie-breaking bits) the event of the queue comes first, so the
+   * relative order of such events, and thus the execution, may differ from a
+   * run without the wheel.
+   * 
+   * @config
+   */
+  public static final String PAR_SIM_WHEEL = "simulation.timingwheel";
+
+  /**
+   * If present, the SIM engine keeps counters of its hot path (see
+   * {@link peernet.core.EngineMetrics}), published through JMX. The value is
+   * the period, in milliseconds of wall-clock time, of the log lines that
+   * print them on the standard error; 0 disables the log lines.
+   * 
+   * @config
+   */
+  public static final String PAR_SIM_METRICS = "simulation.metrics";
+
   // ----------------------------------------------------------------------
   /**
    * Loads the configuration and executes the experiments. The number of
@@ -107,8 +142,9 @@ public class Simulator
    * After loading the configuration, the experiments are run by invoking the
    * appropriate engine, which is identified as follows:
    * <ul>
-   * <li>{@link CDSimulator}: if {@link CDSimulator#isConfigurationCycleDriven}
-   * returns true</li>
+   * <li>{@link peernet.core.EngineCD}: cycle-driven simulation, if
+   * <code>engine.mode</code> is <code>simcustom</code> and
+   * <code>engine.simengine</code> is <code>peernet.core.EngineCD</code></li>
    * <li>{@link Engine}: if {@link Engine#isConfigurationEventDriven}
    * returns true</li>
    * </ul>
@@ -122,7 +158,7 @@ public class Simulator
    *          {@link ParsedProperties#ParsedProperties(String[])}
    * @see ParsedProperties
    * @see Configuration
-   * @see CDSimulator
+   * @see peernet.core.EngineCD
    * @see Engine
    */
   public static void main(String[] args)
@@ -296,6 +296,13 @@ public class Configuration {
      */
     private static ConfigContainer config = null;
 
+    /**
+     * The configurations set with {@link #setLocalConfig(Properties)}, which
+     * override the system-wide one in the threads running concurrent
+     * experiments.
+     */
+    private static final InheritableThreadLocal<ConfigContainer> localConfig = new InheritableThreadLocal<ConfigContainer>();
+
 // =================== initialization ================================
 // ===================================================================
 
@@ -337,13 +344,41 @@ public class Configuration {
         config = new ConfigContainer(p, check);
     }
 
+// -------------------------------------------------------------------
+
+    /**
+     * Sets the configuration of the calling thread, and of the threads it
+     * creates from now on, overriding the system-wide one. This allows
+     * running several experiments with different configurations in the same
+     * JVM, each in its own thread.
+     *
+     * @param p The Properties object containing configuration info, or null
+     *          to revert to the system-wide configuration
+     */
+    public static void setLocalConfig(Properties p) {
+        if (p == null)
+            localConfig.remove();
+        else
+            localConfig.set(new ConfigContainer(p, false));
+    }
+
+// -------------------------------------------------------------------
+
+    /**
+     * Returns the configuration of the calling thread.
+     */
+    private static ConfigContainer config() {
+        ConfigContainer local = localConfig.get();
+        return local != null ? local : config;
+    }
+
 // -------------------------------------------------------------------
 
     /**
      * @return true if and only if name is a specified (exisitng) property.
      */
     public static boolean contains(String name) {
-        return config.contains(name);
+        return config().contains(name);
     }
 
 // -------------------------------------------------------------------
@@ -356,7 +391,7 @@ public class Configuration {
      * @param def  default value
      */
     public static boolean getBoolean(String name, boolean def) {
-        return config.getBoolean(name, def);
+        return config().getBoolean(name, def);
     }
 
 // -------------------------------------------------------------------
@@ -371,7 +406,7 @@ public class Configuration {
      * @param name Name of configuration property
      */
     public static boolean getBoolean(String name) {
-        return config.getBoolean(name);
+        return config().getBoolean(name);
     }
 
 // -------------------------------------------------------------------
@@ -384,7 +419,7 @@ public class Configuration {
      * @param def  default value
      */
     public static int getInt(String name, int def) {
-        return config.getInt(name, def);
+        return config().getInt(name, def);
     }
 
 // -------------------------------------------------------------------
@@ -396,7 +431,7 @@ public class Configuration {
      * @param name Name of configuration property
      */
     public static int getInt(String name) {
-        return config.getInt(name);
+        return config().getInt(name);
     }
 
 // -------------------------------------------------------------------
@@ -409,7 +444,7 @@ public class Configuration {
      * @param def  default value
      */
     public static long getLong(String name, long def) {
-        return config.getLong(name, def);
+        return config().getLong(name, def);
     }
 
 // -------------------------------------------------------------------
@@ -421,7 +456,7 @@ public class Configuration {
      * @param name Name of configuration property
      */
     public static long getLong(String name) {
-        return config.getLong(name);
+        return config().getLong(name);
     }
 
 // -------------------------------------------------------------------
@@ -434,7 +469,7 @@ public class Configuration {
      * @param def  default value
      */
     public static double getDouble(String name, double def) {
-        return config.getDouble(name, def);
+        return config().getDouble(name, def);
     }
 
 // -------------------------------------------------------------------
@@ -446,7 +481,7 @@ public class Configuration {
      * @param name Name of configuration property
      */
     public static double getDouble(String name) {
-        return config.getDouble(name);
+        return config().getDouble(name);
     }
 
 // -------------------------------------------------------------------
@@ -459,7 +494,7 @@ public class Configuration {
      * @param def  default value
      */
     public static String getString(String name, String def) {
-        return config.getString(name, def);
+        return config().getString(name, def);
     }
 
 // -------------------------------------------------------------------
@@ -471,7 +506,7 @@ public class Configuration {
      * @param name Name of configuration property
      */
     public static String getString(String name) {
-        return config.getString(name);
+        return config().getString(name);
     }
 
 // -------------------------------------------------------------------
@@ -487,7 +522,7 @@ public class Configuration {
      * property
      */
     public static int getPid(String name) {
-        return config.getPid(name);
+        return config().getPid(name);
     }
 
 // -------------------------------------------------------------------
@@ -502,7 +537,7 @@ public class Configuration {
      * property, or the default if not defined
      */
     public static int getPid(String name, int pid) {
-        return config.getPid(name, pid);
+        return config().getPid(name, pid);
     }
 
 // -------------------------------------------------------------------
@@ -514,7 +549,7 @@ public class Configuration {
      * @return the numeric protocol identifier associated to the protocol name
      */
     public static int lookupPid(String protname) {
-        return config.lookupPid(protname);
+        return config().lookupPid(protname);
     }
 
 // -------------------------------------------------------------------
@@ -530,7 +565,7 @@ public class Configuration {
      * have the given id.
      */
     public static String lookupPid(int pid) {
-        return config.lookupPid(pid);
+        return config().lookupPid(pid);
     }
 
 // -------------------------------------------------------------------
@@ -544,7 +579,7 @@ public class Configuration {
      * @param name Name of configuration property
      */
     public static Class getClass(String name) {
-        return config.getClass(name);
+        return config().getClass(name);
     }
 
 // -------------------------------------------------------------------
@@ -558,7 +593,7 @@ public class Configuration {
      * @see #getClass(String)
      */
     public static Class getClass(String name, Class def) {
-        return config.getClass(name, def);
+        return config().getClass(name, def);
     }
 
 // -------------------------------------------------------------------
@@ -575,7 +610,7 @@ public class Configuration {
      * @throws IllegalParameterException if there is any problem creating the instance
      */
     public static Object getInstance(String name) {
-        return config.getInstance(name);
+        return config().getInstance(name);
     }
 
 // -------------------------------------------------------------------
@@ -594,7 +629,7 @@ public class Configuration {
      *                                   the instance.
      */
     public static Object getInstance(String name, Object def) {
-        return config.getInstance(name, def);
+        return config().getInstance(name, def);
     }
 
 // -------------------------------------------------------------------
@@ -608,7 +643,7 @@ public class Configuration {
      *             properties) which will be passed to {@link #getNames(String)}.
      */
     public static Object[] getInstanceArray(String name) {
-        return config.getInstanceArray(name);
+        return config().getInstanceArray(name);
     }
 
 // -------------------------------------------------------------------
@@ -626,7 +661,7 @@ public class Configuration {
      * configuration
      */
     public static String[] getNames(String name) {
-        return config.getNames(name);
+        return config().getNames(name);
     }
 
     public static String suffix(String name) {
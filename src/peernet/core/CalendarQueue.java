@@ -0,0 +1,647 @@
+package peernet.core;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.BiPredicate;
+
+import peernet.transport.Address;
+
+
+/**
+ * Calendar queue (R. Brown, "Calendar queues: a fast O(1) priority queue
+ * implementation for the simulation event set problem", CACM 1988) used as an
+ * alternative {@link EventQueue} for the SIM engine. Select it by setting
+ * {@value peernet.Simulator#PAR_SIM_HEAP} to
+ * <code>peernet.core.CalendarQueue</code>.
+ * <p>
+ * Events are hashed by their key (the <code>(time &lt;&lt; rbits) | random</code>
+ * value computed by the engine) into an array of buckets ("days"), each
+ * covering <code>2^shift</code> consecutive key values. Every bucket holds a
+ * sorted linked list, and dequeueing walks the calendar day by day from the
+ * current position. Whenever the number of events grows beyond twice, or
+ * shrinks below half, the number of buckets, the calendar is rebuilt and the
+ * bucket width is recomputed from the separation of the events closest to the
+ * head of the queue. Unlike Brown's original proposal the width is rounded up
+ * to a power of two, so that hashing an event boils down to a shift and a
+ * mask, and it is computed from the separations between distinct keys, so
+ * that many events sharing a time do not collapse it. As the distribution of
+ * keys may drift without the number of events changing much, the calendar is
+ * also rebuilt when operations walk too many events or empty days on average.
+ * <p>
+ * Event payloads are kept in a slot arena (parallel arrays indexed by slot,
+ * with a free list), so no objects are allocated per event. As in
+ * {@link Heap}, a singleton {@link Event} is returned by
+ * {@link #removeFirst()}.
+ */
+public class CalendarQueue implements EventQueue
+{
+	// --------------------------------------------------------------------------
+	// Constants
+	// --------------------------------------------------------------------------
+	/** Initial arena size */
+	private static final int SIZE = 16;
+	/** Minimum number of buckets, the calendar never shrinks below it */
+	private static final int MIN_BUCKETS = 2;
+	/** Number of events sampled to estimate the bucket width */
+	private static final int SAMPLE = 25;
+	/** Marks the end of a bucket list, or of the free list */
+	private static final int NIL = -1;
+	/**
+	 * Average number of steps (days or events walked) per operation above which
+	 * the calendar is rebuilt
+	 */
+	private static final int COST = 8;
+
+	// --------------------------------------------------------------------------
+	// Fields
+	// --------------------------------------------------------------------------
+	/** Time (key) component of the arena */
+	private long[] times;
+	/** Src component of the arena */
+	private Address[] srcs;
+	/** Node component of the arena */
+	private Node[] nodes;
+	/** Pid component of the arena */
+	private byte[] pids;
+	/** Event component of the arena */
+	private Object[] events;
+	/** Next slot in the same bucket, or in the free list */
+	private int[] next;
+	/** Head of the free list */
+	private int free = NIL;
+	/** Number of arena slots ever handed out */
+	private int used = 0;
+
+	/** Heads of the bucket lists */
+	private int[] buckets;
+	/** Tails of the bucket lists, only meaningful for non-empty buckets */
+	private int[] tails;
+	/**
+	 * Last events of the first day of the bucket lists, only meaningful for
+	 * non-empty buckets. Later events of a bucket belong to later years, and
+	 * are inserted without walking past the events of the first day.
+	 */
+	private int[] runs;
+	/** Number of buckets minus one (the number of buckets is a power of two) */
+	private int mask;
+	/** Bucket width, as a power of two */
+	private int shift;
+	/** The day (key &gt;&gt; shift) the calendar is currently positioned at */
+	private long day;
+	/** Number of events */
+	private int size;
+
+	/** Operations since the last rebuild, or the last check of their cost */
+	private int ops;
+	/** Days and events walked by these operations */
+	private long steps;
+
+	/** Singleton event object used to return (event, time, node, pid) tuples */
+	private final Event ev = new Event();
+	private final Events evs = new Events(1);
+
+
+
+	// --------------------------------------------------------------------------
+	// Constructor
+	// --------------------------------------------------------------------------
+	/**
+	 * Initializes a new calendar queue with the default initial capacity.
+	 */
+	public CalendarQueue()
+	{
+		this(SIZE);
+	}
+
+
+
+	/**
+	 * Initializes a new calendar queue with the specified initial capacity.
+	 */
+	public CalendarQueue(int capacity)
+	{
+		capacity = Math.max(capacity, 1);
+		times = new long[capacity];
+		srcs = new Address[capacity];
+		nodes = new Node[capacity];
+		pids = new byte[capacity];
+		events = new Object[capacity];
+		next = new int[capacity];
+
+		buckets = new int[MIN_BUCKETS];
+		Arrays.fill(buckets, NIL);
+		tails = new int[MIN_BUCKETS];
+		runs = new int[MIN_BUCKETS];
+		mask = MIN_BUCKETS - 1;
+		shift = 0;
+		day = 0;
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	// Methods
+	// --------------------------------------------------------------------------
+	/**
+	 * Returns the current number of events in the system.
+	 */
+	public long size()
+	{
+		return size;
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Add a new event, to be scheduled at the specified time.
+	 *
+	 * @param time  the time at which this event should be scheduled
+	 * @param event the object decribing the event
+	 * @param node  the node at which the event has to be delivered
+	 * @param pid   the protocol that handles the event
+	 */
+	public void add(long time, Address src, Node node, byte pid, Object event)
+	{
+		int slot = allocate();
+		times[slot] = time;
+		srcs[slot] = src;
+		nodes[slot] = node;
+		pids[slot] = pid;
+		events[slot] = event;
+
+		// Events may be scheduled before the current position of the calendar
+		// (e.g., same time, lower random bits), in which case we step back.
+		long d = time >> shift;
+		if (size == 0 || d < day)
+			day = d;
+		link(slot);
+		size++;
+
+		if (size > 2 * buckets.length)
+			resize(2 * buckets.length);
+		else
+			checkCost();
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Removes the first event in the queue and returns it. Note that, to avoid
+	 * garbage collection, a singleton instance of the Event class is used. This
+	 * means that data contained in the returned event are overwritten when a new
+	 * invocation of this method is performed.
+	 *
+	 * @return first event or null if size is zero
+	 */
+	public Event removeFirst()
+	{
+		if (size == 0)
+			return null;
+		poll(ev);
+		return ev;
+	}
+
+
+
+	/**
+	 * Removes all the events of the first time unit. See
+	 * {@link EventQueue#removeMany()}.
+	 */
+	public Events removeMany()
+	{
+		if (size == 0)
+			return null;
+		int rbits = Engine.instance().rbits;
+		long time = getNextTime() >> rbits;
+		evs.clear();
+		do {
+			poll(evs.append());
+		}
+		while (size > 0 && (getNextTime() >> rbits) == time);
+		return evs;
+	}
+
+
+
+	public long getNextTime()
+	{
+		if (size == 0)
+			return Long.MAX_VALUE;
+		return times[buckets[firstBucket()]];
+	}
+
+
+
+	/**
+	 * Removes the events matching the filter, see
+	 * {@link EventQueue#removeIf(BiPredicate)}. Bucket lists stay sorted, and the
+	 * calendar is shrunk afterwards if it became too sparse.
+	 */
+	public int removeIf(BiPredicate<Node, Object> filter)
+	{
+		int before = size;
+		for (int b = 0; b < buckets.length; b++) {
+			int prev = NIL;
+			for (int s = buckets[b], n; s != NIL; s = n) {
+				n = next[s];
+				if (!filter.test(nodes[s], events[s])) {
+					prev = s;
+					continue;
+				}
+				if (prev == NIL)
+					buckets[b] = n;
+				else
+					next[prev] = n;
+				release(s);
+				size--;
+			}
+			tails[b] = prev;
+			if (buckets[b] != NIL)
+				runs[b] = runEnd(buckets[b]);
+		}
+
+		int nbuckets = buckets.length;
+		while (size < nbuckets / 2 && nbuckets > MIN_BUCKETS)
+			nbuckets /= 2;
+		if (nbuckets != buckets.length)
+			resize(nbuckets);
+		return before - size;
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Prints the time values contained in the queue, bucket by bucket.
+	 */
+	public String toString()
+	{
+		StringBuffer buffer = new StringBuffer();
+		buffer.append("[Size: " + size + " Buckets: " + buckets.length + " Width: " + (1L << shift) + " Times: ");
+		for (int b = 0; b < buckets.length; b++)
+			for (int s = buckets[b]; s != NIL; s = next[s])
+				buffer.append(times[s] + ",");
+		buffer.append("]");
+		return buffer.toString();
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	// Private methods
+	// --------------------------------------------------------------------------
+
+	/**
+	 * Walks the calendar from the current day until it finds the bucket holding
+	 * the earliest event. If a whole year passes without finding an event of
+	 * the current year, falls back to a direct search of the minimum among the
+	 * bucket heads. Assumes the queue is not empty.
+	 *
+	 * @return the index of the bucket holding the first event
+	 */
+	private int firstBucket()
+	{
+		for (int i = 0; i <= mask; i++, day++) {
+			int b = (int) (day & mask);
+			int head = buckets[b];
+			if (head != NIL && (times[head] >> shift) == day) {
+				steps += i;
+				return b;
+			}
+		}
+		steps += 2 * (mask + 1);
+
+		// Sparse calendar: jump directly to the earliest event
+		int minBucket = NIL;
+		long minTime = Long.MAX_VALUE;
+		for (int b = 0; b <= mask; b++) {
+			int head = buckets[b];
+			if (head != NIL && times[head] < minTime) {
+				minTime = times[head];
+				minBucket = b;
+			}
+		}
+		day = minTime >> shift;
+		return minBucket;
+	}
+
+
+
+	/**
+	 * Copies the earliest event into <code>e</code>, and removes it. Assumes
+	 * the queue is not empty.
+	 */
+	private void poll(Event e)
+	{
+		int slot = unlinkFirst();
+		e.time = times[slot];
+		e.src = srcs[slot];
+		e.node = nodes[slot];
+		e.pid = pids[slot];
+		e.event = events[slot];
+		release(slot);
+	}
+
+
+
+	/**
+	 * Unlinks the earliest event from the calendar and returns its slot.
+	 */
+	private int unlinkFirst()
+	{
+		int b = firstBucket();
+		int slot = buckets[b];
+		int head = next[slot];
+		buckets[b] = head;
+		if (slot == runs[b] && head != NIL)
+			runs[b] = runEnd(head);
+		size--;
+
+		if (size < buckets.length / 2 && buckets.length > MIN_BUCKETS)
+			resize(buckets.length / 2);
+		else
+			checkCost();
+		return slot;
+	}
+
+
+
+	/**
+	 * Inserts a slot in its bucket, keeping the bucket list sorted. Among equal
+	 * keys, the order is irrelevant, so new events are placed in front of them,
+	 * as in {@link LadderQueue}. Events later than the whole bucket are
+	 * appended at its tail, and events of later years are inserted after the
+	 * first day of the bucket.
+	 */
+	private void link(int slot)
+	{
+		long time = times[slot];
+		long d = time >> shift;
+		int b = (int) (d & mask);
+		int head = buckets[b];
+		if (head == NIL) {
+			next[slot] = NIL;
+			buckets[b] = tails[b] = runs[b] = slot;
+			return;
+		}
+		if (times[head] >= time) {
+			next[slot] = head;
+			buckets[b] = slot;
+			if ((times[head] >> shift) != d)
+				runs[b] = slot;
+			return;
+		}
+
+		int cur, tail = tails[b];
+		if (times[tail] < time) {
+			next[slot] = NIL;
+			next[tail] = slot;
+			tails[b] = slot;
+			cur = tail;
+		}
+		else {
+			int run = runs[b];
+			cur = times[run] < time ? run : head;
+			int nxt;
+			while (times[nxt = next[cur]] < time) {
+				cur = nxt;
+				steps++;
+			}
+			next[slot] = nxt;
+			next[cur] = slot;
+		}
+		if (cur == runs[b] && (times[cur] >> shift) == d)
+			runs[b] = slot;
+	}
+
+
+
+	/**
+	 * Returns the last event of the first day of a bucket list.
+	 */
+	private int runEnd(int head)
+	{
+		long d = times[head] >> shift;
+		int s = head, n;
+		while ((n = next[s]) != NIL && (times[n] >> shift) == d) {
+			s = n;
+			steps++;
+		}
+		return s;
+	}
+
+
+
+	/**
+	 * Counts an operation, and rebuilds the calendar with the same number of
+	 * buckets if the operations since the last rebuild walked too much on
+	 * average. Checked every as many operations as buckets, so that rebuilds
+	 * cost O(1) amortized.
+	 */
+	private void checkCost()
+	{
+		if (++ops < buckets.length)
+			return;
+		if (steps > (long) COST * ops)
+			resize(buckets.length);
+		else {
+			ops = 0;
+			steps = 0;
+		}
+	}
+
+
+
+	/**
+	 * Rebuilds the calendar with the given number of buckets, recomputing the
+	 * bucket width from the events closest to the head of the queue.
+	 */
+	private void resize(int nbuckets)
+	{
+		// Collect all slots, and sample the smallest keys
+		int[] slots = new int[size];
+		long[] sample = new long[Math.min(SAMPLE, size)];
+		int[] counts = new int[sample.length];
+		int n = 0, ns = 0;
+		for (int b = 0; b < buckets.length; b++) {
+			for (int s = buckets[b]; s != NIL; s = next[s]) {
+				slots[n++] = s;
+				ns = sampleInsert(sample, counts, ns, times[s]);
+			}
+		}
+
+		shift = newShift(sample, counts, ns);
+		buckets = new int[nbuckets];
+		Arrays.fill(buckets, NIL);
+		tails = new int[nbuckets];
+		runs = new int[nbuckets];
+		mask = nbuckets - 1;
+		ops = 0;
+		steps = 0;
+		day = ns > 0 ? sample[0] >> shift : 0;
+		for (int i = 0; i < n; i++)
+			link(slots[i]);
+	}
+
+
+
+	/**
+	 * Inserts a key in the sorted sample array, if it is among the smallest
+	 * distinct keys seen so far, or counts it if already there.
+	 *
+	 * @return the new number of keys in the sample
+	 */
+	private static int sampleInsert(long[] sample, int[] counts, int ns, long time)
+	{
+		int i = ns;
+		while (i > 0 && sample[i - 1] > time)
+			i--;
+		if (i > 0 && sample[i - 1] == time) {
+			counts[i - 1]++;
+			return ns;
+		}
+		if (i == sample.length)
+			return ns;
+		if (ns == sample.length)
+			ns--; // drop the largest
+		System.arraycopy(sample, i, sample, i + 1, ns - i);
+		System.arraycopy(counts, i, counts, i + 1, ns - i);
+		sample[i] = time;
+		counts[i] = 1;
+		return ns + 1;
+	}
+
+
+
+	/**
+	 * Brown's heuristic: the bucket width is three times the average
+	 * separation between consecutive events at the head of the queue, where
+	 * the average is recomputed after discarding separations larger than twice
+	 * the initial average. Separations are taken between distinct keys, so
+	 * that a burst of events at the same time does not collapse the width, and
+	 * divided by the number of events sharing the key of an event, on average,
+	 * so that keys crowded with events get buckets of their own.
+	 */
+	private int newShift(long[] sample, int[] counts, int ns)
+	{
+		if (ns < 2)
+			return shift;
+
+		double avg = (double) (sample[ns - 1] - sample[0]) / (ns - 1);
+		double sum = 0;
+		int count = 0;
+		for (int i = 1; i < ns; i++) {
+			long sep = sample[i] - sample[i - 1];
+			if (sep <= 2 * avg) {
+				sum += sep;
+				count++;
+			}
+		}
+		if (count > 0)
+			avg = sum / count;
+		// Number of events sharing the key of an event, on average
+		double events = 0, pairs = 0;
+		for (int i = 0; i < ns; i++) {
+			events += counts[i];
+			pairs += (double) counts[i] * counts[i];
+		}
+		avg /= pairs / events;
+
+		long width = (long) Math.ceil(3 * avg);
+		if (width <= 1)
+			return 0;
+		return Math.min(64 - Long.numberOfLeadingZeros(width - 1), 62);
+	}
+
+
+
+	/**
+	 * Returns a free arena slot, growing the arena if needed.
+	 */
+	private int allocate()
+	{
+		if (free != NIL) {
+			int slot = free;
+			free = next[slot];
+			return slot;
+		}
+		if (used == times.length)
+			doubleCapacity();
+		return used++;
+	}
+
+
+
+	/**
+	 * Returns a slot to the free list, dropping its references so that the
+	 * garbage collector can reclaim them.
+	 */
+	private void release(int slot)
+	{
+		srcs[slot] = null;
+		nodes[slot] = null;
+		events[slot] = null;
+		next[slot] = free;
+		free = slot;
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 *
+	 */
+	private void doubleCapacity()
+	{
+		int newsize = times.length * 2;
+		times = Arrays.copyOf(times, newsize);
+		srcs = Arrays.copyOf(srcs, newsize);
+		nodes = Arrays.copyOf(nodes, newsize);
+		pids = Arrays.copyOf(pids, newsize);
+		events = Arrays.copyOf(events, newsize);
+		next = Arrays.copyOf(next, newsize);
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	// Testing
+	// --------------------------------------------------------------------------
+	public static void main(String[] args)
+	{
+		Random random = new Random();
+		CalendarQueue queue = new CalendarQueue();
+		int rep = 1000000;
+		if (args.length>0)
+			rep = Integer.parseInt(args[0]);
+		long[] values1 = new long[rep];
+		long[] values2 = new long[rep];
+		for (int i = 0; i<rep; i++)
+			values1[i] = random.nextInt(1000000000);
+		long time1 = System.currentTimeMillis();
+		for (int i = 0; i<rep; i++)
+			queue.add(values1[i], null, null, (byte) 1, null);
+		long time2 = System.currentTimeMillis();
+		System.out.println("Inserting: "+(time2-time1));
+		time1 = System.currentTimeMillis();
+		for (int i = 0; i<rep; i++)
+			values2[i] = queue.removeFirst().time;
+		time2 = System.currentTimeMillis();
+		System.out.println("Removing: "+(time2-time1));
+
+		Arrays.sort(values1);
+		long errorCount = 0;
+		for (int i = 0; i<rep; i++)
+		{
+			if (values1[i]!=values2[i])
+				errorCount++;
+		}
+		if(errorCount > 0) {
+			System.out.println("Incorrect order: " + errorCount + " unexpected values");
+		}
+
+		System.out.println("Done!");
+	}
+}
@@ -0,0 +1,43 @@
+package peernet.core;
+
+import peernet.config.Configuration;
+
+
+/**
+ * Control that writes a snapshot of the complete state of a SIM experiment:
+ * the current time, the random generator, the nodes of the {@link Network}
+ * with their protocols, and the pending events. The experiment can then be
+ * resumed from the snapshot, by setting parameter <code>engine.restore</code>
+ * to the snapshot file, with the same configuration otherwise.
+ * <p>
+ * The snapshot is taken at the end of the current time unit, once all the
+ * events of the time unit have been executed. The state of controls is not
+ * part of it: when resuming, controls are created anew from the
+ * configuration, and their pending executions are restored by name. Nodes,
+ * protocols and event payloads must be serializable; fields that are derived
+ * from the configuration should be <code>transient</code>.
+ * <p>
+ * Only supported by {@link EngineSim}.
+ */
+public class Checkpoint implements Control {
+    /**
+     * The snapshot file. Occurrences of <code>%t</code> are replaced by the
+     * current time, so that periodic checkpoints do not overwrite each other.
+     *
+     * @config
+     */
+    private static final String PAR_FILE = "file";
+
+    private final String file;
+
+
+    public Checkpoint(String prefix) {
+        file = Configuration.getString(prefix + "." + PAR_FILE);
+    }
+
+
+    public boolean execute() {
+        Engine.instance().checkpoint(file.replace("%t", Long.toString(CommonState.getTime())));
+        return false;
+    }
+}
@@ -16,13 +16,13 @@
  */
 package peernet.core;
 
-import peernet.config.Configuration;
 import peernet.core.Engine.Type;
 import peernet.util.ExtendedRandom;
 
 
 /**
- * This is the common state of the simulation all objects see. Static singleton.
+ * This is the common state of the simulation all objects see. Static singleton,
+ * whose state is kept in the {@link SimulationContext} of the calling thread.
  * One of its purposes is simplification of parameter structures and increasing
  * efficiency by putting state information here instead of passing parameters.
  * <p>
@@ -34,37 +34,15 @@ import peernet.util.ExtendedRandom;
  */
 public class CommonState
 {
-	/**
-	 * Current time. Note that this value is simulator independent, all simulation
-	 * models have a notion related to time. For example, in the cycle based
-	 * model, the cycle id gives time, while in even driven simulations there is a
-	 * more realistic notion of time.
-	 */
-	private static long time = 0;
-
-	/**
-	 * The maxival value {@link #time} can ever take.
-	 */
-	private static long endTime = -1;
-	private static long zeroTime = -1;
-
-	/**
-	 * Number of used bits in the long representation of time, calculated based on
-	 * the endtime.
-	 */
-	//  private static int toshift = -1;
-
-	/**
-	 * Experience name
-	 */
-	private static String experienceName;
-
 	/**
 	 * This source of randomness should be used by all components. This field is
 	 * public because it doesn't matter if it changes during an experiment
 	 * (although it shouldn't) until no other sources of randomness are used
 	 * within the system. Besides, we can save the cost of calling a wrapper
 	 * method, which is important because this is needed very often.
+	 * <p>
+	 * When experiments run concurrently, this generator forwards all calls to
+	 * the generator of the {@link SimulationContext} of the calling thread.
 	 */
 	public static ExtendedRandom r = null;
 
@@ -90,14 +68,23 @@ public class CommonState
 	 */
 	public static final String PAR_SEED = "random.seed";
 
+	/**
+	 * If set, subsystems draw from independent substreams of the random
+	 * generator (see {@link RandomStream}), instead of from {@link #r}. Not set
+	 * by default, so that the results for a given seed stay the same as in
+	 * previous versions.
+	 * 
+	 * @config
+	 */
+	public static final String PAR_SUBSTREAMS = "random.substreams";
+
 	/**
 	 * Initializes the field {@link r} according to the configuration. Assumes
 	 * that the configuration is already loaded.
 	 */
 	static
 	{
-		long seed = Configuration.getLong(PAR_SEED, System.currentTimeMillis());
-		initializeRandom(seed);
+		r = SimulationContext.isConcurrent() ? SimulationContext.contextRandom : SimulationContext.random();
 	}
 
 
@@ -125,25 +112,35 @@ public class CommonState
 	 */
 	public static long getTime()
 	{
-		Type t = Engine.getType();
+		SimulationContext context = SimulationContext.current();
+		Type t = context.type;
 		if (t==Type.SIM || t==Type.SIM_CUSTOM )
-			return time;
+		{
+			if (context.processTime)
+			{
+				Thread thread = Thread.currentThread();
+				if (thread instanceof LogicalProcess)
+					return ((LogicalProcess) thread).time;
+			}
+			return context.time;
+		}
 		else
 		{
-			if (zeroTime==-1)
+			if (context.zeroTime==-1)
 				return 0;
 			else
-				return System.currentTimeMillis()-zeroTime;
+				return System.currentTimeMillis()-context.zeroTime;
 		}
 	}
 
 
 	static void timeStartsNow()
 	{
-		if (zeroTime!=-1)
+		SimulationContext context = SimulationContext.current();
+		if (context.zeroTime!=-1)
 			throw new IllegalStateException("Cannot reset time to zero for a second time");
 
-		zeroTime = System.currentTimeMillis();
+		context.zeroTime = System.currentTimeMillis();
 	}
 
 	/**
@@ -151,7 +148,29 @@ public class CommonState
 	 */
 	public static void setTime(long t)
 	{
-		time = t;
+		SimulationContext context = SimulationContext.current();
+		if (context.processTime)
+		{
+			Thread thread = Thread.currentThread();
+			if (thread instanceof LogicalProcess)
+			{
+				((LogicalProcess) thread).time = t;
+				return;
+			}
+		}
+		context.time = t;
+	}
+
+
+
+	/**
+	 * Enables (or disables) per-process time. When enabled, threads that are
+	 * {@link LogicalProcess}es read and set their own current time, while all
+	 * other threads keep using the global one.
+	 */
+	static void setProcessTime(boolean enabled)
+	{
+		SimulationContext.current().processTime = enabled;
 	}
 
 
@@ -162,7 +181,7 @@ public class CommonState
 	 */
 	public static long getEndTime()
 	{
-		return endTime;
+		return SimulationContext.current().endTime;
 	}
 
 
@@ -172,23 +191,77 @@ public class CommonState
 	 */
 	public static void setEndTime(long t)
 	{
-		if (endTime>=0)
+		SimulationContext context = SimulationContext.current();
+		if (context.endTime>=0)
 			throw new RuntimeException("You can set endtime only once");
 
 		if (t<0)
 			throw new RuntimeException("No negative values are allowed");
 
-		endTime = t;
+		context.endTime = t;
 	}
 
 
 
 	public static void initializeRandom(long seed)
 	{
-		if (r==null)
-			r = (ExtendedRandom) Configuration.getInstance(PAR_RANDOM, new ExtendedRandom(seed));
+		SimulationContext context = SimulationContext.current();
+		context.random.setSeed(seed);
+		context.streams = null;
+	}
+
+
+
+	/**
+	 * Returns the random generator of the current experiment, which is
+	 * {@link #r} unless experiments run concurrently.
+	 */
+	static ExtendedRandom getRandom()
+	{
+		return SimulationContext.random();
+	}
+
 
-		r.setSeed(seed);
+
+	/**
+	 * Replaces the random generator of the current experiment.
+	 */
+	static void setRandom(ExtendedRandom random)
+	{
+		SimulationContext context = SimulationContext.current();
+		context.random = random;
+		context.streams = null;
+		if (!SimulationContext.isConcurrent())
+			r = random;
+	}
+
+
+
+	/**
+	 * Returns the random generator of a subsystem: its own substream if
+	 * {@value #PAR_SUBSTREAMS} is set, or {@link #r} otherwise.
+	 */
+	public static ExtendedRandom stream(RandomStream stream)
+	{
+		SimulationContext context = SimulationContext.current();
+		return context.substreams ? context.stream(stream) : r;
+	}
+
+
+
+	/**
+	 * Returns the random generator of a subsystem for a given node: a
+	 * substream of its own for each node if {@value #PAR_SUBSTREAMS} is set, or
+	 * {@link #r} otherwise.
+	 *
+	 * @param node the node, or null for the substream of the subsystem
+	 */
+	public static ExtendedRandom stream(RandomStream stream, Node node)
+	{
+		SimulationContext context = SimulationContext.current();
+		if (!context.substreams)
+			return r;
+		return node == null ? context.stream(stream) : node.stream(stream, context.random);
 	}
 
 
@@ -201,12 +274,12 @@ public class CommonState
 
 
 	public static String getExperienceName() {
-		return experienceName;
+		return SimulationContext.current().experienceName;
 	}
 
 
 
 	public static void setExperienceName(String experienceName) {
-		CommonState.experienceName = experienceName;
+		SimulationContext.current().experienceName = experienceName;
 	}
 }
@@ -0,0 +1,137 @@
+package peernet.core;
+
+import peernet.util.ExtendedRandom;
+
+
+/**
+ * The value of {@link CommonState#r} once {@link SimulationContext}s are bound
+ * to threads: a random generator that delegates all draws to the generator of
+ * the context of the calling thread, so that concurrent experiments draw from
+ * independent sequences.
+ */
+class ContextRandom extends ExtendedRandom
+{
+	private static final long serialVersionUID = 1L;
+
+	/** Cleared while the constructor of Random runs */
+	private final boolean ready;
+
+
+
+	ContextRandom()
+	{
+		super(0);
+		ready = true;
+	}
+
+
+
+	/**
+	 * Returns the generator of the context of the calling thread.
+	 */
+	private ExtendedRandom current()
+	{
+		return SimulationContext.random();
+	}
+
+
+
+	@Override
+	public int nextInt()
+	{
+		return current().nextInt();
+	}
+
+
+
+	@Override
+	public int nextInt(int bound)
+	{
+		return current().nextInt(bound);
+	}
+
+
+
+	@Override
+	public long nextLong()
+	{
+		return current().nextLong();
+	}
+
+
+
+	@Override
+	public long nextLong(long n)
+	{
+		return current().nextLong(n);
+	}
+
+
+
+	@Override
+	public double nextDouble()
+	{
+		return current().nextDouble();
+	}
+
+
+
+	@Override
+	public float nextFloat()
+	{
+		return current().nextFloat();
+	}
+
+
+
+	@Override
+	public boolean nextBoolean()
+	{
+		return current().nextBoolean();
+	}
+
+
+
+	@Override
+	public double nextGaussian()
+	{
+		return current().nextGaussian();
+	}
+
+
+
+	@Override
+	public void nextBytes(byte[] bytes)
+	{
+		current().nextBytes(bytes);
+	}
+
+
+
+	@Override
+	public int nextPoisson(double mean)
+	{
+		return current().nextPoisson(mean);
+	}
+
+
+
+	/**
+	 * Seeds the generator of the context of the calling thread.
+	 */
+	@Override
+	public void setSeed(long seed)
+	{
+		// Called by the constructor of Random, before any context exists
+		if (ready)
+			current().setSeed(seed);
+	}
+
+
+
+	@Override
+	public long getLastSeed()
+	{
+		return current().getLastSeed();
+	}
+}
@@ -0,0 +1,428 @@
+package peernet.core;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.BiPredicate;
+
+import peernet.Simulator;
+import peernet.config.Configuration;
+import peernet.config.IllegalParameterException;
+import peernet.transport.Address;
+
+
+/**
+ * A d-ary heap used as an alternative {@link EventQueue} to {@link Heap}.
+ * Select it by setting {@value peernet.Simulator#PAR_SIM_HEAP} to
+ * <code>peernet.core.DaryHeap</code>, and optionally its arity through
+ * parameter {@value #PAR_ARITY} (e.g., <code>simulation.heap.arity 8</code>).
+ * <p>
+ * Contrary to {@link Heap}, which sifts five parallel arrays, this heap only
+ * moves (key, slot) pairs, packed next to each other in a single
+ * <code>long</code> array. The event payloads stay put in a slot arena with a
+ * free list. With an arity of 4, the children of a node are 64 contiguous
+ * bytes, so each level of a sift touches at most two cache lines (they start
+ * at (pos&lt;&lt;2)+1, and the JVM does not align arrays on cache lines
+ * anyway), and the heap is half as deep as a binary one.
+ * <p>
+ * As in {@link Heap}, a singleton {@link Event} is returned by
+ * {@link #removeFirst()}.
+ */
+public class DaryHeap implements EventQueue
+{
+	// --------------------------------------------------------------------------
+	// Parameters
+	// --------------------------------------------------------------------------
+	/**
+	 * The arity of the heap, a power of two between 2 and 64. Defaults to
+	 * {@value #DEFAULT_ARITY}.
+	 *
+	 * @config
+	 */
+	private static final String PAR_ARITY = "arity";
+
+	// --------------------------------------------------------------------------
+	// Constants
+	// --------------------------------------------------------------------------
+	/** Initial size */
+	private static final int SIZE = 16;
+	/** Default arity */
+	private static final int DEFAULT_ARITY = 4;
+	/** Marks the end of the free list */
+	private static final int NIL = -1;
+
+	// --------------------------------------------------------------------------
+	// Fields
+	// --------------------------------------------------------------------------
+	/** log2 of the arity */
+	private final int logd;
+	/** The heap: the key of element i is at 2*i, its slot at 2*i+1 */
+	private long[] heap;
+	/** Number of elements */
+	private int size;
+
+	/** Src component of the arena */
+	private Address[] srcs;
+	/** Node component of the arena */
+	private Node[] nodes;
+	/** Pid component of the arena */
+	private byte[] pids;
+	/** Event component of the arena */
+	private Object[] events;
+	/** Next slot in the free list */
+	private int[] nextFree;
+	/** Head of the free list */
+	private int free = NIL;
+	/** Number of arena slots ever handed out */
+	private int used = 0;
+
+	/** Singleton event object used to return (event, time, node, pid) tuples */
+	private final Event ev = new Event();
+	private final Events evs = new Events(1);
+
+
+
+	// --------------------------------------------------------------------------
+	// Constructor
+	// --------------------------------------------------------------------------
+	/**
+	 * Initializes a new heap with the arity given by {@value #PAR_ARITY}.
+	 */
+	public DaryHeap()
+	{
+		this(Configuration.getInt(Simulator.PAR_SIM_HEAP + "." + PAR_ARITY, DEFAULT_ARITY), SIZE);
+	}
+
+
+
+	/**
+	 * Initializes a new heap with the specified arity and initial size.
+	 */
+	public DaryHeap(int arity, int size)
+	{
+		if (arity < 2 || arity > 64 || Integer.bitCount(arity) != 1)
+			throw new IllegalParameterException(Simulator.PAR_SIM_HEAP + "." + PAR_ARITY, "The arity should be a power of two between 2 and 64");
+		logd = Integer.numberOfTrailingZeros(arity);
+		size = Math.max(size, 1);
+		heap = new long[2 * size];
+		srcs = new Address[size];
+		nodes = new Node[size];
+		pids = new byte[size];
+		events = new Object[size];
+		nextFree = new int[size];
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	// Methods
+	// --------------------------------------------------------------------------
+	/**
+	 * Returns the current number of events in the system.
+	 */
+	public long size()
+	{
+		return size;
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Add a new event, to be scheduled at the specified time.
+	 *
+	 * @param time  the time at which this event should be scheduled
+	 * @param event the object decribing the event
+	 * @param node  the node at which the event has to be delivered
+	 * @param pid   the protocol that handles the event
+	 */
+	public void add(long time, Address src, Node node, byte pid, Object event)
+	{
+		int slot = allocate();
+		srcs[slot] = src;
+		nodes[slot] = node;
+		pids[slot] = pid;
+		events[slot] = event;
+
+		if (2 * (size + 1) > heap.length)
+			heap = Arrays.copyOf(heap, 2 * heap.length);
+		siftUp(size++, time, slot);
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Removes the first event in the heap and returns it. Note that, to avoid
+	 * garbage collection, a singleton instance of the Event class is used. This
+	 * means that data contained in the returned event are overwritten when a new
+	 * invocation of this method is performed.
+	 *
+	 * @return first event or null if size is zero
+	 */
+	public Event removeFirst()
+	{
+		if (size == 0)
+			return null;
+		poll(ev);
+		return ev;
+	}
+
+
+
+	/**
+	 * Removes all the events of the first time unit. See
+	 * {@link EventQueue#removeMany()}.
+	 */
+	public Events removeMany()
+	{
+		if (size == 0)
+			return null;
+		int rbits = Engine.instance().rbits;
+		long time = heap[0] >> rbits;
+		evs.clear();
+		do {
+			poll(evs.append());
+		}
+		while (size > 0 && (heap[0] >> rbits) == time);
+		return evs;
+	}
+
+
+
+	public long getNextTime()
+	{
+		if (size == 0)
+			return Long.MAX_VALUE;
+		return heap[0];
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Prints the time values contained in the heap.
+	 */
+	public String toString()
+	{
+		StringBuffer buffer = new StringBuffer();
+		buffer.append("[Size: " + size + " Arity: " + (1 << logd) + " Times: ");
+		for (int i = 0; i < size; i++)
+			buffer.append(heap[2 * i] + ",");
+		buffer.append("]");
+		return buffer.toString();
+	}
+
+
+
+	/**
+	 * Removes the events matching the filter, see
+	 * {@link EventQueue#removeIf(BiPredicate)}. The remaining events are packed,
+	 * and the heap is rebuilt by sifting each of them up in turn.
+	 */
+	public int removeIf(BiPredicate<Node, Object> filter)
+	{
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			int slot = (int) heap[2 * i + 1];
+			if (filter.test(nodes[slot], events[slot])) {
+				release(slot);
+				continue;
+			}
+			heap[2 * n] = heap[2 * i];
+			heap[2 * n + 1] = slot;
+			n++;
+		}
+		int removed = size - n;
+		for (int i = 0; i < n; i++)
+			siftUp(i, heap[2 * i], (int) heap[2 * i + 1]);
+		size = n;
+		return removed;
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	// Private methods
+	// --------------------------------------------------------------------------
+
+	/**
+	 * Copies the first event into <code>e</code>, and removes it. Assumes the
+	 * heap is not empty.
+	 */
+	private void poll(Event e)
+	{
+		e.time = heap[0];
+		int slot = (int) heap[1];
+		e.src = srcs[slot];
+		e.node = nodes[slot];
+		e.pid = pids[slot];
+		e.event = events[slot];
+		release(slot);
+
+		size--;
+		if (size > 0)
+			siftDown(heap[2 * size], (int) heap[2 * size + 1]);
+	}
+
+
+
+	/**
+	 * Moves the hole at position <code>pos</code> up until the given key fits,
+	 * and stores the (key, slot) pair there.
+	 */
+	private void siftUp(int pos, long key, int slot)
+	{
+		while (pos > 0) {
+			int parent = (pos - 1) >> logd;
+			long pkey = heap[2 * parent];
+			if (pkey <= key)
+				break;
+			heap[2 * pos] = pkey;
+			heap[2 * pos + 1] = heap[2 * parent + 1];
+			pos = parent;
+		}
+		heap[2 * pos] = key;
+		heap[2 * pos + 1] = slot;
+	}
+
+
+
+	/**
+	 * Moves the hole at the root down until the given key fits, and stores the
+	 * (key, slot) pair there.
+	 */
+	private void siftDown(long key, int slot)
+	{
+		int pos = 0;
+		int d = 1 << logd;
+		int child;
+		while ((child = (pos << logd) + 1) < size) {
+			// Find the smallest among the (up to d) children
+			int last = Math.min(child + d, size);
+			int min = child;
+			long minkey = heap[2 * child];
+			for (int c = child + 1; c < last; c++) {
+				long ckey = heap[2 * c];
+				if (ckey < minkey) {
+					minkey = ckey;
+					min = c;
+				}
+			}
+			if (minkey >= key)
+				break;
+			heap[2 * pos] = minkey;
+			heap[2 * pos + 1] = heap[2 * min + 1];
+			pos = min;
+		}
+		heap[2 * pos] = key;
+		heap[2 * pos + 1] = slot;
+	}
+
+
+
+	/**
+	 * Returns a free arena slot, growing the arena if needed.
+	 */
+	private int allocate()
+	{
+		if (free != NIL) {
+			int slot = free;
+			free = nextFree[slot];
+			return slot;
+		}
+		if (used == srcs.length)
+			doubleCapacity();
+		return used++;
+	}
+
+
+
+	/**
+	 * Returns a slot to the free list, dropping its references so that the
+	 * garbage collector can reclaim them.
+	 */
+	private void release(int slot)
+	{
+		srcs[slot] = null;
+		nodes[slot] = null;
+		events[slot] = null;
+		nextFree[slot] = free;
+		free = slot;
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 *
+	 */
+	private void doubleCapacity()
+	{
+		int newsize = srcs.length * 2;
+		srcs = Arrays.copyOf(srcs, newsize);
+		nodes = Arrays.copyOf(nodes, newsize);
+		pids = Arrays.copyOf(pids, newsize);
+		events = Arrays.copyOf(events, newsize);
+		nextFree = Arrays.copyOf(nextFree, newsize);
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	// Testing
+	// --------------------------------------------------------------------------
+	/**
+	 * Microbenchmark: runs the insert/remove test of {@link Heap#main} on the
+	 * same random keys for {@link Heap} and for 4-ary and 8-ary instances of
+	 * this class, and checks the removal order of each of them.
+	 */
+	public static void main(String[] args)
+	{
+		Random random = new Random();
+		int rep = 1000000;
+		if (args.length>0)
+			rep = Integer.parseInt(args[0]);
+		int rounds = 3;
+		if (args.length>1)
+			rounds = Integer.parseInt(args[1]);
+		long[] values1 = new long[rep];
+		long[] values2 = new long[rep];
+		long[] sorted = new long[rep];
+		for (int i = 0; i<rep; i++)
+			values1[i] = random.nextInt(1000000000);
+		System.arraycopy(values1, 0, sorted, 0, rep);
+		Arrays.sort(sorted);
+
+		// Several rounds, so that the later ones run on compiled code
+		for (int round = 0; round<rounds; round++)
+		{
+			EventQueue[] queues = {new Heap(), new DaryHeap(4, 1), new DaryHeap(8, 1)};
+			for (EventQueue queue : queues)
+			{
+				long time1 = System.currentTimeMillis();
+				for (int i = 0; i<rep; i++)
+					queue.add(values1[i], null, null, (byte) 1, null);
+				long time2 = System.currentTimeMillis();
+				long insert = time2-time1;
+				time1 = System.currentTimeMillis();
+				for (int i = 0; i<rep; i++)
+					values2[i] = queue.removeFirst().time;
+				time2 = System.currentTimeMillis();
+				String name = queue instanceof DaryHeap ? "DaryHeap("+(1<<((DaryHeap) queue).logd)+")" : "Heap";
+				System.out.println("Round "+round+" "+name+" inserting: "+insert+" removing: "+(time2-time1));
+
+				long errorCount = 0;
+				for (int i = 0; i<rep; i++)
+				{
+					if (sorted[i]!=values2[i])
+						errorCount++;
+				}
+				if(errorCount > 0) {
+					System.out.println("Incorrect order: " + errorCount + " unexpected values");
+				}
+			}
+		}
+
+		System.out.println("Done!");
+	}
+}
@@ -21,7 +21,9 @@
  */
 package peernet.core;
 
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.function.BiPredicate;
 
 import peernet.config.Configuration;
 import peernet.config.IllegalParameterException;
@@ -30,7 +32,9 @@ import peernet.transport.Address;
 
 
 /**
- * Event-driven simulator engine. It is a fully static singleton class. For an
+ * Event-driven simulator engine. It is a singleton class: each experiment (see
+ * {@link SimulationContext}) has a single instance, returned by
+ * {@link #instance()}. For an
  * event driven simulation the configuration has to describe a set of
  * {@link Protocol}s, a set of {@link Control}s and their ordering and a set of
  * initializers and their ordering. See parameters {@value #PAR_INIT},
@@ -145,35 +149,61 @@ public abstract class Engine
 	
 	private static final String PAR_CUSTOM_SIM_ENGINE_CLASS = "simengine";
 
+	/**
+	 * A snapshot file written by {@link Checkpoint}. If defined, the
+	 * experiment resumes from the snapshot, instead of running the
+	 * initializers. Only supported by the engines that support checkpoints.
+	 * 
+	 * @config
+	 */
+	private static final String PAR_RESTORE = "restore";
+
+	/**
+	 * Events that can never be delivered are purged from the event queues once
+	 * there are at least this many of them, and they make up half of the
+	 * pending events.
+	 */
+	static final int PURGE_THRESHOLD = 1024;
+
+	/**
+	 * Matches the events that can never be delivered: those of cancelled
+	 * {@link Timer}s, and those of {@link Fallible#DEAD} nodes.
+	 */
+	static final BiPredicate<Node, Object> PURGEABLE = (node, event) ->
+			(node != null && node.getFailState() == Fallible.DEAD) || (event instanceof Timer && ((Timer) event).isCancelled());
+
 	// ---------------------------------------------------------------------
 	// Fields
 	// ---------------------------------------------------------------------
 
 	/** Maximum time for simulation */
-	protected static long endtime;
+	protected long endtime;
 
 	/** Log time */
-	protected static long logtime;
+	protected long logtime;
 
 	/** Number of bits used for random */
-	protected static int rbits;
+	protected int rbits;
 
 	/** holds the modifiers of this simulation */
-	protected static Control[] controls = null;
+	protected Control[] controls = null;
 
 	/** Holds the control schedules */
-	protected static Schedule[] controlSchedules = null;
+	protected Schedule[] controlSchedules = null;
 
-	/** Holds the protocol schedules */
-	protected static Schedule[][] protocolSchedules = null;
+	/** Holds the configuration names of the controls */
+	String[] controlNames = null;
+
+	/** Holds the configuration names of the protocols */
+	String[] protocolNames = null;
 
-	protected static long nextlog = 0;
+	/** Holds the protocol schedules */
+	protected Schedule[][] protocolSchedules = null;
 
-	private static Engine instance = null;
+	protected long nextlog = 0;
 
-	private static final Type type;
-	private static final AddressType addressType;
-	private static final String engineName;
+	/** Estimated number of purgeable events, since the last purge */
+	private double garbage = 0;
 
 	public enum Type
 	{
@@ -185,32 +215,23 @@ public abstract class Engine
 		SIM, NET;
 	}
 
-	static {
+	/**
+	 * Reads the type of engine from the configuration.
+	 */
+	static Type readType() {
 		String typeStr = Configuration.getString(PREFIX + "." + PAR_MODE, "");
-		if (typeStr.equals(PAR_ENGINE_SIMULATION_VALUE)) {
-			type = Type.SIM;
-			addressType = AddressType.SIM;
-			engineName = null;
-		} else if (typeStr.equals(PAR_ENGINE_EMULATION_VALUE)) {
-			type = Type.EMU;
-			addressType = AddressType.SIM;
-			engineName = null;
-		} else if (typeStr.equals(PAR_ENGINE_NETWORK_VALUE)) {
-			type = Type.NET;
-			addressType = AddressType.NET;
-			engineName = null;
-		} else if (typeStr.equals(PAR_ENGINE_COORDINATOR_VALUE)) {
-			type = Type.COORDINATOR;
-			addressType = null;
-			engineName = null;
-		} else if (typeStr.equals(PAR_ENGINE_SIMULATION_CUSTOM_VALUE)) {
-			if(Configuration.contains(PREFIX + "." + PAR_CUSTOM_SIM_ENGINE_CLASS)) {
-				type = Type.SIM_CUSTOM;
-				addressType = AddressType.SIM;
-				engineName = Configuration.getString(PREFIX + "." + PAR_CUSTOM_SIM_ENGINE_CLASS);
-			} else {
+		if (typeStr.equals(PAR_ENGINE_SIMULATION_VALUE))
+			return Type.SIM;
+		else if (typeStr.equals(PAR_ENGINE_EMULATION_VALUE))
+			return Type.EMU;
+		else if (typeStr.equals(PAR_ENGINE_NETWORK_VALUE))
+			return Type.NET;
+		else if (typeStr.equals(PAR_ENGINE_COORDINATOR_VALUE))
+			return Type.COORDINATOR;
+		else if (typeStr.equals(PAR_ENGINE_SIMULATION_CUSTOM_VALUE)) {
+			if (!Configuration.contains(PREFIX + "." + PAR_CUSTOM_SIM_ENGINE_CLASS))
 				throw new IllegalParameterException(PREFIX + "." + PAR_MODE, "Value " + PAR_ENGINE_SIMULATION_CUSTOM_VALUE + " requires specification of parameter: " + PREFIX + "." + PAR_CUSTOM_SIM_ENGINE_CLASS);
-			}
+			return Type.SIM_CUSTOM;
 		} else
 			throw new IllegalParameterException(PREFIX + "." + PAR_MODE, "Possible types: " + PAR_ENGINE_SIMULATION_VALUE 
 																					 + ", " + PAR_ENGINE_EMULATION_VALUE 
@@ -220,11 +241,18 @@ public abstract class Engine
 	}
 
 	public static Type getType() {
-		return type;
+		return SimulationContext.current().type;
 	}
 
 	public static AddressType getAddressType() {
-		return addressType;
+		switch (getType()) {
+		case NET:
+			return AddressType.NET;
+		case COORDINATOR:
+			return null;
+		default:
+			return AddressType.SIM;
+		}
 	}
 
 
@@ -246,13 +274,13 @@ public abstract class Engine
 
 
 	/**
-	 * Schedule all controls in the provided heap.
-	 *
-	 * @param heap
+	 * Loads the controls and their schedules.
 	 */
-	private void scheduleControls() {
-		// load controls
+	void loadControls() {
 		String[] names = Configuration.getNames(PAR_CONTROL);
+		if (names.length > Byte.MAX_VALUE + 1)
+			throw new IllegalArgumentException("Too many control objects");
+		controlNames = names;
 		controls = new Control[names.length];
 		controlSchedules = new Schedule[names.length];
 		for (int i = 0; i < names.length; i++) {
@@ -260,10 +288,17 @@ public abstract class Engine
 			controlSchedules[i] = new Schedule(names[i]);
 		}
 		System.err.println("Engine: loaded controls " + Arrays.asList(names));
+	}
+
 
+	/**
+	 * Schedule all controls in the provided heap.
+	 *
+	 * @param heap
+	 */
+	private void scheduleControls() {
+		loadControls();
 		for (int i = 0; i < controls.length; i++) {
-			if (i > Byte.MAX_VALUE)
-				throw new IllegalArgumentException("Too many control objects");
 			long delay = controlSchedules[i].initialDelay();
 			if (delay >= 0)
 				addEventIn(delay, null, null, i, null);
@@ -290,12 +325,10 @@ public abstract class Engine
 
 
 	/**
-	 * Private method that loads the schedule of each protocol, and then
-	 * applies them on all nodes.
+	 * Loads the schedules of each protocol.
 	 */
-	private void scheduleProtocols() {
-		// Load protocol schedules
-		String[] protocolNames = Configuration.getNames(PAR_PROTOCOL);
+	void loadProtocolSchedules() {
+		protocolNames = Configuration.getNames(PAR_PROTOCOL);
 		protocolSchedules = new Schedule[protocolNames.length][];
 
 		// Load the schedules of each protocol
@@ -322,7 +355,15 @@ public abstract class Engine
 			}
 		}
 
-		// Schedule protocols for all nodes
+	}
+
+
+	/**
+	 * Private method that loads the schedule of each protocol, and then
+	 * applies them on all nodes.
+	 */
+	private void scheduleProtocols() {
+		loadProtocolSchedules();
 		for (int i = 0; i < Network.size(); i++) {
 			Node node = Network.get(i);
 			scheduleProtocols(node);
@@ -379,6 +420,93 @@ public abstract class Engine
 
 
 	protected abstract void addEventAt(long time, Address src, Node node, int pid, Object event);
+
+
+	/**
+	 * Delivers a (non-control) event to its destination protocol, if the
+	 * destination node is up. {@link Schedule} events trigger
+	 * {@link Protocol#nextCycle(int)}, and are scheduled again for the next
+	 * cycle; cancelled {@link Timer}s are dropped; all other events (including
+	 * the events of expired timers) are passed to
+	 * {@link Protocol#processEvent(Address, Object)}.
+	 *
+	 * @param ev   the event to be delivered
+	 * @param time the current time
+	 */
+	protected void deliver(Event ev, long time) {
+		Object event = ev.event;
+		if (event instanceof Timer) {
+			if (!((Timer) event).expire())
+				return;
+			event = ((Timer) event).event;
+		}
+		if (!ev.node.isUp())
+			return;
+		//      CommonState.setPid(pid);  // XXX try to entirely avoid CommonState
+		//      CommonState.setNode(ev.node);
+		int pid = ev.pid;
+		Protocol prot = ev.node.getProtocol(pid);
+		if (event instanceof Schedule) {
+			prot.nextCycle(((Schedule) event).schedId);
+
+			long delay = prot.nextDelay();
+			if (delay == 0)
+				delay = ((Schedule) event).nextDelay(time);
+
+			if (delay > 0)
+				addEventIn(delay, null, ev.node, pid, event);
+		} else // call Protocol.processEvent()
+			prot.processEvent(ev.src, event);
+	}
+
+
+	/**
+	 * Called when a pending {@link Timer} is cancelled. Its event is left in
+	 * the event queue, and dropped when its time comes; engines may override
+	 * this method to purge such events in bulk.
+	 *
+	 * @param timer the cancelled timer
+	 */
+	protected void timerCancelled(Timer timer) {
+	}
+
+
+	/**
+	 * Called when a node becomes {@link Fallible#DEAD}. Its pending events are
+	 * left in the event queues, and dropped when their time comes; engines may
+	 * override this method to purge such events in bulk, so that the node and
+	 * its protocols can be garbage collected.
+	 *
+	 * @param node the node that died
+	 */
+	protected void nodeKilled(Node node) {
+	}
+
+
+	/**
+	 * Accounts for new purgeable events (see {@link #PURGEABLE}), and tells
+	 * whether they are now numerous enough to be purged, in which case the
+	 * count is reset.
+	 *
+	 * @param events the (possibly estimated) number of new purgeable events
+	 * @return true if the caller should purge its event queues
+	 */
+	protected boolean addGarbage(double events) {
+		garbage += events;
+		if (garbage < PURGE_THRESHOLD || 2 * garbage <= pendingEvents())
+			return false;
+		garbage = 0;
+		return true;
+	}
+
+
+	/**
+	 * Estimates the number of pending events of a node that just died, as the
+	 * average number of pending events per node.
+	 */
+	protected double pendingEventsPerNode() {
+		return pendingEvents() / (Network.size() + 1.0);
+	}
 	public abstract long pendingEvents();
 
 	public abstract void blockingInitializerStart();
@@ -405,6 +533,17 @@ public abstract class Engine
 		nextlog = 0;
 
 		// initialization
+		String snapshot = Configuration.getString(PREFIX+"."+PAR_RESTORE, null);
+		if (snapshot != null) {
+			System.err.println("Engine: restoring from "+snapshot);
+			createHeaps();
+			try {
+				restore(snapshot);
+			} catch (IOException | ClassNotFoundException e) {
+				throw new IllegalParameterException(PREFIX+"."+PAR_RESTORE, "Cannot read snapshot: "+e);
+			}
+			return;
+		}
 		System.err.println("Engine: resetting");  // XXX: change to debug() or notify()
 		Network.reset();
 		createHeaps();
@@ -414,22 +553,51 @@ public abstract class Engine
 	}
 
 
+	/**
+	 * Writes a snapshot of the experiment to <code>file</code>, to be resumed
+	 * later with parameter {@value #PAR_RESTORE}. Called by {@link Checkpoint};
+	 * engines may take the snapshot at the next point where the experiment is
+	 * in a consistent state.
+	 *
+	 * @throws IllegalStateException if the engine does not support checkpoints
+	 */
+	protected void checkpoint(String file) {
+		throw new IllegalStateException(getClass().getName()+" does not support checkpoints");
+	}
+
+
+	/**
+	 * Restores the network and the pending events of an experiment from a
+	 * snapshot written by {@link #checkpoint(String)}, instead of running the
+	 * initializers and scheduling the controls and protocols. Called by
+	 * {@link #startExperiment()}, once the event queues are created.
+	 *
+	 * @throws IOException if the snapshot cannot be read
+	 * @throws ClassNotFoundException if the snapshot refers to unknown classes
+	 */
+	protected void restore(String file) throws IOException, ClassNotFoundException {
+		throw new IllegalParameterException(PREFIX+"."+PAR_RESTORE, getClass().getName()+" does not support checkpoints");
+	}
+
+
 	public static Engine instance() {
-		if (instance == null) {
-			switch (getType()) {
+		SimulationContext context = SimulationContext.current();
+		if (context.engine == null) {
+			switch (context.type) {
 			case SIM:
-				instance = new EngineSim();
+				context.engine = new EngineSim();
 				break;
 			case EMU:
-				instance = new EngineNet();
+				context.engine = new EngineNet();
 				break;
 			case NET:
-				instance = new EngineNet();
+				context.engine = new EngineNet();
 				break;
 			case SIM_CUSTOM:
+				String engineName = Configuration.getString(PREFIX + "." + PAR_CUSTOM_SIM_ENGINE_CLASS);
 				try {
 				Class<?> c = Class.forName(engineName);
-				instance = (Engine) c.getDeclaredConstructor().newInstance();
+				context.engine = (Engine) c.getDeclaredConstructor().newInstance();
 				} catch (Exception e) {
 					throw new IllegalParameterException(PREFIX + "." + PAR_CUSTOM_SIM_ENGINE_CLASS, engineName);
 				}  
@@ -439,7 +607,7 @@ public abstract class Engine
 			}
 		}
 
-		return instance;
+		return context.engine;
 	}
 
 
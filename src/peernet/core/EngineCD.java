@@ -0,0 +1,453 @@
+package peernet.core;
+
+import java.util.ArrayList;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+import peernet.config.Configuration;
+import peernet.config.IllegalParameterException;
+import peernet.transport.Address;
+import peernet.util.ExtendedRandom;
+
+
+/**
+ * Cycle-driven SIM engine. Select it with <code>engine.mode simcustom</code>
+ * and <code>engine.simengine peernet.core.EngineCD</code>.
+ * <p>
+ * Protocol {@link Schedule}s do not go through the event queue. Instead, at
+ * each time point of a schedule, the engine sweeps all the nodes that are up,
+ * calling {@link Protocol#nextCycle(int)} on each of them. Nodes are swept in
+ * network order, or in a new random order for every sweep if
+ * {@value #PAR_SHUFFLE} is set. As all nodes run at the time points of the
+ * schedule, the <code>randstart</code> option of schedules and
+ * {@link Protocol#nextDelay()} are ignored.
+ * <p>
+ * At each time point, the engine first executes the controls, then the sweeps
+ * (in the order of the protocols and schedules in the configuration), and then
+ * the other events, i.e., messages and events scheduled by the protocols,
+ * including those sent with no delay during the sweeps. Nodes added during
+ * the experiment take part in the sweeps that follow.
+ * <p>
+ * If {@value #PAR_THREADS} is greater than one, the sweeps of protocols
+ * implementing {@link NodeLocal} are split across that many threads. Each
+ * thread has its own source of randomness, and the events sent by each thread
+ * are queued in thread order after the sweep, so results are deterministic for
+ * a given seed and number of threads.
+ */
+public class EngineCD extends Engine
+{
+	private static final String PREFIX = "engine";
+
+	/**
+	 * If present, nodes are swept in a new random order at each sweep.
+	 * Otherwise they are swept in network order.
+	 *
+	 * @config
+	 */
+	private static final String PAR_SHUFFLE = "shuffle";
+
+	/**
+	 * The number of threads running the sweeps of {@link NodeLocal} protocols.
+	 * Defaults to 1, i.e., sequential sweeps.
+	 *
+	 * @config
+	 */
+	private static final String PAR_THREADS = "threads";
+
+	/**
+	 * The periodic execution of a protocol, according to one of its schedules.
+	 */
+	private static final class Sweep
+	{
+		final int pid;
+		final Schedule schedule;
+		/** Time of the next sweep, Long.MAX_VALUE if none */
+		long next;
+
+		Sweep(int pid, Schedule schedule)
+		{
+			this.pid = pid;
+			this.schedule = schedule;
+			this.next = schedule.from;
+		}
+	}
+
+	/** Messages and other events sent to nodes */
+	private EventQueue simHeap = null;
+
+	/** Queue of control events */
+	private EventQueue controlHeap = null;
+
+	/** The sweeps, in configuration order */
+	private Sweep[] sweeps = null;
+
+	/** Whether nodes are swept in random order */
+	private boolean shuffle;
+
+	/** The nodes of the current sweep, in sweep order */
+	private Node[] sweepNodes = new Node[0];
+
+	/** Number of nodes in the current sweep */
+	private int sweepSize;
+
+	/** Protocol and schedule of the current (parallel) sweep */
+	private int sweepPid, sweepSchedId;
+
+	/** Time of the current (parallel) sweep */
+	private long sweepTime;
+
+	/** Threads running parallel sweeps, null if sweeps are sequential */
+	private LogicalProcess[] workers = null;
+
+	/** Events sent by each thread during the current parallel sweep */
+	private Events[] outboxes = null;
+
+	/**
+	 * Timers cancelled and nodes killed by each thread during the current
+	 * parallel sweep, accounted for when merging
+	 */
+	private int[] cancelledTimers = null, killedNodes = null;
+
+	/** The generator in CommonState.r before the experiment started */
+	private ExtendedRandom globalRandom = null;
+
+	/** Tells the threads to terminate */
+	private boolean stopping = false;
+
+	/** Synchronizes the main thread with the sweeping threads */
+	private CyclicBarrier barrier = null;
+
+
+
+	@Override
+	protected void createHeaps() {
+		shuffle = Configuration.contains(PREFIX + "." + PAR_SHUFFLE);
+		int threads = Configuration.getInt(PREFIX + "." + PAR_THREADS, 1);
+		if (threads < 1)
+			throw new IllegalParameterException(PREFIX + "." + PAR_THREADS, "At least one thread is required");
+
+		simHeap = EngineSim.createEventQueue();
+		controlHeap = new Heap();
+		if (threads > 1) {
+			// Processes draw from substreams of the global generator, so they depend on the seed only
+			globalRandom = CommonState.getRandom();
+			workers = new LogicalProcess[threads];
+			outboxes = new Events[threads];
+			cancelledTimers = new int[threads];
+			killedNodes = new int[threads];
+			for (int i = 0; i < threads; i++) {
+				final int index = i;
+				workers[i] = new LogicalProcess(i, globalRandom, () -> runWorker(index));
+				outboxes[i] = new Events(1);
+			}
+			CommonState.setRandom(new ProcessRandom(globalRandom));
+		}
+	}
+
+
+
+	@Override
+	public void startExperiment() {
+		super.startExperiment();
+
+		ArrayList<Sweep> list = new ArrayList<Sweep>();
+		for (int pid = 0; pid < protocolSchedules.length; pid++)
+			for (Schedule schedule : protocolSchedules[pid])
+				if (schedule.from >= 0 && schedule.step > 0)
+					list.add(new Sweep(pid, schedule));
+		sweeps = list.toArray(new Sweep[list.size()]);
+		System.err.println("Engine: " + sweeps.length + " protocol schedules, " + (workers == null ? 1 : workers.length) + " threads" + (shuffle ? ", shuffled" : ""));
+
+		if (workers != null) {
+			CommonState.setProcessTime(true);
+			barrier = new CyclicBarrier(workers.length + 1);
+			for (LogicalProcess worker : workers)
+				worker.start();
+		}
+
+		try {
+			boolean exit = false;
+			while (!exit)
+				exit = executeNext();
+		} finally {
+			if (workers != null) {
+				// Release the threads waiting for the next sweep
+				stopping = true;
+				await();
+				CommonState.setProcessTime(false);
+				CommonState.setRandom(globalRandom);
+			}
+		}
+
+		// analysis after the simulation
+		for (int j = 0; j < controls.length; ++j) {
+			if (controlSchedules[j].fin)
+				controls[j].execute();
+		}
+	}
+
+
+
+	/**
+	 * Executes the next time point: its controls, then its sweeps, and then its
+	 * events.
+	 *
+	 * @return true if the execution should be stopped.
+	 */
+	private boolean executeNext() {
+		long next = simHeap.getNextTime();
+		long nextControl = controlHeap.getNextTime();
+		long time = Long.MAX_VALUE;
+		if (next != Long.MAX_VALUE)
+			time = next >> rbits;
+		if (nextControl != Long.MAX_VALUE)
+			time = Math.min(time, nextControl >> rbits);
+		for (Sweep sweep : sweeps)
+			time = Math.min(time, sweep.next);
+		if (time == Long.MAX_VALUE) {
+			System.err.println("Engine: queue is empty, quitting" + " at time " + CommonState.getTime());
+			return true;
+		}
+
+		if (time >= nextlog) {
+			System.err.println("Current time: " + time);
+			do {
+				nextlog += logtime;
+			}
+			while (time >= nextlog);
+		}
+		if (time >= endtime) {
+			System.err.println("Engine: reached end time, quitting, leaving " + pendingEvents() + " unprocessed events in the queue");
+			return true;
+		}
+		CommonState.setTime(time);
+
+		// Controls
+		while (controlHeap.size() > 0 && (controlHeap.getNextTime() >> rbits) == time) {
+			int pid = controlHeap.removeFirst().pid;
+			boolean ret = controls[pid].execute();
+			long delay = controlSchedules[pid].nextDelay(time);
+			if (delay >= 0)
+				addEventIn(delay, null, null, pid, null);
+			if (ret)
+				return true;
+		}
+
+		// Sweeps
+		for (Sweep sweep : sweeps) {
+			if (sweep.next != time)
+				continue;
+			sweep(sweep, time);
+			long delay = sweep.schedule.nextDelay(time);
+			sweep.next = delay > 0 ? time + delay : Long.MAX_VALUE;
+		}
+
+		// Events, including those sent with no delay in the meantime
+		while (simHeap.size() > 0 && (simHeap.getNextTime() >> rbits) == time) {
+			Events evs = simHeap.removeMany();
+			for (int i = 0; i < evs.size; i++)
+				deliver(evs.array[i], time);
+		}
+		return false;
+	}
+
+
+
+	/**
+	 * Calls {@link Protocol#nextCycle(int)} on all nodes that are up, for the
+	 * given sweep. The nodes to sweep are fixed beforehand, so nodes added or
+	 * removed during the sweep do not disturb it.
+	 */
+	private void sweep(Sweep sweep, long time) {
+		int n = Network.size();
+		if (sweepNodes.length < n)
+			sweepNodes = new Node[n];
+		for (int i = 0; i < n; i++)
+			sweepNodes[i] = Network.get(i);
+		if (shuffle) {
+			for (int i = n - 1; i > 0; i--) {
+				int j = CommonState.r.nextInt(i + 1);
+				Node swap = sweepNodes[i];
+				sweepNodes[i] = sweepNodes[j];
+				sweepNodes[j] = swap;
+			}
+		}
+		sweepSize = n;
+
+		int pid = sweep.pid;
+		int schedId = sweep.schedule.schedId;
+		if (workers != null && n > 0 && sweepNodes[0].getProtocol(pid) instanceof NodeLocal) {
+			sweepPid = pid;
+			sweepSchedId = schedId;
+			sweepTime = time;
+			await();
+			await();
+			mergeOutboxes();
+		} else {
+			for (int i = 0; i < n; i++) {
+				Node node = sweepNodes[i];
+				if (node.isUp())
+					node.getProtocol(pid).nextCycle(schedId);
+			}
+		}
+		for (int i = 0; i < n; i++)
+			sweepNodes[i] = null;
+	}
+
+
+
+	/**
+	 * Queues the events sent by the threads during a parallel sweep, in thread
+	 * order, after checking that none of them failed. Then accounts for the
+	 * timers they cancelled and the nodes they killed, possibly purging the
+	 * event queue.
+	 */
+	private void mergeOutboxes() {
+		for (LogicalProcess worker : workers) {
+			Throwable t = worker.failure;
+			if (t instanceof RuntimeException)
+				throw (RuntimeException) t;
+			else if (t instanceof Error)
+				throw (Error) t;
+			else if (t != null)
+				throw new RuntimeException(t);
+		}
+		for (Events box : outboxes) {
+			for (int i = 0; i < box.size; i++) {
+				Event e = box.array[i];
+				simHeap.add(e.time, e.src, e.node, e.pid, e.event);
+				e.src = null;
+				e.node = null;
+				e.event = null;
+			}
+			box.clear();
+		}
+		double garbage = 0;
+		for (int i = 0; i < workers.length; i++) {
+			garbage += cancelledTimers[i] + killedNodes[i] * pendingEventsPerNode();
+			cancelledTimers[i] = 0;
+			killedNodes[i] = 0;
+		}
+		if (garbage > 0 && addGarbage(garbage))
+			simHeap.removeIf(PURGEABLE);
+	}
+
+
+
+	/**
+	 * Body of sweeping thread <code>index</code>: for each parallel sweep, runs
+	 * the cycle of its share of the nodes, a contiguous range of the sweep
+	 * order.
+	 */
+	private void runWorker(int index) {
+		LogicalProcess worker = workers[index];
+		while (true) {
+			await();
+			if (stopping)
+				return;
+
+			try {
+				worker.time = sweepTime;
+				int n = sweepSize;
+				int from = (int) ((long) n * index / workers.length);
+				int to = (int) ((long) n * (index + 1) / workers.length);
+				for (int i = from; i < to; i++) {
+					Node node = sweepNodes[i];
+					if (node.isUp())
+						node.getProtocol(sweepPid).nextCycle(sweepSchedId);
+				}
+			} catch (Throwable t) {
+				worker.failure = t;
+			}
+			await();
+		}
+	}
+
+
+
+	/**
+	 * Waits for all sweeping threads and the main thread to reach the barrier.
+	 */
+	private void await() {
+		try {
+			barrier.await();
+		} catch (InterruptedException | BrokenBarrierException e) {
+			throw new IllegalStateException("Cycle-driven engine interrupted", e);
+		}
+	}
+
+
+
+	/**
+	 * Queues an event. Protocol {@link Schedule} events are dropped, as the
+	 * sweeps take care of them.
+	 */
+	@Override
+	protected void addEventAt(long time, Address src, Node node, int pid, Object event) {
+		if (node != null && event instanceof Schedule)
+			return;
+		time = (time << rbits) | CommonState.r.nextInt(1 << rbits);
+		if (node == null) // control event
+			controlHeap.add(time, src, node, (byte) pid, event);
+		else if (Thread.currentThread() instanceof LogicalProcess) {
+			Event e = outboxes[((LogicalProcess) Thread.currentThread()).index].append();
+			e.time = time;
+			e.src = src;
+			e.node = node;
+			e.pid = (byte) pid;
+			e.event = event;
+		} else
+			simHeap.add(time, src, node, (byte) pid, event);
+	}
+
+
+
+	@Override
+	public long pendingEvents() {
+		return simHeap.size() + controlHeap.size();
+	}
+
+
+
+	/**
+	 * Counts cancelled timers, and purges the event queue when they become too
+	 * many, as {@link EngineSim} does. Timers cancelled during parallel sweeps
+	 * are only counted by their thread, and accounted for when merging.
+	 */
+	@Override
+	protected void timerCancelled(Timer timer) {
+		Thread thread = Thread.currentThread();
+		if (thread instanceof LogicalProcess)
+			cancelledTimers[((LogicalProcess) thread).index]++;
+		else if (addGarbage(1))
+			simHeap.removeIf(PURGEABLE);
+	}
+
+
+
+	/**
+	 * Counts the pending events of killed nodes, as for timers.
+	 */
+	@Override
+	protected void nodeKilled(Node node) {
+		Thread thread = Thread.currentThread();
+		if (thread instanceof LogicalProcess)
+			killedNodes[((LogicalProcess) thread).index]++;
+		else if (addGarbage(pendingEventsPerNode()))
+			simHeap.removeIf(PURGEABLE);
+	}
+
+
+
+	@Override
+	public void blockingInitializerStart() {
+		throw new RuntimeException("Blocking initializers not applicable to SIM mode");
+	}
+
+
+
+	@Override
+	public void blockingInitializerDone() {
+		throw new RuntimeException("Blocking initializers not applicable to SIM mode");
+	}
+}
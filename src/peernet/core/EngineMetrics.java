@@ -0,0 +1,337 @@
+package peernet.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import peernet.Simulator;
+
+
+/**
+ * Counters of the hot path of {@link EngineSim}, enabled by
+ * {@value Simulator#PAR_SIM_METRICS}: events dispatched per second, ratio of
+ * simulation time to wall-clock time, size and high-water mark of the event
+ * queue, events per protocol and per event class, and execution counts and
+ * times of controls.
+ * <p>
+ * The counters are published as the MXBean
+ * <code>peernet:type=EngineMetrics,name=</code><em>experience name</em>, and
+ * printed periodically on the standard error as a line made of
+ * <code>Metrics: </code> followed by a JSON object. When metrics are disabled,
+ * no instance exists, and the engine only pays for a null check per event.
+ * <p>
+ * Counters are updated by the engine thread only; JMX clients read them
+ * without synchronization, so their values may be slightly stale.
+ */
+public class EngineMetrics implements EngineMetricsMXBean
+{
+	private final String[] protocolNames;
+
+	private final String[] controlNames;
+
+	/** The wall-clock period of the log lines in nanoseconds, 0 if none */
+	private final long period;
+
+	private final long[] protocolEvents;
+
+	private final long[] controlRuns;
+
+	private final long[] controlNanos;
+
+	/** Counters per event class, as one-element arrays to avoid boxing */
+	private final Map<Class<?>, long[]> classEvents = new ConcurrentHashMap<>();
+
+	private long events = 0;
+
+	private long time;
+
+	private long queueSize = 0;
+
+	private long queuePeak = 0;
+
+	// ---------------------------------------------------------------------
+	// Sampling
+	// ---------------------------------------------------------------------
+
+	private long sampleNanos;
+
+	private long sampleEvents = 0;
+
+	private long sampleTime;
+
+	private long nextLog;
+
+	private volatile double eventRate = 0;
+
+	private volatile double timeRatio = 0;
+
+	private ObjectName name = null;
+
+
+
+	/**
+	 * @param protocolNames the configuration names of the protocols, by pid
+	 * @param controlNames the configuration names of the controls
+	 * @param period the period of the log lines in milliseconds, 0 for none
+	 */
+	EngineMetrics(String[] protocolNames, String[] controlNames, long period)
+	{
+		this.protocolNames = protocolNames;
+		this.controlNames = controlNames;
+		this.period = period * 1000000;
+		protocolEvents = new long[protocolNames.length];
+		controlRuns = new long[controlNames.length];
+		controlNanos = new long[controlNames.length];
+		time = sampleTime = CommonState.getTime();
+		sampleNanos = System.nanoTime();
+		nextLog = sampleNanos + this.period;
+	}
+
+
+
+	/**
+	 * Counts an event delivered to protocol <code>pid</code>. Expired
+	 * {@link Timer}s are counted by the class of their event.
+	 */
+	final void event(int pid, Object event)
+	{
+		events++;
+		protocolEvents[pid]++;
+		if (event instanceof Timer)
+			event = ((Timer) event).event;
+		Class<?> c = event == null ? Void.class : event.getClass();
+		long[] count = classEvents.get(c);
+		if (count == null)
+			classEvents.put(c, count = new long[1]);
+		count[0]++;
+	}
+
+
+
+	/**
+	 * Counts an execution of a control, which took <code>nanos</code>
+	 * nanoseconds.
+	 */
+	final void control(int index, long nanos)
+	{
+		events++;
+		controlRuns[index]++;
+		controlNanos[index] += nanos;
+	}
+
+
+
+	/**
+	 * Called at the start of each batch, with the current time and number of
+	 * pending events. Prints a log line if the period has elapsed.
+	 */
+	final void batch(long time, long pending)
+	{
+		this.time = time;
+		queueSize = pending;
+		if (pending > queuePeak)
+			queuePeak = pending;
+		if (period > 0) {
+			long now = System.nanoTime();
+			if (now >= nextLog) {
+				sample(now);
+				nextLog = now + period;
+				System.err.println("Metrics: " + toJSON());
+			}
+		}
+	}
+
+
+
+	/**
+	 * Computes the rates over the time elapsed since the last sample.
+	 */
+	private void sample(long now)
+	{
+		double seconds = (now - sampleNanos) / 1e9;
+		if (seconds > 0) {
+			eventRate = (events - sampleEvents) / seconds;
+			timeRatio = (time - sampleTime) / seconds;
+		}
+		sampleNanos = now;
+		sampleEvents = events;
+		sampleTime = time;
+	}
+
+
+
+	/**
+	 * Registers the counters with the platform MBean server. Failures are
+	 * reported, but do not stop the experiment.
+	 */
+	void register(String experienceName)
+	{
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			name = new ObjectName("peernet:type=EngineMetrics,name=" + ObjectName.quote(experienceName));
+			server.registerMBean(this, name);
+		}
+		catch (JMException e) {
+			System.err.println("Engine: cannot register metrics with JMX: " + e);
+			name = null;
+		}
+	}
+
+
+
+	/**
+	 * Prints the final values, and unregisters the counters.
+	 */
+	void close()
+	{
+		sample(System.nanoTime());
+		System.err.println("Metrics: " + toJSON());
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			}
+			catch (JMException e) {
+				// already gone
+			}
+			name = null;
+		}
+	}
+
+
+
+	/**
+	 * Returns all counters as a single-line JSON object.
+	 */
+	public String toJSON()
+	{
+		StringBuilder s = new StringBuilder(256);
+		s.append("{\"time\":").append(time);
+		s.append(",\"events\":").append(events);
+		s.append(",\"eventRate\":").append(Math.round(eventRate));
+		s.append(",\"timeRatio\":").append(Math.round(timeRatio * 1000) / 1000.0);
+		s.append(",\"queueSize\":").append(queueSize);
+		s.append(",\"queuePeak\":").append(queuePeak);
+		append(s.append(",\"protocols\":"), getEventsPerProtocol());
+		append(s.append(",\"classes\":"), getEventsPerClass());
+		append(s.append(",\"controlRuns\":"), getControlRuns());
+		append(s.append(",\"controlTime\":"), getControlTime());
+		return s.append('}').toString();
+	}
+
+
+
+	private static void append(StringBuilder s, Map<String, ? extends Number> map)
+	{
+		s.append('{');
+		boolean first = true;
+		for (Map.Entry<String, ? extends Number> e : map.entrySet()) {
+			if (!first)
+				s.append(',');
+			first = false;
+			s.append('"').append(e.getKey().replace("\\", "\\\\").replace("\"", "\\\"")).append("\":").append(e.getValue());
+		}
+		s.append('}');
+	}
+
+
+
+	// ---------------------------------------------------------------------
+	// EngineMetricsMXBean
+	// ---------------------------------------------------------------------
+
+	@Override
+	public long getTime()
+	{
+		return time;
+	}
+
+
+
+	@Override
+	public long getEvents()
+	{
+		return events;
+	}
+
+
+
+	@Override
+	public double getEventRate()
+	{
+		return eventRate;
+	}
+
+
+
+	@Override
+	public double getTimeRatio()
+	{
+		return timeRatio;
+	}
+
+
+
+	@Override
+	public long getQueueSize()
+	{
+		return queueSize;
+	}
+
+
+
+	@Override
+	public long getQueuePeak()
+	{
+		return queuePeak;
+	}
+
+
+
+	@Override
+	public Map<String, Long> getEventsPerProtocol()
+	{
+		Map<String, Long> map = new LinkedHashMap<>();
+		for (int i = 0; i < protocolNames.length; i++)
+			map.put(protocolNames[i], protocolEvents[i]);
+		return map;
+	}
+
+
+
+	@Override
+	public Map<String, Long> getEventsPerClass()
+	{
+		Map<String, Long> map = new TreeMap<>();
+		for (Map.Entry<Class<?>, long[]> e : classEvents.entrySet())
+			map.put(e.getKey().getName(), e.getValue()[0]);
+		return map;
+	}
+
+
+
+	@Override
+	public Map<String, Long> getControlRuns()
+	{
+		Map<String, Long> map = new LinkedHashMap<>();
+		for (int i = 0; i < controlNames.length; i++)
+			map.put(controlNames[i], controlRuns[i]);
+		return map;
+	}
+
+
+
+	@Override
+	public Map<String, Double> getControlTime()
+	{
+		Map<String, Double> map = new LinkedHashMap<>();
+		for (int i = 0; i < controlNames.length; i++)
+			map.put(controlNames[i], controlNanos[i] / 1e6);
+		return map;
+	}
+}
@@ -0,0 +1,42 @@
+package peernet.core;
+
+import java.util.Map;
+
+
+/**
+ * The management interface of {@link EngineMetrics}, through which the
+ * counters of a running experiment can be read with any JMX client, e.g.,
+ * jconsole.
+ */
+public interface EngineMetricsMXBean
+{
+	/** The current simulation time */
+	long getTime();
+
+	/** The total number of events dispatched, including control executions */
+	long getEvents();
+
+	/** Events dispatched per wall-clock second, over the last sampling period */
+	double getEventRate();
+
+	/** Simulation time units per wall-clock second, over the last sampling period */
+	double getTimeRatio();
+
+	/** The number of pending events, at the start of the last batch */
+	long getQueueSize();
+
+	/** The largest number of pending events seen at the start of a batch */
+	long getQueuePeak();
+
+	/** The number of events delivered to each protocol, by protocol name */
+	Map<String, Long> getEventsPerProtocol();
+
+	/** The number of events delivered, by event class */
+	Map<String, Long> getEventsPerClass();
+
+	/** The number of executions of each control, by control name */
+	Map<String, Long> getControlRuns();
+
+	/** The total execution time of each control in milliseconds, by control name */
+	Map<String, Double> getControlTime();
+}
@@ -4,6 +4,13 @@
  */
 package peernet.core;
 
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+import peernet.config.Configuration;
+import peernet.config.IllegalParameterException;
 import peernet.dynamics.BootstrapClient;
 import peernet.dynamics.BootstrapServer.BootstrapMessage;
 import peernet.transport.Address;
@@ -13,34 +20,115 @@ import peernet.util.CountLatch;
 
 
 public class EngineNet extends Engine {
-    Heap controlHeap = null;
+    /**
+     * The kind of threads that run the event loop of each node, and the
+     * receive loop of each transport: <code>platform</code> (the default) or
+     * <code>virtual</code>. Virtual threads require Java 21 or later; they
+     * make it possible to emulate many more nodes per machine, as waiting
+     * nodes then only cost some memory.
+     *
+     * @config
+     */
+    private static final String PAR_THREADS = "engine.threads";
+
+    /**
+     * How the events of nodes are executed: <code>threads</code> (the
+     * default), by a thread per node, or <code>sharded</code>, by a fixed
+     * number of shard threads (see {@value #PAR_SHARDS}). Each shard owns a
+     * subset of the nodes, whose events it merges in a single queue; as the
+     * events of a node are always executed by its own shard, nodes need not
+     * be locked. This makes EMU scale with the number of cores rather than
+     * with the number of nodes. Only available in EMU mode: in NET mode,
+     * components such as {@link BootstrapClient} modify nodes from the
+     * listening threads of transports, under the node lock.
+     *
+     * @config
+     */
+    private static final String PAR_SCHEDULER = "engine.scheduler";
+
+    /**
+     * The number of shard threads of the <code>sharded</code> scheduler.
+     * Defaults to the number of available processors.
+     *
+     * @config
+     */
+    private static final String PAR_SHARDS = "engine.shards";
+
+    TimedHeap controlHeap = null;
+
+    /** The shards of the sharded scheduler, or null for a thread per node */
+    private Shard[] shards = null;
+
+    /**
+     * Safepoint of the thread per node scheduler: node threads hold its read
+     * lock while executing an event, and controls its write lock, which they
+     * get as soon as the events in progress complete. New events wait for the
+     * control to complete.
+     */
+    private final StampedLock safepoint = new StampedLock();
 
     private CountLatch blockingInitializers = new CountLatch(0);
 
 
     @Override
     protected void createHeaps() {
-        // one heap per node
-        for (int n = 0; n < Network.size(); n++)
-            Network.get(n).setHeap(new Heap());
+        String scheduler = Configuration.getString(PAR_SCHEDULER, "threads");
+        if (scheduler.equals("sharded")) {
+            if (getType() == Type.NET)
+                throw new IllegalParameterException(PAR_SCHEDULER, "The sharded scheduler does not lock nodes, so it is only available in EMU mode");
+            // one heap per shard, shared by its nodes
+            shards = new Shard[Configuration.getInt(PAR_SHARDS, Runtime.getRuntime().availableProcessors())];
+            if (shards.length < 1)
+                throw new IllegalParameterException(PAR_SHARDS, "There should be at least one shard");
+            for (int i = 0; i < shards.length; i++)
+                shards[i] = new Shard();
+            for (int n = 0; n < Network.size(); n++)
+                Network.get(n).setHeap(shards[n % shards.length].heap);
+        } else if (scheduler.equals("threads")) {
+            // one heap per node
+            for (int n = 0; n < Network.size(); n++)
+                Network.get(n).setHeap(new TimedHeap());
+        } else
+            throw new IllegalParameterException(PAR_SCHEDULER, "Possible values: threads, sharded");
 
         // and one heap for all controls together
-        controlHeap = new Heap();
+        controlHeap = new TimedHeap();
+    }
+
+
+    /**
+     * Returns the factory of the threads defined by {@value #PAR_THREADS}.
+     */
+    private static ThreadFactory threadFactory() {
+        String kind = Configuration.getString(PAR_THREADS, "platform");
+        if (kind.equals("platform"))
+            return Thread::new;
+        if (!kind.equals("virtual"))
+            throw new IllegalParameterException(PAR_THREADS, "Possible values: platform, virtual");
+
+        // Thread.ofVirtual().factory(), looked up so that the code still
+        // builds and runs on Java versions without virtual threads
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (NoSuchMethodException | ClassNotFoundException | IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalParameterException(PAR_THREADS, "Virtual threads are not supported by this Java runtime (Java 21 or later required)");
+        }
     }
 
 
     @Override
     public void startExperiment() {
         super.startExperiment();
+        ThreadFactory threads = threadFactory();
 
         // If we are in NET mode, start a network listener per node
         // (or more network listeners, if nodes define multiple Transports)
         if (getType() == Type.NET) {
             for (int n = 0; n < Network.size(); n++) {
                 Node node = Network.get(n);
-                for (int j = 0; j < node.getTransports(); j++) {
-                    new ListeningThread(node, node.getHeap(), (TransportNet) node.getTransport(j)).start();
-                }
+                for (int j = 0; j < node.getTransports(); j++)
+                    ((TransportNet) node.getTransport(j)).listen(packet -> deliver(node, packet), threads);
             }
         }
 
@@ -50,14 +138,19 @@ public class EngineNet extends Engine {
         // Now let time start rolling!
         CommonState.timeStartsNow();
 
-        // Either in NET or EMU mode, start a thread per node.
-        for (int n = 0; n < Network.size(); n++) {
-            Node node = Network.get(n);
-            new ExecutionThread(node.getHeap()).start();
+        // Either in NET or EMU mode, start a thread per node, or per shard.
+        if (shards != null) {
+            for (int i = 0; i < shards.length; i++)
+                new Thread(shards[i], "Shard-" + i).start();
+        } else {
+            for (int n = 0; n < Network.size(); n++) {
+                Node node = Network.get(n);
+                threads.newThread(new ExecutionLoop((TimedHeap) node.getHeap())).start();
+            }
         }
 
         // And create a single thread for control messages
-        new ExecutionThread(controlHeap).start();
+        new Thread(new ExecutionLoop(controlHeap)).start();
 
 //
 //    // analysis after the simulation
@@ -76,21 +169,23 @@ public class EngineNet extends Engine {
 
         time = (time << rbits) | CommonState.r.nextInt(1 << rbits);
 
-        Heap heap = null;
+        TimedHeap heap = null;
         if (node == null)  // control event
             heap = controlHeap;
         else
-            heap = node.getHeap();
+            heap = (TimedHeap) node.getHeap();
 
-        synchronized (heap) {
-            heap.add(time, src, node, (byte) pid, event);
-            heap.notify();
-        }
+        heap.put(time, src, node, (byte) pid, event);
     }
 
 
     public long pendingEvents() {
         int events = 0;
+        if (shards != null) {
+            for (Shard shard : shards)
+                events += shard.heap.size();
+            return events;
+        }
         for (int n = 0; n < Network.size(); n++)
             events += Network.get(n).getHeap().size();
         return events;
@@ -111,13 +206,17 @@ public class EngineNet extends Engine {
         int pid = ev.pid;
         if (ev.node == null)  // XXX ugly way to identify control events
         {
-            for (int n = 0; n < Network.size(); n++) //XXX The network size might change in the meantime
-                Network.get(n).acquireLock();
-
-            boolean ret = controls[pid].execute();
-
-            for (int n = 0; n < Network.size(); n++)
-                Network.get(n).releaseLock();
+            boolean ret;
+            if (controls[pid] instanceof ReadOnlyControl)
+                ret = controls[pid].execute(); // concurrently with the nodes
+            else {
+                long stamp = stopNodes();
+                try {
+                    ret = controls[pid].execute();
+                } finally {
+                    resumeNodes(stamp);
+                }
+            }
 
             long delay = controlSchedules[pid].nextDelay(time);
             if (delay >= 0)
@@ -130,9 +229,16 @@ public class EngineNet extends Engine {
             Protocol prot = ev.node.getProtocol(pid);
 
             if (ev.event instanceof Schedule) {
-                ev.node.acquireLock();
+                long stamp = 0;
+                if (shards == null) {
+                    stamp = safepoint.readLock();
+                    ev.node.acquireLock();
+                }
                 prot.nextCycle(((Schedule) ev.event).schedId);
-                ev.node.releaseLock();
+                if (shards == null) {
+                    ev.node.releaseLock();
+                    safepoint.unlockRead(stamp);
+                }
 
                 long delay = prot.nextDelay();
                 if (delay == 0)
@@ -142,15 +248,58 @@ public class EngineNet extends Engine {
                     addEventAt(time + delay, null, ev.node, pid, ev.event);
             } else // call Protocol.processEvent()
             {
-                ev.node.acquireLock();
-                prot.processEvent(ev.src, ev.event);
-                ev.node.releaseLock();
+                long stamp = 0;
+                if (shards == null) {
+                    stamp = safepoint.readLock();
+                    ev.node.acquireLock();
+                }
+                if (!(ev.event instanceof Timer))
+                    prot.processEvent(ev.src, ev.event);
+                else if (((Timer) ev.event).expire())
+                    prot.processEvent(ev.src, ((Timer) ev.event).event);
+                if (shards == null) {
+                    ev.node.releaseLock();
+                    safepoint.unlockRead(stamp);
+                }
             }
         }
         return false;
     }
 
 
+    /**
+     * Brings all nodes to a quiescent point, by waiting for the events in
+     * progress to complete and holding back the next ones, for a control to
+     * run. The node locks are still taken by node threads, for the sake of
+     * the components that lock a node from other threads (such as
+     * {@link BootstrapClient}), but controls no longer need to take all of
+     * them in turn.
+     *
+     * @return the stamp to pass to {@link #resumeNodes(long)}
+     */
+    private long stopNodes() {
+        if (shards == null)
+            return safepoint.writeLock();
+        // Stopping the shards is enough to stop all nodes
+        for (Shard shard : shards)
+            shard.running.lock();
+        return 0;
+    }
+
+
+    /**
+     * Lets the nodes stopped by {@link #stopNodes()} run again.
+     */
+    private void resumeNodes(long stamp) {
+        if (shards == null) {
+            safepoint.unlockWrite(stamp);
+            return;
+        }
+        for (Shard shard : shards)
+            shard.running.unlock();
+    }
+
+
     @Override
     public void blockingInitializerStart() {
         blockingInitializers.countUp();
@@ -163,68 +312,77 @@ public class EngineNet extends Engine {
     }
 
 
-    public class ExecutionThread extends Thread {
-        private Heap heap = null;
+    /**
+     * Executes the events of a heap, each at its time.
+     */
+    public class ExecutionLoop implements Runnable {
+        private TimedHeap heap = null;
 
-        public ExecutionThread(Heap heap) {
+        ExecutionLoop(TimedHeap heap) {
             this.heap = heap;
         }
 
 
         public void run() {
             boolean exit = false;
-
-            long remainingTime;
             while (!exit) {
                 Event event = null;
-                synchronized (heap) {
-                    while ((remainingTime = (heap.getNextTime() >> rbits) - CommonState.getTime()) > 0) {
-                        try {
-                            heap.wait(remainingTime);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                    event = heap.removeFirst();
+                try {
+                    event = heap.take(rbits);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    continue;
                 }
                 exit = executeNext(event);
             }
         }
-
-        public Object clone() {
-            return new Heap();
-        }
     }
 
 
-    public class ListeningThread extends Thread {
-        Node node = null;
-        Heap heap = null;
-        TransportNet transport = null;
+    /**
+     * Executes the events of the nodes of a shard, each at its time. The
+     * shard holds its {@link #running} lock while executing an event, so that
+     * controls can stop all nodes by taking the locks of all shards.
+     */
+    private class Shard implements Runnable {
+        final TimedHeap heap = new TimedHeap();
+
+        final ReentrantLock running = new ReentrantLock();
 
-        public ListeningThread(Node node, Heap heap, TransportNet transport) {
-            this.node = node;
-            this.heap = heap;
-            this.transport = transport;
-        }
 
         public void run() {
-            while (true) {
-                Packet packet = transport.receive();
-
-                assert packet != null : "packet is null!";
-                assert packet.src != null : "packet.src is null!";
-                assert packet.event != null : "packet.event is null!";
-
-                if (packet.event instanceof BootstrapMessage)
-                    BootstrapClient.report(node, (BootstrapMessage) packet.event);
-                else {
-                    synchronized (heap) {
-                        heap.add(0, packet.src, node, (byte) packet.pid, packet.event);
-                        heap.notify();
-                    }
+            boolean exit = false;
+            while (!exit) {
+                Event event = null;
+                try {
+                    event = heap.take(rbits);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    continue;
+                }
+                running.lock();
+                try {
+                    exit = executeNext(event);
+                } finally {
+                    running.unlock();
                 }
             }
         }
     }
-}
\ No newline at end of file
+
+
+    /**
+     * Adds a packet received by a transport of <code>node</code> to the heap
+     * of the node. Called by the listening threads of the transports.
+     */
+    private void deliver(Node node, Packet packet) {
+        assert packet != null : "packet is null!";
+        assert packet.src != null : "packet.src is null!";
+        assert packet.event != null : "packet.event is null!";
+
+        if (packet.event instanceof BootstrapMessage)
+            BootstrapClient.report(node, (BootstrapMessage) packet.event);
+        else
+            ((TimedHeap) node.getHeap()).put(0, packet.src, node, (byte) packet.pid, packet.event);
+    }
+}
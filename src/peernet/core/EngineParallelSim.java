@@ -0,0 +1,415 @@
+package peernet.core;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+import peernet.config.Configuration;
+import peernet.config.IllegalParameterException;
+import peernet.transport.Address;
+import peernet.transport.Transport;
+import peernet.util.ExtendedRandom;
+
+
+/**
+ * Conservative parallel SIM engine. Select it with
+ * <code>engine.mode simcustom</code> and
+ * <code>engine.simengine peernet.core.EngineParallelSim</code>.
+ * <p>
+ * Nodes are partitioned (by ID) into {@value #PAR_PARTITIONS}
+ * {@link LogicalProcess}es, each owning its own event queue (of the type
+ * defined by {@value peernet.Simulator#PAR_SIM_HEAP}), its own source of
+ * randomness and its own current time. Simulation advances in windows: if
+ * <em>T</em> is the time of the earliest pending event, all logical processes
+ * execute, in parallel, their events earlier than <em>T+L</em>, where the
+ * lookahead <em>L</em> is the minimum delay of the configured transports (see
+ * {@link Transport#minDelay()}), or the value of {@value #PAR_LOOKAHEAD}. As
+ * no message can be sent across partitions with a delay smaller than
+ * <em>L</em>, no event can arrive in the past of a logical process. Messages
+ * for other partitions are buffered until the end of the window, and then
+ * merged in a fixed order. An event violating the lookahead raises an
+ * {@link IllegalStateException}.
+ * <p>
+ * Windows never span a control event. Controls are executed by the main
+ * thread between windows, with all logical processes idle, so they can
+ * inspect and modify the whole network as usual. Controls scheduled at time
+ * <em>T</em> are executed before the node events of time <em>T</em>.
+ * <p>
+ * For a given seed and number of partitions, results are deterministic,
+ * irrespective of thread scheduling, as long as protocols only interact
+ * through messages (i.e., {@link Protocol#send} and {@link Protocol#schedule}),
+ * and do not update static or shared state.
+ */
+public class EngineParallelSim extends Engine
+{
+	private static final String PREFIX = "engine";
+
+	/**
+	 * The number of partitions (logical processes). Defaults to the number of
+	 * available processors.
+	 *
+	 * @config
+	 */
+	private static final String PAR_PARTITIONS = "partitions";
+
+	/**
+	 * Overrides the lookahead, which otherwise is the minimum delay over the
+	 * transports of the nodes. Setting it above the actual minimum delay of
+	 * messages exchanged across partitions results in an
+	 * IllegalStateException.
+	 *
+	 * @config
+	 */
+	private static final String PAR_LOOKAHEAD = "lookahead";
+
+	/** The logical processes */
+	private LogicalProcess[] processes = null;
+
+	/** Event queue of each logical process */
+	private EventQueue[] queues = null;
+
+	/** Events crossing partitions in the current window, per [source][destination] */
+	private Events[][] outboxes = null;
+
+	/** Nodes killed by each logical process in the current window */
+	private int[] killedNodes = null;
+
+	/** Queue of control events, handled by the main thread */
+	private EventQueue controlHeap = null;
+
+	/** The generator in CommonState.r before the experiment started */
+	private ExtendedRandom globalRandom = null;
+
+	/** Minimum delay of events crossing partitions */
+	private long lookahead;
+
+	/** End (exclusive) of the current window */
+	private long windowEnd;
+
+	/** Tells logical processes to terminate */
+	private boolean stopping = false;
+
+	/** Synchronizes the main thread with the logical processes */
+	private CyclicBarrier barrier = null;
+
+
+
+	@Override
+	protected void createHeaps() {
+		int n = Configuration.getInt(PREFIX + "." + PAR_PARTITIONS, Runtime.getRuntime().availableProcessors());
+		if (n < 1)
+			throw new IllegalParameterException(PREFIX + "." + PAR_PARTITIONS, "At least one partition is required");
+
+		// Processes draw from substreams of the global generator, so they depend on the seed only
+		globalRandom = CommonState.getRandom();
+		processes = new LogicalProcess[n];
+		queues = new EventQueue[n];
+		outboxes = new Events[n][n];
+		killedNodes = new int[n];
+		for (int i = 0; i < n; i++) {
+			final int index = i;
+			processes[i] = new LogicalProcess(i, globalRandom, () -> runProcess(index));
+			queues[i] = EngineSim.createEventQueue();
+			for (int j = 0; j < n; j++)
+				outboxes[i][j] = new Events(1);
+		}
+		controlHeap = new Heap();
+		CommonState.setRandom(new ProcessRandom(globalRandom));
+	}
+
+
+
+	@Override
+	public void startExperiment() {
+		super.startExperiment();
+
+		lookahead = lookahead();
+		System.err.println("Engine: " + processes.length + " logical processes, lookahead " + lookahead);
+
+		CommonState.setProcessTime(true);
+		barrier = new CyclicBarrier(processes.length + 1);
+		for (LogicalProcess process : processes)
+			process.start();
+
+		try {
+			boolean exit = false;
+			while (!exit)
+				exit = executeNext();
+		} finally {
+			// Release the logical processes waiting for the next window
+			stopping = true;
+			await();
+			CommonState.setProcessTime(false);
+			CommonState.setRandom(globalRandom);
+		}
+
+		// analysis after the simulation
+		for (int j = 0; j < controls.length; ++j) {
+			if (controlSchedules[j].fin)
+				controls[j].execute();
+		}
+	}
+
+
+
+	/**
+	 * Executes either the controls of the next time unit, or the next window of
+	 * node events.
+	 *
+	 * @return true if the execution should be stopped.
+	 */
+	private boolean executeNext() {
+		long next = Long.MAX_VALUE;
+		for (EventQueue queue : queues)
+			next = Math.min(next, queue.getNextTime());
+		long nextControl = controlHeap.getNextTime();
+		if (next == Long.MAX_VALUE && nextControl == Long.MAX_VALUE) {
+			System.err.println("Engine: queue is empty, quitting" + " at time " + CommonState.getTime());
+			return true;
+		}
+
+		long time = Math.min(next, nextControl) >> rbits;
+		if (time >= nextlog) {
+			System.err.println("Current time: " + time);
+			do {
+				nextlog += logtime;
+			}
+			while (time >= nextlog);
+		}
+		if (time >= endtime) {
+			System.err.println("Engine: reached end time, quitting, leaving " + pendingEvents() + " unprocessed events in the queue");
+			return true;
+		}
+		CommonState.setTime(time);
+
+		// Controls go first
+		if (nextControl != Long.MAX_VALUE && (nextControl >> rbits) == time)
+			return executeControls(time);
+
+		long end = lookahead >= endtime - time ? endtime : time + lookahead;
+		if (nextControl != Long.MAX_VALUE)
+			end = Math.min(end, nextControl >> rbits);
+		windowEnd = end;
+
+		// Process the window, then let each process merge its incoming events
+		await();
+		await();
+		await();
+
+		for (LogicalProcess process : processes) {
+			Throwable t = process.failure;
+			if (t instanceof RuntimeException)
+				throw (RuntimeException) t;
+			else if (t instanceof Error)
+				throw (Error) t;
+			else if (t != null)
+				throw new RuntimeException(t);
+		}
+
+		// Account for the nodes killed during the window
+		int killed = 0;
+		for (int i = 0; i < killedNodes.length; i++) {
+			killed += killedNodes[i];
+			killedNodes[i] = 0;
+		}
+		if (killed > 0 && addGarbage(killed * pendingEventsPerNode()))
+			purge();
+		return false;
+	}
+
+
+
+	/**
+	 * Executes all control events of the given time unit.
+	 *
+	 * @return true if a control requested the execution to stop.
+	 */
+	private boolean executeControls(long time) {
+		while (controlHeap.size() > 0 && (controlHeap.getNextTime() >> rbits) == time) {
+			int pid = controlHeap.removeFirst().pid;
+			boolean ret = controls[pid].execute();
+			long delay = controlSchedules[pid].nextDelay(time);
+			if (delay >= 0)
+				addEventIn(delay, null, null, pid, null);
+			if (ret)
+				return true;
+		}
+		return false;
+	}
+
+
+
+	/**
+	 * Body of logical process <code>index</code>: for each window, executes its
+	 * events earlier than the end of the window, and then merges the events
+	 * sent to it by other processes, in process order.
+	 */
+	private void runProcess(int index) {
+		LogicalProcess process = processes[index];
+		EventQueue queue = queues[index];
+		while (true) {
+			await();
+			if (stopping)
+				return;
+
+			try {
+				long end = windowEnd;
+				while (queue.size() > 0 && (queue.getNextTime() >> rbits) < end) {
+					Events evs = queue.removeMany();
+					long time = evs.array[0].time >> rbits;
+					process.time = time;
+					for (int i = 0; i < evs.size; i++)
+						deliver(evs.array[i], time);
+				}
+			} catch (Throwable t) {
+				process.failure = t;
+			}
+			await();
+
+			for (int src = 0; src < processes.length; src++) {
+				Events box = outboxes[src][index];
+				for (int i = 0; i < box.size; i++) {
+					Event e = box.array[i];
+					queue.add(e.time, e.src, e.node, e.pid, e.event);
+					e.src = null;
+					e.node = null;
+					e.event = null;
+				}
+				box.clear();
+			}
+			await();
+		}
+	}
+
+
+
+	/**
+	 * Waits for all logical processes and the main thread to reach the
+	 * barrier.
+	 */
+	private void await() {
+		try {
+			barrier.await();
+		} catch (InterruptedException | BrokenBarrierException e) {
+			throw new IllegalStateException("Parallel engine interrupted", e);
+		}
+	}
+
+
+
+	/**
+	 * Returns the configured lookahead, or the minimum delay of the transports
+	 * of all the nodes.
+	 */
+	private long lookahead() {
+		long l = Long.MAX_VALUE;
+		if (Configuration.contains(PREFIX + "." + PAR_LOOKAHEAD))
+			l = Configuration.getLong(PREFIX + "." + PAR_LOOKAHEAD);
+		else {
+			// Transports are usually shared by all nodes: ask each instance once
+			Set<Transport> seen = Collections.newSetFromMap(new IdentityHashMap<Transport, Boolean>());
+			for (int i = 0; i < Network.size(); i++) {
+				Node node = Network.get(i);
+				for (int j = 0; j < node.getTransports(); j++)
+					if (seen.add(node.getTransport(j)))
+						l = Math.min(l, node.getTransport(j).minDelay());
+			}
+		}
+		if (l < 1)
+			throw new IllegalParameterException(PREFIX + "." + PAR_LOOKAHEAD, "Parallel simulation requires a positive lookahead: use transports with a positive minimum delay, or set this parameter");
+		return l;
+	}
+
+
+
+	/**
+	 * Returns the partition of the given node.
+	 */
+	private int partition(Node node) {
+		return (int) Math.floorMod(node.getID(), (long) processes.length);
+	}
+
+
+
+	@Override
+	protected void addEventAt(long time, Address src, Node node, int pid, Object event) {
+		time = (time << rbits) | CommonState.r.nextInt(1 << rbits);
+		if (node == null) { // control event
+			controlHeap.add(time, src, node, (byte) pid, event);
+			return;
+		}
+
+		int dst = partition(node);
+		Thread thread = Thread.currentThread();
+		if (thread instanceof LogicalProcess) {
+			int self = ((LogicalProcess) thread).index;
+			if (self != dst) {
+				if ((time >> rbits) < windowEnd)
+					throw new IllegalStateException("Lookahead violation: event at time " + (time >> rbits) + " for partition " + dst + " within the window ending at " + windowEnd);
+				Event e = outboxes[self][dst].append();
+				e.time = time;
+				e.src = src;
+				e.node = node;
+				e.pid = (byte) pid;
+				e.event = event;
+				return;
+			}
+		}
+		queues[dst].add(time, src, node, (byte) pid, event);
+	}
+
+
+
+	/**
+	 * Purges the events of dead nodes (and of cancelled timers) from the queues
+	 * of all logical processes, when they become too many. Nodes killed by
+	 * controls or initializers are accounted for at once, as the logical
+	 * processes are idle. Nodes killed by protocols, within a window, are only
+	 * counted by their logical process, and accounted for by the main thread
+	 * at the end of the window.
+	 */
+	@Override
+	protected void nodeKilled(Node node) {
+		Thread thread = Thread.currentThread();
+		if (thread instanceof LogicalProcess)
+			killedNodes[((LogicalProcess) thread).index]++;
+		else if (addGarbage(pendingEventsPerNode()))
+			purge();
+	}
+
+
+
+	/**
+	 * Purges the queues of all logical processes, which must be idle.
+	 */
+	private void purge() {
+		for (EventQueue queue : queues)
+			queue.removeIf(PURGEABLE);
+	}
+
+
+
+	@Override
+	public long pendingEvents() {
+		long events = controlHeap.size();
+		for (EventQueue queue : queues)
+			events += queue.size();
+		return events;
+	}
+
+
+
+	@Override
+	public void blockingInitializerStart() {
+		throw new RuntimeException("Blocking initializers not applicable to SIM mode");
+	}
+
+
+
+	@Override
+	public void blockingInitializerDone() {
+		throw new RuntimeException("Blocking initializers not applicable to SIM mode");
+	}
+}
@@ -7,6 +7,7 @@
  */
 package peernet.core;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 
 import peernet.Simulator;
@@ -17,14 +18,35 @@ public class EngineSim extends Engine
 {
 	EventQueue simHeap = null;
 
+	/** Protocol schedule events, if {@value Simulator#PAR_SIM_WHEEL} is set */
+	EventQueue wheel = null;
+
+	/** The file of the checkpoint requested in the current batch, if any */
+	private String checkpoint = null;
+
+	/** Set if {@value Simulator#PAR_SIM_METRICS} is defined */
+	private EngineMetrics metrics = null;
+
 	@Override
 	public void startExperiment() {
 		super.startExperiment();
+		if (Configuration.contains(Simulator.PAR_SIM_METRICS)) {
+			metrics = new EngineMetrics(protocolNames, controlNames, Configuration.getLong(Simulator.PAR_SIM_METRICS));
+			metrics.register(CommonState.getExperienceName());
+		}
 
 		// Perform the actual simulation; executeNext() will tell when to stop.
 		boolean exit = false;
-		while (!exit)
-			exit = executeNext(simHeap);
+		while (!exit) {
+			exit = executeNext();
+			if (checkpoint != null) {
+				if (exit)
+					System.err.println("Engine: experiment over, skipping checkpoint to " + checkpoint);
+				else
+					writeCheckpoint();
+				checkpoint = null;
+			}
+		}
 
 
 		// analysis after the simulation
@@ -33,20 +55,49 @@ public class EngineSim extends Engine
 			if (controlSchedules[j].fin)
 				controls[j].execute();
 		}
+		if (metrics != null) {
+			metrics.close();
+			metrics = null;
+		}
 	}
 
 	/**
-	 * Execute and remove the next event from the ordered event list.
+	 * Execute and remove the next batch of events from the ordered event list,
+	 * that is, all the events scheduled for the next time unit. Time is set,
+	 * and checked against the log and end times, once per batch. Events
+	 * scheduled with zero delay while a batch is being dispatched are executed
+	 * in the next batch, which has the same time.
+	 * <p>
+	 * If the timing wheel is used, the batches of the event queue and of the
+	 * wheel for the next time unit are dispatched together, in key order.
 	 *
 	 * @return true if the execution should be stopped.
 	 */
-	private boolean executeNext(EventQueue heap) {
-		Event ev = heap.removeFirst();
-		if (ev == null) {
+	private boolean executeNext() {
+		Events evs = null;
+		Events scheduled = null;
+		if (wheel == null)
+			evs = simHeap.removeMany();
+		else {
+			long next = simHeap.getNextTime();
+			long nextScheduled = wheel.getNextTime();
+			long first = Math.min(next, nextScheduled);
+			if (first != Long.MAX_VALUE) {
+				if (next >> rbits == first >> rbits)
+					evs = simHeap.removeMany();
+				if (nextScheduled >> rbits == first >> rbits)
+					scheduled = wheel.removeMany();
+			}
+		}
+		if (evs == null && scheduled == null) {
 			System.err.println("Engine: queue is empty, quitting" + " at time " + CommonState.getTime());
 			return true;
 		}
-		long time = ev.time >> rbits;
+		Event[] batch = evs == null ? null : evs.array;
+		int n = evs == null ? 0 : evs.size;
+		Event[] batch2 = scheduled == null ? null : scheduled.array;
+		int n2 = scheduled == null ? 0 : scheduled.size;
+		long time = (n > 0 ? batch[0].time : batch2[0].time) >> rbits;
 		if (time >= nextlog) {
 			System.err.println("Current time: " + time);
 			do {
@@ -55,63 +106,136 @@ public class EngineSim extends Engine
 			while (time >= nextlog);
 		}
 		if (time >= endtime) {
-			System.err.println("Engine: reached end time, quitting, leaving " + heap.size() + " unprocessed events in the queue");
+			System.err.println("Engine: reached end time, quitting, leaving " + (pendingEvents() + n + n2) + " unprocessed events in the queue");
 			return true;
 		}
 		CommonState.setTime(time);
+		if (metrics != null)
+			metrics.batch(time, pendingEvents() + n + n2);
+		int i = 0, j = 0;
+		while (i < n || j < n2) {
+			Event ev = j == n2 || (i < n && batch[i].time <= batch2[j].time) ? batch[i++] : batch2[j++];
+			if (dispatch(ev, time))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Delivers a single event of the current batch.
+	 *
+	 * @return true if the execution should be stopped.
+	 */
+	private boolean dispatch(Event ev, long time) {
 		int pid = ev.pid;
 		if (ev.node == null)  //XXX: Not an elegant way to identify control events
 		{
-			boolean ret = controls[pid].execute();
+			boolean ret;
+			if (metrics == null)
+				ret = controls[pid].execute();
+			else {
+				long start = System.nanoTime();
+				ret = controls[pid].execute();
+				metrics.control(pid, System.nanoTime() - start);
+			}
 			long delay = controlSchedules[pid].nextDelay(time);
 			if (delay >= 0)
 				addEventIn(delay, null, null, pid, null);
 			return ret;
-		} else if (ev.node.isUp()) {
-			//      CommonState.setPid(pid);  // XXX try to entirely avoid CommonState
-			//      CommonState.setNode(ev.node);
-			if (ev.event instanceof Schedule) {
-				Protocol prot = ev.node.getProtocol(pid);
-				prot.nextCycle(((Schedule) ev.event).schedId);
-
-				long delay = prot.nextDelay();
-				if (delay == 0)
-					delay = ((Schedule) ev.event).nextDelay(time);
-
-				if (delay > 0)
-					addEventIn(delay, null, ev.node, pid, ev.event);
-			} else // call Protocol.processEvent()
-			{
-				Protocol prot = ev.node.getProtocol(pid);
-				prot.processEvent(ev.src, ev.event);
-			}
 		}
+		if (metrics != null)
+			metrics.event(pid, ev.event);
+		deliver(ev, time);
 		return false;
 	}
 
 	public void addEventAt(long time, Address src, Node node, int pid, Object event) {
-		time = (time << rbits) | CommonState.r.nextInt(1 << rbits);
-		simHeap.add(time, src, node, (byte) pid, event);
+		addEventKey((time << rbits) | CommonState.stream(RandomStream.TIEBREAK, node).nextInt(1 << rbits), src, node, (byte) pid, event);
+	}
+
+	/**
+	 * Adds an event with a given key, that is, time and order.
+	 */
+	void addEventKey(long key, Address src, Node node, byte pid, Object event) {
+		if (wheel != null && node != null && event instanceof Schedule)
+			wheel.add(key, src, node, pid, event);
+		else
+			simHeap.add(key, src, node, pid, event);
+	}
+
+	/**
+	 * Takes the snapshot at the end of the current batch, when all pending
+	 * events are in the event queues.
+	 */
+	@Override
+	protected void checkpoint(String file) {
+		checkpoint = file;
+	}
+
+	private void writeCheckpoint() {
+		System.err.println("Engine: writing checkpoint to " + checkpoint + " at time " + CommonState.getTime());
+		try {
+			Snapshot.write(checkpoint, this);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+
+	@Override
+	protected void restore(String file) throws IOException, ClassNotFoundException {
+		loadProtocolSchedules();
+		Snapshot.read(file, this);
 	}
 
 	@Override
 	protected void createHeaps() {
+		simHeap = createEventQueue();
+		if (Configuration.contains(Simulator.PAR_SIM_WHEEL))
+			wheel = new TimingWheel();
+	}
+
+	/**
+	 * Instantiates the event queue defined by {@value Simulator#PAR_SIM_HEAP},
+	 * or a {@link Heap} if the parameter is not defined.
+	 */
+	static EventQueue createEventQueue() {
 		if(Configuration.contains(Simulator.PAR_SIM_HEAP)) {
 			try {
-				simHeap = (EventQueue) Class.forName(Configuration.getString(Simulator.PAR_SIM_HEAP)).getDeclaredConstructor().newInstance();
+				return (EventQueue) Class.forName(Configuration.getString(Simulator.PAR_SIM_HEAP)).getDeclaredConstructor().newInstance();
 			} catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException
 					| SecurityException | ClassNotFoundException | NoSuchMethodException e) {
 				System.err.println("Could not instanciate Event Queue: " + Configuration.getString(Simulator.PAR_SIM_HEAP));
 				e.printStackTrace();
 				System.exit(1);
 			}
-		} else {
-			simHeap = new Heap();
 		}
+		return new Heap();
 	}
 
 	public long pendingEvents() {
-		return simHeap.size();
+		return simHeap.size() + (wheel == null ? 0 : wheel.size());
+	}
+
+	@Override
+	protected void timerCancelled(Timer timer) {
+		if (addGarbage(1))
+			purge();
+	}
+
+	@Override
+	protected void nodeKilled(Node node) {
+		if (addGarbage(pendingEventsPerNode()))
+			purge();
+	}
+
+	/**
+	 * Removes the events of cancelled timers and dead nodes from the event
+	 * queue and the timing wheel.
+	 */
+	private void purge() {
+		simHeap.removeIf(PURGEABLE);
+		if (wheel != null)
+			wheel.removeIf(PURGEABLE);
 	}
 
 
@@ -0,0 +1,623 @@
+package peernet.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+
+import peernet.config.Configuration;
+import peernet.config.IllegalParameterException;
+import peernet.transport.Address;
+import peernet.util.ExtendedRandom;
+
+
+/**
+ * Optimistic (Time Warp) parallel SIM engine. Select it with
+ * <code>engine.mode simcustom</code> and
+ * <code>engine.simengine peernet.core.EngineTimeWarp</code>.
+ * <p>
+ * As in {@link EngineParallelSim}, nodes are partitioned (by ID) into
+ * {@value #PAR_PARTITIONS} {@link LogicalProcess}es, each with its own event
+ * queue. However, no lookahead is needed: each process executes its events
+ * speculatively, as fast as it can. Before an event is delivered, the
+ * protocols of its node are saved with {@link Protocol#clone()}. When a
+ * process receives an event in its past (a straggler), it rolls back: the
+ * saved protocols are restored, the undone events are queued again, and all
+ * events they had scheduled are cancelled, through anti-messages for events
+ * sent to other processes.
+ * <p>
+ * Every {@value #PAR_GVT_PERIOD} events, processes synchronize to compute the
+ * global virtual time (GVT), i.e., the earliest time any process may still
+ * roll back to. Saved states older than GVT are discarded (fossil collection).
+ * Controls are executed by the main thread, when GVT reaches their time, so
+ * they observe a committed state of the whole network. Controls scheduled at
+ * time <em>T</em> are executed before the node events of time <em>T</em>.
+ * <p>
+ * Requirements on protocols:
+ * <ul>
+ * <li>{@link Protocol#clone()} must copy all the mutable state of the
+ * protocol, as it is used to restore it (it is already required to do so for
+ * creating nodes by cloning);</li>
+ * <li>protocols must only interact through events ({@link Protocol#send},
+ * {@link Protocol#schedule}), and must not modify event payloads, static or
+ * shared state, as such changes are not undone.</li>
+ * </ul>
+ * <p>
+ * Before each event is delivered, the random generator of its process is
+ * reseeded from the experiment seed and the event's key, node and protocol. A
+ * re-executed event thus draws the same random numbers as its first execution,
+ * and results do not depend on the number of partitions or on thread
+ * scheduling, except for the relative order of events that happen to have
+ * exactly the same key.
+ * <p>
+ * The configured event queue must accept events earlier than the last
+ * dequeued one, so neither {@link RadixHeap} nor {@link TimingWheel} can be
+ * used with this engine. Rollbacks also undo the expiry and the cancellation
+ * of {@link Timer}s, provided that, as in EMU and NET modes, timers are only
+ * cancelled by the protocols of their own node.
+ */
+public class EngineTimeWarp extends Engine
+{
+	private static final String PREFIX = "engine";
+
+	/**
+	 * The number of partitions (logical processes). Defaults to the number of
+	 * available processors.
+	 *
+	 * @config
+	 */
+	private static final String PAR_PARTITIONS = "partitions";
+
+	/**
+	 * The number of events each logical process executes between two GVT
+	 * computations. Defaults to 10000.
+	 *
+	 * @config
+	 */
+	private static final String PAR_GVT_PERIOD = "gvtperiod";
+
+	/**
+	 * An event, as stored in the event queues of logical processes. Once
+	 * executed, it also keeps the state needed to undo its execution.
+	 */
+	private static final class Envelope
+	{
+		final long key;
+		final Address src;
+		final Node node;
+		final byte pid;
+		final Object event;
+		/** The partition of the destination node */
+		final int dst;
+		/** For anti-messages, the event to cancel; null otherwise */
+		final Envelope target;
+
+		/** Set when an anti-message for this event has been received */
+		boolean cancelled = false;
+		/** Set while the event is executed, and not rolled back */
+		boolean processed = false;
+		/** Protocols of the node before the execution */
+		Protocol[] saved = null;
+		/** Events scheduled by the execution */
+		ArrayList<Envelope> sent = null;
+		/** Timers that expired or were cancelled by the execution */
+		ArrayList<Timer> timers = null;
+
+		Envelope(long key, Address src, Node node, byte pid, Object event, int dst)
+		{
+			this.key = key;
+			this.src = src;
+			this.node = node;
+			this.pid = pid;
+			this.event = event;
+			this.dst = dst;
+			this.target = null;
+		}
+
+
+
+		/**
+		 * Creates an anti-message for the given event.
+		 */
+		Envelope(Envelope target)
+		{
+			this.key = target.key;
+			this.src = null;
+			this.node = null;
+			this.pid = 0;
+			this.event = null;
+			this.dst = target.dst;
+			this.target = target;
+		}
+	}
+
+	/** The logical processes */
+	private LogicalProcess[] processes = null;
+
+	/** Event queue of each logical process */
+	private EventQueue[] queues = null;
+
+	/** Events and anti-messages received from other processes */
+	private ConcurrentLinkedQueue<Envelope>[] inboxes = null;
+
+	/** Executed events, not yet fossil-collected, in execution order */
+	private ArrayDeque<Envelope>[] executed = null;
+
+	/** The event currently executed by each process */
+	private Envelope[] current = null;
+
+	/** Number of rollbacks, per process */
+	private long[] rollbacks = null;
+
+	/** Queue of control events, handled by the main thread */
+	private EventQueue controlHeap = null;
+
+	/** The generator in CommonState.r before the experiment started */
+	private ExtendedRandom globalRandom = null;
+
+	/** Seed from which event seeds are derived */
+	private long seed;
+
+	/** Events executed per process between GVT computations */
+	private int gvtPeriod;
+
+	/** Global virtual time (a key), computed by the main thread */
+	private long gvt = Long.MIN_VALUE;
+
+	/** End (exclusive, as a key) of the current epoch, i.e., the next control */
+	private long epochEnd;
+
+	/** Tells logical processes to terminate */
+	private boolean stopping = false;
+
+	/** Synchronizes the main thread with the logical processes */
+	private CyclicBarrier barrier = null;
+
+
+
+	@Override
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	protected void createHeaps() {
+		int n = Configuration.getInt(PREFIX + "." + PAR_PARTITIONS, Runtime.getRuntime().availableProcessors());
+		if (n < 1)
+			throw new IllegalParameterException(PREFIX + "." + PAR_PARTITIONS, "At least one partition is required");
+		gvtPeriod = Configuration.getInt(PREFIX + "." + PAR_GVT_PERIOD, 10000);
+		if (gvtPeriod < 1)
+			throw new IllegalParameterException(PREFIX + "." + PAR_GVT_PERIOD, "The GVT period should be positive");
+
+		globalRandom = CommonState.getRandom();
+		seed = globalRandom.nextLong();
+		processes = new LogicalProcess[n];
+		queues = new EventQueue[n];
+		inboxes = new ConcurrentLinkedQueue[n];
+		executed = new ArrayDeque[n];
+		current = new Envelope[n];
+		rollbacks = new long[n];
+		for (int i = 0; i < n; i++) {
+			final int index = i;
+			processes[i] = new LogicalProcess(i, globalRandom, () -> runProcess(index));
+			queues[i] = EngineSim.createEventQueue();
+			if (queues[i] instanceof RadixHeap || queues[i] instanceof TimingWheel)
+				throw new IllegalParameterException(peernet.Simulator.PAR_SIM_HEAP, queues[i].getClass().getSimpleName() + " does not support rollbacks");
+			inboxes[i] = new ConcurrentLinkedQueue<Envelope>();
+			executed[i] = new ArrayDeque<Envelope>();
+		}
+		controlHeap = new Heap();
+		CommonState.setRandom(new ProcessRandom(globalRandom));
+	}
+
+
+
+	@Override
+	public void startExperiment() {
+		super.startExperiment();
+
+		System.err.println("Engine: " + processes.length + " logical processes, GVT period " + gvtPeriod);
+
+		CommonState.setProcessTime(true);
+		barrier = new CyclicBarrier(processes.length + 1);
+		for (LogicalProcess process : processes)
+			process.start();
+
+		try {
+			boolean exit = false;
+			while (!exit)
+				exit = executeNext();
+		} finally {
+			// Release the logical processes waiting for the next round
+			stopping = true;
+			await();
+			CommonState.setProcessTime(false);
+			CommonState.setRandom(globalRandom);
+		}
+
+		long total = 0;
+		for (long r : rollbacks)
+			total += r;
+		System.err.println("Engine: " + total + " rollbacks");
+
+		// analysis after the simulation
+		for (int j = 0; j < controls.length; ++j) {
+			if (controlSchedules[j].fin)
+				controls[j].execute();
+		}
+	}
+
+
+
+	/**
+	 * Executes either the controls of the next time unit, or the epoch of node
+	 * events up to the next control.
+	 *
+	 * @return true if the execution should be stopped.
+	 */
+	private boolean executeNext() {
+		long next = globalMin();
+		long nextControl = controlHeap.getNextTime();
+		if (next == Long.MAX_VALUE && nextControl == Long.MAX_VALUE) {
+			System.err.println("Engine: queue is empty, quitting" + " at time " + CommonState.getTime());
+			return true;
+		}
+
+		long time = Math.min(next, nextControl) >> rbits;
+		if (time >= nextlog) {
+			System.err.println("Current time: " + time);
+			do {
+				nextlog += logtime;
+			}
+			while (time >= nextlog);
+		}
+		if (time >= endtime) {
+			System.err.println("Engine: reached end time, quitting, leaving " + pendingEvents() + " unprocessed events in the queue");
+			return true;
+		}
+		CommonState.setTime(time);
+
+		// Controls go first
+		if (nextControl != Long.MAX_VALUE && (nextControl >> rbits) == time)
+			return executeControls(time);
+
+		long end = endtime;
+		if (nextControl != Long.MAX_VALUE)
+			end = Math.min(end, nextControl >> rbits);
+		epochEnd = end >= (Long.MAX_VALUE >> rbits) ? Long.MAX_VALUE : end << rbits;
+
+		// Run rounds until all events before the end of the epoch are committed
+		do {
+			await();
+			await();
+			checkFailures();
+			gvt = globalMin();
+		}
+		while (gvt < epochEnd);
+
+		// Everything before the end of the epoch is committed
+		for (int i = 0; i < processes.length; i++)
+			fossilCollect(i, epochEnd);
+		return false;
+	}
+
+
+
+	/**
+	 * Returns the earliest key in any queue or inbox. Only called while all
+	 * logical processes are waiting on the barrier.
+	 */
+	private long globalMin() {
+		long min = Long.MAX_VALUE;
+		for (int i = 0; i < processes.length; i++) {
+			min = Math.min(min, queues[i].getNextTime());
+			for (Envelope e : inboxes[i])
+				min = Math.min(min, e.key);
+		}
+		return min;
+	}
+
+
+
+	/**
+	 * Executes all control events of the given time unit.
+	 *
+	 * @return true if a control requested the execution to stop.
+	 */
+	private boolean executeControls(long time) {
+		while (controlHeap.size() > 0 && (controlHeap.getNextTime() >> rbits) == time) {
+			int pid = controlHeap.removeFirst().pid;
+			boolean ret = controls[pid].execute();
+			long delay = controlSchedules[pid].nextDelay(time);
+			if (delay >= 0)
+				addEventIn(delay, null, null, pid, null);
+			if (ret)
+				return true;
+		}
+		return false;
+	}
+
+
+
+	/**
+	 * Rethrows the first failure of a logical process, if any.
+	 */
+	private void checkFailures() {
+		for (LogicalProcess process : processes) {
+			Throwable t = process.failure;
+			if (t instanceof RuntimeException)
+				throw (RuntimeException) t;
+			else if (t instanceof Error)
+				throw (Error) t;
+			else if (t != null)
+				throw new RuntimeException(t);
+		}
+	}
+
+
+
+	/**
+	 * Body of logical process <code>index</code>: for each round, discards the
+	 * state saved before GVT, and then executes up to {@value #PAR_GVT_PERIOD}
+	 * events of the current epoch, handling incoming events and anti-messages
+	 * before each of them.
+	 */
+	private void runProcess(int index) {
+		LogicalProcess process = processes[index];
+		EventQueue queue = queues[index];
+		while (true) {
+			await();
+			if (stopping)
+				return;
+
+			try {
+				fossilCollect(index, gvt);
+				long end = epochEnd;
+				int count = 0;
+				while (count < gvtPeriod) {
+					receive(index);
+					if (queue.size() == 0 || queue.getNextTime() >= end)
+						break;
+					Event ev = queue.removeFirst();
+					Envelope env = (Envelope) ev.event;
+					if (env.cancelled)
+						continue;
+					execute(process, env);
+					count++;
+				}
+			} catch (Throwable t) {
+				process.failure = t;
+			}
+			await();
+		}
+	}
+
+
+
+	/**
+	 * Executes an event, saving the state of its node first.
+	 */
+	private void execute(LogicalProcess process, Envelope env) {
+		int index = process.index;
+		Node node = env.node;
+		Protocol[] saved = new Protocol[node.protocols.length];
+		for (int i = 0; i < saved.length; i++)
+			saved[i] = (Protocol) node.protocols[i].clone();
+		env.saved = saved;
+		env.processed = true;
+		executed[index].addLast(env);
+
+		long time = env.key >> rbits;
+		process.time = time;
+		process.random.setSeed(mix(seed ^ mix(env.key ^ mix(node.getID() * 31 + env.pid))));
+
+		current[index] = env;
+		if (env.event instanceof Timer && ((Timer) env.event).isPending())
+			undoTimer(env, (Timer) env.event);
+		Event ev = new Event(env.key, env.src, node, env.pid, env.event);
+		deliver(ev, time);
+		current[index] = null;
+	}
+
+
+
+	/**
+	 * Handles the events and anti-messages received from other processes.
+	 */
+	private void receive(int index) {
+		Envelope env;
+		while ((env = inboxes[index].poll()) != null) {
+			if (env.target != null) { // anti-message
+				Envelope target = env.target;
+				if (target.processed)
+					rollback(index, target.key, true);
+				// the target is now queued, and will be skipped
+				target.cancelled = true;
+			} else {
+				ArrayDeque<Envelope> done = executed[index];
+				if (!done.isEmpty() && done.peekLast().key > env.key)
+					rollback(index, env.key, false);
+				queues[index].add(env.key, env.src, env.node, env.pid, env);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Undoes the executed events with a key greater than (or equal to, if
+	 * <code>inclusive</code>) <code>key</code>, latest first: restores the saved
+	 * protocols, queues the events again, and cancels the events they had
+	 * scheduled.
+	 */
+	private void rollback(int index, long key, boolean inclusive) {
+		rollbacks[index]++;
+		ArrayDeque<Envelope> done = executed[index];
+		while (!done.isEmpty() && (done.peekLast().key > key || (inclusive && done.peekLast().key == key))) {
+			Envelope env = done.pollLast();
+			System.arraycopy(env.saved, 0, env.node.protocols, 0, env.saved.length);
+			env.saved = null;
+			env.processed = false;
+			if (env.sent != null) {
+				for (Envelope out : env.sent)
+					cancel(index, out);
+				env.sent = null;
+			}
+			if (env.timers != null) {
+				for (Timer timer : env.timers)
+					timer.reset();
+				env.timers = null;
+			}
+			queues[index].add(env.key, env.src, env.node, env.pid, env);
+		}
+	}
+
+
+
+	/**
+	 * Records that the event being executed changes the state of a pending
+	 * timer, which a rollback must then make pending again.
+	 */
+	private static void undoTimer(Envelope env, Timer timer) {
+		if (env.timers == null)
+			env.timers = new ArrayList<Timer>(1);
+		env.timers.add(timer);
+	}
+
+
+
+	/**
+	 * Records the cancellation with the event being executed. The timer
+	 * belongs to the same node, so its event is queued on the same partition,
+	 * after the cancelling event: rolling back the cancellation also rolls back
+	 * the dropping of the timer's event.
+	 */
+	@Override
+	protected void timerCancelled(Timer timer) {
+		Thread thread = Thread.currentThread();
+		if (!(thread instanceof LogicalProcess))
+			return;
+		Envelope env = current[((LogicalProcess) thread).index];
+		if (env != null)
+			undoTimer(env, timer);
+	}
+
+
+
+	/**
+	 * Cancels an event scheduled by a rolled back event. Events of the same
+	 * process are still queued (later events were rolled back first), so they
+	 * are simply marked. Other processes receive an anti-message.
+	 */
+	private void cancel(int index, Envelope out) {
+		if (out.dst == index)
+			out.cancelled = true;
+		else
+			inboxes[out.dst].add(new Envelope(out));
+	}
+
+
+
+	/**
+	 * Discards the saved state of executed events earlier than
+	 * <code>key</code>, which can no longer be rolled back.
+	 */
+	private void fossilCollect(int index, long key) {
+		ArrayDeque<Envelope> done = executed[index];
+		while (!done.isEmpty() && done.peekFirst().key < key) {
+			Envelope env = done.pollFirst();
+			env.saved = null;
+			env.sent = null;
+			env.timers = null;
+		}
+	}
+
+
+
+	/**
+	 * Waits for all logical processes and the main thread to reach the
+	 * barrier.
+	 */
+	private void await() {
+		try {
+			barrier.await();
+		} catch (InterruptedException | BrokenBarrierException e) {
+			throw new IllegalStateException("Parallel engine interrupted", e);
+		}
+	}
+
+
+
+	/**
+	 * Returns the partition of the given node.
+	 */
+	private int partition(Node node) {
+		return (int) Math.floorMod(node.getID(), (long) processes.length);
+	}
+
+
+
+	/**
+	 * SplitMix64 finalizer, used to derive event seeds.
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+
+
+	@Override
+	protected void addEventAt(long time, Address src, Node node, int pid, Object event) {
+		time = (time << rbits) | CommonState.r.nextInt(1 << rbits);
+		if (node == null) { // control event
+			controlHeap.add(time, src, node, (byte) pid, event);
+			return;
+		}
+
+		int dst = partition(node);
+		Thread thread = Thread.currentThread();
+		if (!(thread instanceof LogicalProcess)) { // initializers and controls
+			queues[dst].add(time, src, node, (byte) pid, new Envelope(time, src, node, (byte) pid, event, dst));
+			return;
+		}
+
+		int self = ((LogicalProcess) thread).index;
+		Envelope cause = current[self];
+		// A zero delay may draw lower random bits than the cause: keep keys
+		// nondecreasing along causality, so each process executes events in key
+		// order, which rollbacks and GVT rely on.
+		if (time < cause.key)
+			time = cause.key;
+		Envelope env = new Envelope(time, src, node, (byte) pid, event, dst);
+		if (cause.sent == null)
+			cause.sent = new ArrayList<Envelope>(2);
+		cause.sent.add(env);
+		if (self == dst)
+			queues[dst].add(time, src, node, (byte) pid, env);
+		else
+			inboxes[dst].add(env);
+	}
+
+
+
+	@Override
+	public long pendingEvents() {
+		long events = controlHeap.size();
+		for (EventQueue queue : queues)
+			events += queue.size();
+		return events;
+	}
+
+
+
+	@Override
+	public void blockingInitializerStart() {
+		throw new RuntimeException("Blocking initializers not applicable to SIM mode");
+	}
+
+
+
+	@Override
+	public void blockingInitializerDone() {
+		throw new RuntimeException("Blocking initializers not applicable to SIM mode");
+	}
+}
@@ -1,5 +1,7 @@
 package peernet.core;
 
+import java.util.function.BiPredicate;
+
 import peernet.transport.Address;
 
 public interface EventQueue {
@@ -8,10 +10,59 @@ public interface EventQueue {
 
 	public Event removeFirst();
 	
-	public Events removeMany();
+	/**
+	 * Removes all the events scheduled for the same time unit as the first
+	 * event of the queue (i.e., whose keys are equal once shifted right by the
+	 * engine's random bits), and returns them in the order
+	 * {@link #removeFirst()} would. To avoid garbage collection, the returned
+	 * container and its events are reused, and overwritten by the next
+	 * invocation of this method.
+	 * <p>
+	 * By default, the events are taken one by one with {@link #removeFirst()},
+	 * into a new container.
+	 *
+	 * @return the events of the first time unit, or null if the queue is empty
+	 */
+	public default Events removeMany()
+	{
+		Event ev = removeFirst();
+		if (ev == null)
+			return null;
+		int rbits = Engine.instance().rbits;
+		long unit = ev.time >> rbits;
+		Events evs = new Events(1);
+		while (true) {
+			Event copy = evs.append();
+			copy.time = ev.time;
+			copy.src = ev.src;
+			copy.node = ev.node;
+			copy.pid = ev.pid;
+			copy.event = ev.event;
+			if (size() == 0 || (getNextTime() >> rbits) != unit)
+				return evs;
+			ev = removeFirst();
+		}
+	}
 
 	public long getNextTime();
 
+	/**
+	 * Removes all the events whose destination node and event object match
+	 * <code>filter</code>, such as cancelled {@link Timer}s or the events of
+	 * dead nodes, in a single pass over the queue. The remaining events keep
+	 * their order.
+	 * <p>
+	 * Engines only use this method to purge events that would be dropped
+	 * anyway when their time comes. By default, nothing is removed, which is
+	 * correct, if wasteful in memory.
+	 *
+	 * @return the number of removed events
+	 */
+	public default int removeIf(BiPredicate<Node, Object> filter)
+	{
+		return 0;
+	}
+
 	/**
 	 * Prints the time values contained in the heap.
 	 */
@@ -53,4 +53,27 @@ public class Events {
         return array;
     }
 
+    /**
+     * Empties the container, keeping its (reusable) event instances.
+     */
+    public void clear( ) {
+        size = 0;
+    }
+
+    /**
+     * Returns the next free event instance and counts it in the container,
+     * doubling the capacity of the array if it is full. The returned instance
+     * is reused across batches, so its fields have to be overwritten.
+     */
+    public Event append( ) {
+        if ( size == array.length ) {
+            Event[] grown = new Event[Math.max(1, 2 * array.length)];
+            System.arraycopy(array, 0, grown, 0, size);
+            for ( int i = size; i < grown.length; i++ )
+                grown[i] = new Event();
+            array = grown;
+        }
+        return array[size++];
+    }
+
 }
@@ -18,6 +18,7 @@ package peernet.core;
 
 import java.util.Arrays;
 import java.util.Random;
+import java.util.function.BiPredicate;
 
 import peernet.transport.Address;
 
@@ -136,29 +137,24 @@ public class Heap implements EventQueue
 	public Event removeFirst() {
 		if (size == 0)
 			return null;
-		ev.time = times[0];
-		ev.event = events[0];
-		ev.node = nodes[0];
-		ev.pid = pids[0];
-		ev.src = srcs[0];
-		swap(1, size);
-		size--;
-		minHeapify(1);
+		poll(ev);
 		return ev;
 	}
 
+	/**
+	 * Removes all the events of the first time unit. See
+	 * {@link EventQueue#removeMany()}.
+	 */
 	public Events removeMany( ) {
 		if (size == 0)
 			return null;
-		evs.array[0].time = times[0];
-		evs.array[0].event = events[0];
-		evs.array[0].node = nodes[0];
-		evs.array[0].pid = pids[0];
-		evs.array[0].src = srcs[0];
-		evs.size = 1;
-		swap(1, size);
-		size--;
-		minHeapify(1);
+		int rbits = Engine.instance().rbits;
+		long time = times[0] >> rbits;
+		evs.clear();
+		do {
+			poll(evs.append());
+		}
+		while (size > 0 && (times[0] >> rbits) == time);
 		return evs;
 	}
 	
@@ -169,6 +165,35 @@ public class Heap implements EventQueue
 			return times[0];
 	}
 
+	/**
+	 * Removes the events matching the filter, see
+	 * {@link EventQueue#removeIf(BiPredicate)}. The remaining events are packed
+	 * and heapified again, in linear time.
+	 */
+	public int removeIf(BiPredicate<Node, Object> filter) {
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			if (filter.test(nodes[i], events[i]))
+				continue;
+			times[n] = times[i];
+			srcs[n] = srcs[i];
+			nodes[n] = nodes[i];
+			pids[n] = pids[i];
+			events[n] = events[i];
+			n++;
+		}
+		int removed = size - n;
+		for (int i = n; i < size; i++) {
+			srcs[i] = null;
+			nodes[i] = null;
+			events[i] = null;
+		}
+		size = n;
+		for (int i = size / 2; i >= 1; i--)
+			minHeapify(i);
+		return removed;
+	}
+
 
 	// --------------------------------------------------------------------------
 
@@ -189,6 +214,29 @@ public class Heap implements EventQueue
 	// Private methods
 	// --------------------------------------------------------------------------
 
+	/**
+	 * Copies the first event in the heap into <code>e</code>, and removes it.
+	 * Assumes the heap is not empty.
+	 */
+	private void poll(Event e) {
+		e.time = times[0];
+		e.event = events[0];
+		e.node = nodes[0];
+		e.pid = pids[0];
+		e.src = srcs[0];
+		swap(1, size);
+		// Drop the references of the removed event, so that it does not pin
+		// its node and payload
+		events[size - 1] = null;
+		nodes[size - 1] = null;
+		srcs[size - 1] = null;
+		size--;
+		minHeapify(1);
+	}
+
+
+	// --------------------------------------------------------------------------
+
 	/**
 	 *
 	 */
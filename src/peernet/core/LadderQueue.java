@@ -0,0 +1,710 @@
+package peernet.core;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.BiPredicate;
+
+import peernet.transport.Address;
+
+
+/**
+ * Ladder queue (W. T. Tang, R. S. M. Goh, I. L.-J. Thng, "Ladder queue: an
+ * O(1) priority queue structure for large-scale discrete event simulation",
+ * ACM TOMACS 2005) used as an alternative {@link EventQueue} for the SIM
+ * engine. Select it by setting {@value peernet.Simulator#PAR_SIM_HEAP} to
+ * <code>peernet.core.LadderQueue</code>.
+ * <p>
+ * The queue is made of three tiers:
+ * <ul>
+ * <li><em>Top</em>: an unsorted list receiving all events later than the
+ * range currently covered by the ladder.</li>
+ * <li><em>Ladder</em>: up to {@value #MAX_RUNGS} rungs of unsorted buckets.
+ * When the ladder is empty, Top is spread over a first rung sized after the
+ * number and span of its events. A bucket holding more than
+ * {@value #THRES} events is spread over a finer child rung, instead of being
+ * sorted.</li>
+ * <li><em>Bottom</em>: a short sorted list from which events are dequeued. It
+ * is refilled from the first non-empty bucket of the innermost rung. When
+ * events inserted directly into Bottom make it longer than {@value #THRES}
+ * events, it is spread over a new innermost rung, as an overfull bucket
+ * would be, so inserting stays O(1) even if the bucket that fed Bottom was
+ * very wide (e.g., a first rung holding one event now and one far in the
+ * future).</li>
+ * </ul>
+ * Contrary to a calendar queue, bucket widths are never computed from a
+ * sample, so very skewed hold times (zero transport delays mixed with long
+ * timeouts) do not trigger resize storms.
+ * <p>
+ * Event payloads are kept in a slot arena (parallel arrays indexed by slot,
+ * with a free list), so no objects are allocated per event. As in
+ * {@link Heap}, a singleton {@link Event} is returned by
+ * {@link #removeFirst()}.
+ */
+public class LadderQueue implements EventQueue
+{
+	// --------------------------------------------------------------------------
+	// Constants
+	// --------------------------------------------------------------------------
+	/** Initial arena size */
+	private static final int SIZE = 16;
+	/** Maximum number of rungs */
+	private static final int MAX_RUNGS = 8;
+	/** Buckets with more events than this are spawned into a child rung */
+	private static final int THRES = 50;
+	/** Marks the end of a list, or of the free list */
+	private static final int NIL = -1;
+
+	// --------------------------------------------------------------------------
+	// Fields
+	// --------------------------------------------------------------------------
+	/** Time (key) component of the arena */
+	private long[] times;
+	/** Src component of the arena */
+	private Address[] srcs;
+	/** Node component of the arena */
+	private Node[] nodes;
+	/** Pid component of the arena */
+	private byte[] pids;
+	/** Event component of the arena */
+	private Object[] events;
+	/** Next slot in the same list, or in the free list */
+	private int[] next;
+	/** Head of the free list */
+	private int free = NIL;
+	/** Number of arena slots ever handed out */
+	private int used = 0;
+
+	/** Head of the Top list */
+	private int top = NIL;
+	/** Number of events in Top */
+	private int topCount = 0;
+	/** Smallest and largest key in Top */
+	private long topMin, topMax;
+	/** Events at or after this key go to Top */
+	private long topStart = Long.MIN_VALUE;
+
+	/** Number of rungs in use */
+	private int nRungs = 0;
+	/** Bucket list heads, per rung */
+	private final int[][] rungHeads = new int[MAX_RUNGS][];
+	/** Number of events per bucket, per rung */
+	private final int[][] rungCounts = new int[MAX_RUNGS][];
+	/** Number of buckets, per rung */
+	private final int[] rungBuckets = new int[MAX_RUNGS];
+	/** Bucket width, per rung */
+	private final long[] rungWidth = new long[MAX_RUNGS];
+	/** Key at which the first bucket starts, per rung */
+	private final long[] rungStart = new long[MAX_RUNGS];
+	/** Index of the current (first not yet consumed) bucket, per rung */
+	private final int[] rungCur = new int[MAX_RUNGS];
+	/** Key at which the current bucket starts, per rung */
+	private final long[] rungCurStart = new long[MAX_RUNGS];
+
+	/** Head of the (sorted) Bottom list */
+	private int bottom = NIL;
+	/** Number of events in Bottom */
+	private int bottomCount = 0;
+	/** Largest key in Bottom */
+	private long bottomMax;
+
+	/** Number of events */
+	private int size;
+
+	/** Singleton event object used to return (event, time, node, pid) tuples */
+	private final Event ev = new Event();
+	private final Events evs = new Events(1);
+
+
+
+	// --------------------------------------------------------------------------
+	// Constructor
+	// --------------------------------------------------------------------------
+	/**
+	 * Initializes a new ladder queue with the default initial capacity.
+	 */
+	public LadderQueue()
+	{
+		this(SIZE);
+	}
+
+
+
+	/**
+	 * Initializes a new ladder queue with the specified initial capacity.
+	 */
+	public LadderQueue(int capacity)
+	{
+		capacity = Math.max(capacity, 1);
+		times = new long[capacity];
+		srcs = new Address[capacity];
+		nodes = new Node[capacity];
+		pids = new byte[capacity];
+		events = new Object[capacity];
+		next = new int[capacity];
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	// Methods
+	// --------------------------------------------------------------------------
+	/**
+	 * Returns the current number of events in the system.
+	 */
+	public long size()
+	{
+		return size;
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Add a new event, to be scheduled at the specified time.
+	 *
+	 * @param time  the time at which this event should be scheduled
+	 * @param event the object decribing the event
+	 * @param node  the node at which the event has to be delivered
+	 * @param pid   the protocol that handles the event
+	 */
+	public void add(long time, Address src, Node node, byte pid, Object event)
+	{
+		int slot = allocate();
+		times[slot] = time;
+		srcs[slot] = src;
+		nodes[slot] = node;
+		pids[slot] = pid;
+		events[slot] = event;
+		size++;
+
+		// Top
+		if (time >= topStart) {
+			if (topCount == 0)
+				topMin = topMax = time;
+			else if (time < topMin)
+				topMin = time;
+			else if (time > topMax)
+				topMax = time;
+			next[slot] = top;
+			top = slot;
+			topCount++;
+			return;
+		}
+
+		// Ladder, from the outermost to the innermost rung
+		for (int r = 0; r < nRungs; r++) {
+			if (time >= rungCurStart[r]) {
+				int b = (int) ((time - rungStart[r]) / rungWidth[r]);
+				next[slot] = rungHeads[r][b];
+				rungHeads[r][b] = slot;
+				rungCounts[r][b]++;
+				return;
+			}
+		}
+
+		// Bottom, spread over a new rung if it gets too long
+		insertBottom(slot);
+		if (bottomCount > THRES && bottomMax > times[bottom] && nRungs < MAX_RUNGS)
+			spawnBottom();
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Removes the first event in the queue and returns it. Note that, to avoid
+	 * garbage collection, a singleton instance of the Event class is used. This
+	 * means that data contained in the returned event are overwritten when a new
+	 * invocation of this method is performed.
+	 *
+	 * @return first event or null if size is zero
+	 */
+	public Event removeFirst()
+	{
+		if (size == 0)
+			return null;
+		fillBottom();
+		poll(ev);
+		return ev;
+	}
+
+
+
+	/**
+	 * Removes all the events of the first time unit. See
+	 * {@link EventQueue#removeMany()}.
+	 */
+	public Events removeMany()
+	{
+		if (size == 0)
+			return null;
+		int rbits = Engine.instance().rbits;
+		fillBottom();
+		long time = times[bottom] >> rbits;
+		evs.clear();
+		do {
+			poll(evs.append());
+			if (size > 0)
+				fillBottom();
+		}
+		while (size > 0 && (times[bottom] >> rbits) == time);
+		return evs;
+	}
+
+
+
+	public long getNextTime()
+	{
+		if (size == 0)
+			return Long.MAX_VALUE;
+		fillBottom();
+		return times[bottom];
+	}
+
+
+
+	/**
+	 * Removes the events matching the filter, see
+	 * {@link EventQueue#removeIf(BiPredicate)}, from Top, the ladder and Bottom.
+	 * The tiers are left as they are, only their lists get shorter.
+	 */
+	public int removeIf(BiPredicate<Node, Object> filter)
+	{
+		int before = size;
+		top = filterList(top, filter);
+		topCount = 0;
+		for (int s = top; s != NIL; s = next[s]) {
+			if (topCount++ == 0)
+				topMin = topMax = times[s];
+			else if (times[s] < topMin)
+				topMin = times[s];
+			else if (times[s] > topMax)
+				topMax = times[s];
+		}
+		for (int r = 0; r < nRungs; r++) {
+			for (int b = rungCur[r]; b < rungBuckets[r]; b++) {
+				if (rungCounts[r][b] == 0)
+					continue;
+				int head = filterList(rungHeads[r][b], filter);
+				rungHeads[r][b] = head;
+				int count = 0;
+				for (int s = head; s != NIL; s = next[s])
+					count++;
+				rungCounts[r][b] = count;
+			}
+		}
+		bottom = filterList(bottom, filter);
+		bottomCount = 0;
+		for (int s = bottom; s != NIL; s = next[s])
+			bottomCount++;
+
+		if (size == 0) {
+			nRungs = 0;
+			topStart = Long.MIN_VALUE;
+		}
+		return before - size;
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Prints the time values contained in the queue, tier by tier.
+	 */
+	public String toString()
+	{
+		StringBuffer buffer = new StringBuffer();
+		buffer.append("[Size: " + size + " Rungs: " + nRungs + " Bottom: ");
+		for (int s = bottom; s != NIL; s = next[s])
+			buffer.append(times[s] + ",");
+		for (int r = nRungs - 1; r >= 0; r--) {
+			buffer.append(" Rung" + r + ": ");
+			for (int b = rungCur[r]; b < rungBuckets[r]; b++)
+				for (int s = rungHeads[r][b]; s != NIL; s = next[s])
+					buffer.append(times[s] + ",");
+		}
+		buffer.append(" Top: ");
+		for (int s = top; s != NIL; s = next[s])
+			buffer.append(times[s] + ",");
+		buffer.append("]");
+		return buffer.toString();
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	// Private methods
+	// --------------------------------------------------------------------------
+
+	/**
+	 * Makes sure Bottom holds the earliest event, refilling it from the ladder
+	 * (and the ladder from Top) if needed. Assumes the queue is not empty.
+	 */
+	private void fillBottom()
+	{
+		while (bottom == NIL) {
+			if (nRungs == 0) {
+				transferTop();
+				continue;
+			}
+
+			// Find the first non-empty bucket of the innermost rung
+			int r = nRungs - 1;
+			int[] heads = rungHeads[r];
+			int b = rungCur[r];
+			int nb = rungBuckets[r];
+			while (b < nb && heads[b] == NIL)
+				b++;
+			if (b == nb) { // rung exhausted
+				nRungs--;
+				continue;
+			}
+
+			// Consume the bucket, all later events in its range go to Bottom
+			// or to its child rung
+			int head = heads[b];
+			int count = rungCounts[r][b];
+			heads[b] = NIL;
+			rungCounts[r][b] = 0;
+			rungCur[r] = b + 1;
+			rungCurStart[r] = rungStart[r] + (b + 1) * rungWidth[r];
+
+			if (count > THRES && rungWidth[r] > 1 && nRungs < MAX_RUNGS)
+				spawnRung(head, count, rungStart[r] + b * rungWidth[r], rungWidth[r]);
+			else {
+				for (int s = head, n; s != NIL; s = n) {
+					n = next[s];
+					insertBottom(s);
+				}
+			}
+		}
+	}
+
+
+
+	/**
+	 * Copies the head of Bottom into <code>e</code>, and removes it. Assumes
+	 * Bottom is not empty.
+	 */
+	private void poll(Event e)
+	{
+		int slot = bottom;
+		bottom = next[slot];
+		bottomCount--;
+		size--;
+		e.time = times[slot];
+		e.src = srcs[slot];
+		e.node = nodes[slot];
+		e.pid = pids[slot];
+		e.event = events[slot];
+		release(slot);
+		if (size == 0)
+			topStart = Long.MIN_VALUE;
+	}
+
+
+
+	/**
+	 * Spreads the events of Top over a new first rung.
+	 */
+	private void transferTop()
+	{
+		long width = (topMax - topMin) / topCount + 1;
+		int nb = (int) ((topMax - topMin) / width) + 1;
+		prepareRung(0, nb, topMin, width);
+		nRungs = 1;
+		topStart = topMin + nb * width;
+
+		for (int s = top, n; s != NIL; s = n) {
+			n = next[s];
+			int b = (int) ((times[s] - topMin) / width);
+			next[s] = rungHeads[0][b];
+			rungHeads[0][b] = s;
+			rungCounts[0][b]++;
+		}
+		top = NIL;
+		topCount = 0;
+	}
+
+
+
+	/**
+	 * Spreads the events of a bucket over a new innermost rung.
+	 *
+	 * @param head  the bucket list
+	 * @param count the number of events in the bucket
+	 * @param start the key at which the bucket starts
+	 * @param span  the width of the bucket
+	 */
+	private void spawnRung(int head, int count, long start, long span)
+	{
+		int r = nRungs;
+		long width = (span + count - 1) / count;
+		int nb = (int) ((span + width - 1) / width);
+		prepareRung(r, nb, start, width);
+		nRungs++;
+
+		int[] heads = rungHeads[r];
+		int[] counts = rungCounts[r];
+		for (int s = head, n; s != NIL; s = n) {
+			n = next[s];
+			int b = (int) ((times[s] - start) / width);
+			next[s] = heads[b];
+			heads[b] = s;
+			counts[b]++;
+		}
+	}
+
+
+
+	/**
+	 * Spreads the events of Bottom over a new innermost rung, which covers
+	 * them up to the start of the current bucket of the innermost rung (or up
+	 * to Top, if the ladder is empty), so that later events of that range are
+	 * inserted into its buckets rather than into Bottom.
+	 */
+	private void spawnBottom()
+	{
+		long start = times[bottom];
+		long end = nRungs == 0 ? topStart : rungCurStart[nRungs - 1];
+		spawnRung(bottom, bottomCount, start, end - start);
+		bottom = NIL;
+		bottomCount = 0;
+	}
+
+
+
+	/**
+	 * Initializes the bookkeeping of rung <code>r</code>, reusing its arrays
+	 * when they are large enough.
+	 */
+	private void prepareRung(int r, int nb, long start, long width)
+	{
+		if (rungHeads[r] == null || rungHeads[r].length < nb) {
+			rungHeads[r] = new int[nb];
+			rungCounts[r] = new int[nb];
+		}
+		Arrays.fill(rungHeads[r], 0, nb, NIL);
+		Arrays.fill(rungCounts[r], 0, nb, 0);
+		rungBuckets[r] = nb;
+		rungWidth[r] = width;
+		rungStart[r] = start;
+		rungCur[r] = 0;
+		rungCurStart[r] = start;
+	}
+
+
+
+	/**
+	 * Inserts a slot in the sorted Bottom list. Among equal keys, the order is
+	 * irrelevant, so new events are placed in front of them.
+	 */
+	private void insertBottom(int slot)
+	{
+		long time = times[slot];
+		if (bottomCount++ == 0 || time > bottomMax)
+			bottomMax = time;
+		if (bottom == NIL || times[bottom] >= time) {
+			next[slot] = bottom;
+			bottom = slot;
+			return;
+		}
+		int cur = bottom, nxt;
+		while ((nxt = next[cur]) != NIL && times[nxt] < time)
+			cur = nxt;
+		next[slot] = nxt;
+		next[cur] = slot;
+	}
+
+
+
+	/**
+	 * Unlinks and releases the events of a list that match the filter, keeping
+	 * the order of the others.
+	 *
+	 * @return the new head of the list
+	 */
+	private int filterList(int head, BiPredicate<Node, Object> filter)
+	{
+		int first = NIL, last = NIL;
+		for (int s = head, n; s != NIL; s = n) {
+			n = next[s];
+			if (filter.test(nodes[s], events[s])) {
+				release(s);
+				size--;
+				continue;
+			}
+			if (last == NIL)
+				first = s;
+			else
+				next[last] = s;
+			last = s;
+		}
+		if (last != NIL)
+			next[last] = NIL;
+		return first;
+	}
+
+
+
+	/**
+	 * Returns a free arena slot, growing the arena if needed.
+	 */
+	private int allocate()
+	{
+		if (free != NIL) {
+			int slot = free;
+			free = next[slot];
+			return slot;
+		}
+		if (used == times.length)
+			doubleCapacity();
+		return used++;
+	}
+
+
+
+	/**
+	 * Returns a slot to the free list, dropping its references so that the
+	 * garbage collector can reclaim them.
+	 */
+	private void release(int slot)
+	{
+		srcs[slot] = null;
+		nodes[slot] = null;
+		events[slot] = null;
+		next[slot] = free;
+		free = slot;
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 *
+	 */
+	private void doubleCapacity()
+	{
+		int newsize = times.length * 2;
+		times = Arrays.copyOf(times, newsize);
+		srcs = Arrays.copyOf(srcs, newsize);
+		nodes = Arrays.copyOf(nodes, newsize);
+		pids = Arrays.copyOf(pids, newsize);
+		events = Arrays.copyOf(events, newsize);
+		next = Arrays.copyOf(next, newsize);
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	// Testing
+	// --------------------------------------------------------------------------
+	/**
+	 * Runs a hold model (remove the first event, schedule new ones after it)
+	 * with a skewed mix of zero, short and very long delays on both a
+	 * {@link LadderQueue} and a {@link Heap}, fed with the same keys, and
+	 * checks that both dequeue the keys in the same order. The recorded
+	 * sequence of keys is then replayed on each queue separately, for timing.
+	 * <p>
+	 * A second hold model starts from a sparse first rung, with one event now
+	 * and one far in the future (as a control would be), and then short delays
+	 * only, which all go to Bottom until it is spread over a rung.
+	 */
+	public static void main(String[] args)
+	{
+		int rep = 1000000;
+		if (args.length>0)
+			rep = Integer.parseInt(args[0]);
+		long seed = 1;
+		if (args.length>1)
+			seed = Long.parseLong(args[1]);
+		int rbits = 8;
+
+		Random random = new Random(seed);
+		LadderQueue ladder = new LadderQueue();
+		Heap heap = new Heap();
+		long[] values = new long[3*rep];
+		long errorCount = 0;
+
+		for (int i = 0; i<rep; i++)
+		{
+			values[i] = ((long) random.nextInt(1000)<<rbits) | random.nextInt(1<<rbits);
+			ladder.add(values[i], null, null, (byte) 1, null);
+			heap.add(values[i], null, null, (byte) 1, null);
+		}
+		for (int i = rep; i<3*rep; i+=2)
+		{
+			long first = heap.removeFirst().time;
+			if (ladder.removeFirst().time!=first)
+				errorCount++;
+			long now = first>>rbits;
+			for (int j = i; j<i+2; j++)
+			{
+				int mode = random.nextInt(10);
+				long delay = mode<4 ? 0 : mode<8 ? random.nextInt(10) : 100000+random.nextInt(1000000);
+				values[j] = ((now+delay)<<rbits) | random.nextInt(1<<rbits);
+				ladder.add(values[j], null, null, (byte) 1, null);
+				heap.add(values[j], null, null, (byte) 1, null);
+			}
+		}
+		while (heap.size()>0)
+		{
+			if (ladder.removeFirst().time!=heap.removeFirst().time)
+				errorCount++;
+		}
+		if (ladder.size()!=0)
+			errorCount++;
+		if(errorCount > 0) {
+			System.out.println("Incorrect order: " + errorCount + " unexpected values");
+		}
+
+		EventQueue[] queues = {new LadderQueue(), new Heap()};
+		for (EventQueue queue : queues)
+		{
+			long time1 = System.currentTimeMillis();
+			for (int i = 0; i<rep; i++)
+				queue.add(values[i], null, null, (byte) 1, null);
+			for (int i = rep; i<3*rep; i+=2)
+			{
+				queue.removeFirst();
+				queue.add(values[i], null, null, (byte) 1, null);
+				queue.add(values[i+1], null, null, (byte) 1, null);
+			}
+			while (queue.size()>0)
+				queue.removeFirst();
+			long time2 = System.currentTimeMillis();
+			System.out.println(queue.getClass().getSimpleName()+": "+(time2-time1));
+		}
+
+		// Sparse first rung, then a hold model with delays of 0 to 99
+		int n = Math.min(rep, 100000);
+		queues = new EventQueue[] {new LadderQueue(), new Heap()};
+		long[] sparse = new long[queues.length];
+		for (int q = 0; q<queues.length; q++)
+		{
+			EventQueue queue = queues[q];
+			random = new Random(seed);
+			long time1 = System.currentTimeMillis();
+			queue.add(0, null, null, (byte) 1, null);
+			queue.add(1L<<40, null, null, (byte) 1, null);
+			queue.removeFirst();
+			for (int i = 0; i<n; i++)
+				queue.add(((long) random.nextInt(100)<<rbits) | random.nextInt(1<<rbits), null, null, (byte) 1, null);
+			long sum = 0;
+			for (int i = 0; i<3*n; i++)
+			{
+				long first = queue.removeFirst().time;
+				sum = sum*31+first;
+				long now = first>>rbits;
+				queue.add(((now+random.nextInt(100))<<rbits) | random.nextInt(1<<rbits), null, null, (byte) 1, null);
+			}
+			sparse[q] = sum;
+			long time2 = System.currentTimeMillis();
+			System.out.println(queue.getClass().getSimpleName()+" (sparse first rung): "+(time2-time1));
+		}
+		if (sparse[0]!=sparse[1])
+			System.out.println("Incorrect order after a sparse first rung");
+
+		System.out.println("Done!");
+	}
+}
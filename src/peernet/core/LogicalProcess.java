@@ -0,0 +1,46 @@
+package peernet.core;
+
+import peernet.util.ExtendedRandom;
+
+
+/**
+ * A logical process of a parallel SIM engine: a thread simulating a partition
+ * of the nodes. Each logical process has its own notion of current time, which
+ * {@link CommonState#getTime()} returns when called from within it (see
+ * {@link CommonState#setProcessTime(boolean)}), and its own source of
+ * randomness, which is used instead of the global one when
+ * {@link CommonState#r} is a {@link ProcessRandom}.
+ * <p>
+ * The actual work is defined by the engine, through the {@link Runnable}
+ * passed to the constructor.
+ */
+class LogicalProcess extends Thread
+{
+	/** Index of this process, i.e., of the partition it simulates */
+	final int index;
+
+	/** The source of randomness of this process */
+	final ExtendedRandom random;
+
+	/** Current time of this process */
+	long time = 0;
+
+	/** Set if the body of this process has thrown */
+	volatile Throwable failure = null;
+
+
+
+	/**
+	 * Creates a logical process, whose source of randomness is a substream of
+	 * <code>global</code>, and thus of the same class. Substream keys count
+	 * down from {@link Long#MAX_VALUE}, apart from those of the nodes and
+	 * subsystems (see {@link RandomStream}).
+	 */
+	LogicalProcess(int index, ExtendedRandom global, Runnable body)
+	{
+		super(body, "LogicalProcess-" + index);
+		this.index = index;
+		this.random = global.substream(Long.MAX_VALUE - index);
+		setDaemon(true);
+	}
+}
@@ -28,9 +28,9 @@ import java.util.Arrays;
 /**
  * This class forms the basic framework of all simulations. This is a static
  * singleton which is based on the assumption that we will simulate only one
- * overlay network at a time. This allows us to reduce memory usage in many
- * cases by allowing all the components to directly reach the fields of this
- * class without having to store a reference.
+ * overlay network at a time (per {@link SimulationContext}). This allows us to
+ * reduce memory usage in many cases by allowing all the components to directly
+ * reach the methods of this class without having to store a reference.
  * <p>
  * The network is a set of nodes implemented via an array for the sake of
  * efficiency. Each node has an array of protocols. The protocols within a node
@@ -72,29 +72,6 @@ public class Network {
      */
     private static final String PAR_SIZE = "network.size";
 
-    /**
-     * The node array. The actual node set consists of only the first
-     * {@link #size()} items of the array.
-     */
-    private static Node[] nodes = null;
-
-    /**
-     * Actual size of the network.
-     */
-    private static int len;
-
-    /**
-     * The prototype node which is used to populate the simulation via cloning.
-     * After all the nodes have been cloned, {@link Control} components can be
-     * applied to perform any further initialization.
-     */
-    private static Node prototype = null;
-
-    /**
-     * A map that has all nodes indexed by their unique ID
-     */
-    private static Map<Long, Node> nodesByID;
-
     // ====================== initialization ===========================
     // =================================================================
 
@@ -103,33 +80,62 @@ public class Network {
      * populates the network by cloning the prototype.
      */
     public static void reset() {
-        prototype = null;
-        nodes = null;
+        SimulationContext context = SimulationContext.current();
+        context.prototype = null;
+        context.nodes = null;
 
-        len = Configuration.getInt(PAR_SIZE);
-        int maxlen = Configuration.getInt(PAR_MAXSIZE, len);
-        if (maxlen < len)
+        context.len = Configuration.getInt(PAR_SIZE);
+        int maxlen = Configuration.getInt(PAR_MAXSIZE, context.len);
+        if (maxlen < context.len)
             throw new IllegalArgumentException(PAR_MAXSIZE + " is less than " + PAR_SIZE);
 
-        nodes = new Node[maxlen];
-        nodesByID = new HashMap<Long, Node>(maxlen);
+        context.nodes = new Node[maxlen];
+        context.nodesByID = new HashMap<Long, Node>(maxlen);
+        context.prototype = createPrototype();
+
+        // cloning the nodes
+        for (int i = 0; i < context.len; ++i) {
+            context.nodes[i] = (Node) context.prototype.clone();
+            context.nodes[i].setIndex(i);
+            context.nodesByID.put(context.nodes[i].getID(), context.nodes[i]);
+        }
+    }
+
+
+    /**
+     * Installs the nodes read from a snapshot (see {@link Checkpoint}), instead
+     * of populating the network from the configuration. The prototype node is
+     * still built from the configuration, and completes the restored nodes.
+     *
+     * @param restored the node list, whose capacity is kept
+     * @param len the number of nodes in the network
+     */
+    static void restore(Node[] restored, int len) {
+        SimulationContext context = SimulationContext.current();
+        context.prototype = createPrototype();
+        context.nodes = restored;
+        context.len = len;
+        context.nodesByID = new HashMap<Long, Node>(restored.length);
+        for (int i = 0; i < len; ++i) {
+            restored[i].restored(context.prototype);
+            context.nodesByID.put(restored[i].getID(), restored[i]);
+        }
+    }
+
 
-        // creating prototype node
+    /**
+     * Constructs the prototype node.
+     */
+    private static Node createPrototype() {
+        Node prototype;
         if (!Configuration.contains(PAR_NODE)) {
             System.err.println("Network: no node defined, using GeneralNode");
             prototype = new Node("");
         } else {
             prototype = (Node) Configuration.getInstance(PAR_NODE);
         }
-
         prototype.setIndex(-1);
-
-        // cloning the nodes
-        for (int i = 0; i < len; ++i) {
-            nodes[i] = (Node) prototype.clone();
-            nodes[i].setIndex(i);
-            nodesByID.put(nodes[i].getID(), nodes[i]);
-        }
+        return prototype;
     }
 
 
@@ -147,7 +153,7 @@ public class Network {
      * Number of nodes currently in the network
      */
     public static int size() {
-        return len;
+        return SimulationContext.current().len;
     }
 
 
@@ -159,13 +165,14 @@ public class Network {
      * size of the node list, then the end of the list is cut.
      */
     private static void setCapacity(int newSize) {
-        if (nodes == null || newSize != nodes.length) {
+        SimulationContext context = SimulationContext.current();
+        if (context.nodes == null || newSize != context.nodes.length) {
             Node[] newnodes = new Node[newSize];
-            final int l = Math.min(nodes.length, newSize);
-            System.arraycopy(nodes, 0, newnodes, 0, l);
-            nodes = newnodes;
-            if (len > newSize)
-                len = newSize;
+            final int l = Math.min(context.nodes.length, newSize);
+            System.arraycopy(context.nodes, 0, newnodes, 0, l);
+            context.nodes = newnodes;
+            if (context.len > newSize)
+                context.len = newSize;
         }
     }
 
@@ -177,7 +184,7 @@ public class Network {
      * the underlying array to increase capacity.
      */
     public static int getCapacity() {
-        return nodes.length;
+        return SimulationContext.current().nodes.length;
     }
 
 
@@ -188,15 +195,16 @@ public class Network {
      * capacity of the internal array is increased.
      */
     static Node addNode() {
-        if (len == nodes.length)
-            setCapacity(3 * nodes.length / 2 + 1);
+        SimulationContext context = SimulationContext.current();
+        if (context.len == context.nodes.length)
+            setCapacity(3 * context.nodes.length / 2 + 1);
 
-        Node n = (Node) Network.prototype.clone();
+        Node n = (Node) context.prototype.clone();
 
-        nodes[len] = n;
-        n.setIndex(len);
-        nodesByID.put(n.getID(), n);
-        len++;
+        context.nodes[context.len] = n;
+        n.setIndex(context.len);
+        context.nodesByID.put(n.getID(), n);
+        context.len++;
 
         return n;
     }
@@ -211,7 +219,7 @@ public class Network {
      * efficiency. The maximal valid index is {@link #size()}.
      */
     public static Node get(int index) {
-        return nodes[index];
+        return SimulationContext.current().nodes[index];
     }
 
 
@@ -219,7 +227,7 @@ public class Network {
      * Returns the node based on the given ID. Fixed by Joao Leitao on 31/03/2021
      */
     public static Node getByID(long ID) {
-        return nodesByID.get(ID);
+        return SimulationContext.current().nodesByID.get(ID);
     }
 
 
@@ -230,10 +238,11 @@ public class Network {
      * also sets the fail state of the node to {@link Fallible#DEAD}.
      */
     public static Node removeLast() {
-        Node n = nodes[len - 1]; // if len was zero this throws and exception
-        nodes[len - 1] = null;
-        nodesByID.remove(n.getID());
-        len--;
+        SimulationContext context = SimulationContext.current();
+        Node n = context.nodes[context.len - 1]; // if len was zero this throws and exception
+        context.nodes[context.len - 1] = null;
+        context.nodesByID.remove(n.getID());
+        context.len--;
         n.setFailState(Fallible.DEAD);
         return n;
     }
@@ -250,9 +259,10 @@ public class Network {
      * the last node is moved to the given position and will get index i.
      */
     public static Node remove(int i) {
-        if (i < 0 || i >= len)
+        SimulationContext context = SimulationContext.current();
+        if (i < 0 || i >= context.len)
             throw new IndexOutOfBoundsException("" + i);
-        swap(i, len - 1);
+        swap(i, context.len - 1);
         return removeLast();
     }
 
@@ -263,11 +273,12 @@ public class Network {
      * Swaps the two nodes at the given indices.
      */
     private static void swap(int i, int j) {
-        Node n = nodes[i];
-        nodes[i] = nodes[j];
-        nodes[j] = n;
-        nodes[j].setIndex(j);
-        nodes[i].setIndex(i);
+        SimulationContext context = SimulationContext.current();
+        Node n = context.nodes[i];
+        context.nodes[i] = context.nodes[j];
+        context.nodes[j] = n;
+        context.nodes[j].setIndex(j);
+        context.nodes[i].setIndex(i);
     }
 
 
@@ -277,7 +288,8 @@ public class Network {
      * Shuffles the node array. The index of each node is updated accordingly.
      */
     public static void shuffle() {
-        for (int i = len; i > 1; i--)
+        SimulationContext context = SimulationContext.current();
+        for (int i = context.len; i > 1; i--)
             swap(i - 1, CommonState.r.nextInt(i));
     }
 
@@ -291,8 +303,9 @@ public class Network {
      *          natural order of the nodes is used.
      */
     public static void sort(Comparator<? super Node> c) {
-        Arrays.sort(nodes, 0, len, c);
-        for (int i = 0; i < len; i++)
-            nodes[i].setIndex(i);
+        SimulationContext context = SimulationContext.current();
+        Arrays.sort(context.nodes, 0, context.len, c);
+        for (int i = 0; i < context.len; i++)
+            context.nodes[i].setIndex(i);
     }
 }
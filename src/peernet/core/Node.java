@@ -17,12 +17,14 @@
  */
 package peernet.core;
 
+import java.io.Serializable;
 import java.util.Vector;
 import java.util.concurrent.Semaphore;
 
 import peernet.config.Configuration;
 import peernet.core.Engine.Type;
 import peernet.transport.Transport;
+import peernet.util.ExtendedRandom;
 
 
 /**
@@ -31,7 +33,9 @@ import peernet.transport.Transport;
  * able to represent failure states and store a list of protocols. It is the
  * protocols that do the interesting job.
  */
-public class Node implements Fallible, Cloneable {
+public class Node implements Fallible, Cloneable, Serializable {
+    private static final long serialVersionUID = 1;
+
     /**
      * Prefix of the parameters that defines protocols.
      *
@@ -48,11 +52,6 @@ public class Node implements Fallible, Cloneable {
     private static final String PAR_TRANSPORT = "transport";
 
 
-    /**
-     * used to generate unique IDs
-     */
-    private static long counterID = -1;
-
     /**
      * The protocols on this node.
      */
@@ -61,12 +60,12 @@ public class Node implements Fallible, Cloneable {
     /**
      * The transports on this node.
      */
-    private Transport[] transports = null;
+    private transient Transport[] transports = null;
 
     /**
      * Mapping i->j means protocol[i] has transport[j]
      */
-    private int mappingProtTrans[] = null;
+    private transient int mappingProtTrans[] = null;
 
     /**
      * The current index of this node in the node list of the {@link Network}. It
@@ -89,12 +88,17 @@ public class Node implements Fallible, Cloneable {
     /**
      * The heap storing events for this node
      */
-    private Heap heap;
+    private transient Heap heap;
 
     /**
      * The semaphore controlling access to the node's heap
      */
-    private Semaphore semaphore;
+    private transient Semaphore semaphore;
+
+    /**
+     * The random substreams of this node, created on first use.
+     */
+    private ExtendedRandom[] streams;
 
 
     /**
@@ -186,6 +190,7 @@ public class Node implements Fallible, Cloneable {
         node.protocols = protocols.clone();
         // CommonState.setNode(result);
         node.ID = nextID();
+        node.streams = null;
         for (int i = 0; i < protocols.length; i++) {
             // CommonState.setPid(i);
             node.protocols[i] = (Protocol) protocols[i].clone();
@@ -203,6 +208,41 @@ public class Node implements Fallible, Cloneable {
     }
 
 
+    /**
+     * Completes a node read from a snapshot (see {@link Checkpoint}), with the
+     * parts that are derived from the configuration rather than saved: the
+     * transports, and the settings of the protocols, which are taken from the
+     * prototype node. Does nothing if the node is already complete.
+     */
+    void restored(Node prototype) {
+        if (transports != null)
+            return;
+        if (protocols.length != prototype.protocols.length)
+            throw new IllegalStateException("Node " + ID + " has " + protocols.length + " protocols, but " + prototype.protocols.length + " are configured");
+        for (int i = 0; i < protocols.length; i++)
+            protocols[i].settings = prototype.protocols[i].settings;
+
+        mappingProtTrans = prototype.mappingProtTrans;
+        transports = prototype.transports.clone();
+        for (int i = 0; i < transports.length; i++)
+            transports[i] = (Transport) prototype.transports[i].clone();
+    }
+
+
+    /**
+     * Returns the substream of a subsystem for this node, derived from
+     * <code>random</code> and the ID of the node.
+     */
+    ExtendedRandom stream(RandomStream stream, ExtendedRandom random) {
+        if (streams == null)
+            streams = new ExtendedRandom[RandomStream.values().length];
+        ExtendedRandom r = streams[stream.ordinal()];
+        if (r == null)
+            r = streams[stream.ordinal()] = random.substream(ID * streams.length + stream.ordinal());
+        return r;
+    }
+
+
     /**
      * Returns the number of protocols included in this node.
      */
@@ -249,7 +289,7 @@ public class Node implements Fallible, Cloneable {
      * returns the next unique ID
      */
     protected long nextID() {
-        return counterID++;
+        return SimulationContext.current().counterID++;
     }
 
 
@@ -291,11 +331,15 @@ public class Node implements Fallible, Cloneable {
                 break;
             case DEAD:
                 // protocol = null;
+                boolean wasDead = failstate == DEAD;
                 index = -1;
                 failstate = DEAD;
                 for (int i = 0; i < protocols.length; ++i)
                     if (protocols[i] instanceof Cleanable)
                         ((Cleanable) protocols[i]).onKill();
+                // Let the engine reclaim the events still pending for this node
+                if (!wasDead)
+                    Engine.instance().nodeKilled(this);
                 break;
             case DOWN:
                 failstate = DOWN;
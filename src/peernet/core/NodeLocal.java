@@ -0,0 +1,15 @@
+package peernet.core;
+
+/**
+ * Marker interface for protocols whose {@link Protocol#nextCycle(int)} only
+ * modifies the state of their own node, and does not read state that other
+ * nodes modify in their own <code>nextCycle</code>. Events may still be sent
+ * and scheduled, as usual.
+ * <p>
+ * {@link EngineCD} runs the cycles of such protocols in parallel, when
+ * configured with more than one thread. {@link CommonState#r} and
+ * {@link CommonState#getTime()} may be used from within the cycle; any other
+ * static or shared state must not be modified.
+ */
+public interface NodeLocal {
+}
@@ -12,7 +12,7 @@ import peernet.core.Engine.AddressType;
 import peernet.transport.Address;
 import peernet.transport.AddressNet;
 import peernet.transport.AddressSim;
-import peernet.transport.TransportUDP;
+import peernet.transport.TransportNet;
 
 /**
  * A Peer represents a link between two nodes. It is the information
@@ -93,7 +93,7 @@ public class Peer implements Serializable, Cloneable {
     public Peer(Node node, int pid) {
         // set the address
         if (Engine.getAddressType() == AddressType.NET)
-            address = new AddressNet(localhost, ((TransportUDP) node.getTransport(0)).getPort()); //FIXME: change 0 to pid-something
+            address = new AddressNet(localhost, ((TransportNet) node.getTransport(0)).getPort()); //FIXME: change 0 to pid-something
         else
             address = new AddressSim(node);
 
@@ -0,0 +1,143 @@
+package peernet.core;
+
+import peernet.util.ExtendedRandom;
+
+
+/**
+ * Source of randomness installed as {@link CommonState#r} by parallel SIM
+ * engines. When invoked from within a {@link LogicalProcess}, all calls are
+ * forwarded to that process' own generator, so that the random sequence seen
+ * by each partition does not depend on how threads are interleaved. Calls from
+ * any other thread (e.g., controls running between windows) are forwarded to
+ * the generator that was in use before the parallel engine started.
+ */
+class ProcessRandom extends ExtendedRandom
+{
+	private static final long serialVersionUID = 1L;
+
+	/** The generator used outside logical processes */
+	final ExtendedRandom global;
+
+
+
+	ProcessRandom(ExtendedRandom global)
+	{
+		super(global.getLastSeed());
+		this.global = global;
+	}
+
+
+
+	/**
+	 * Returns the generator of the calling logical process, or the global one.
+	 */
+	private ExtendedRandom current()
+	{
+		Thread thread = Thread.currentThread();
+		if (thread instanceof LogicalProcess)
+			return ((LogicalProcess) thread).random;
+		return global;
+	}
+
+
+
+	@Override
+	public int nextInt()
+	{
+		return current().nextInt();
+	}
+
+
+
+	@Override
+	public int nextInt(int bound)
+	{
+		return current().nextInt(bound);
+	}
+
+
+
+	@Override
+	public long nextLong()
+	{
+		return current().nextLong();
+	}
+
+
+
+	@Override
+	public long nextLong(long n)
+	{
+		return current().nextLong(n);
+	}
+
+
+
+	@Override
+	public double nextDouble()
+	{
+		return current().nextDouble();
+	}
+
+
+
+	@Override
+	public float nextFloat()
+	{
+		return current().nextFloat();
+	}
+
+
+
+	@Override
+	public boolean nextBoolean()
+	{
+		return current().nextBoolean();
+	}
+
+
+
+	@Override
+	public double nextGaussian()
+	{
+		return current().nextGaussian();
+	}
+
+
+
+	@Override
+	public void nextBytes(byte[] bytes)
+	{
+		current().nextBytes(bytes);
+	}
+
+
+
+	@Override
+	public int nextPoisson(double mean)
+	{
+		return current().nextPoisson(mean);
+	}
+
+
+
+	/**
+	 * Seeds the global generator. The generators of logical processes are
+	 * seeded by their engine.
+	 */
+	@Override
+	public void setSeed(long seed)
+	{
+		// Called by the constructor of Random, before global is set
+		if (global != null)
+			global.setSeed(seed);
+	}
+
+
+
+	@Override
+	public long getLastSeed()
+	{
+		return global.getLastSeed();
+	}
+}
@@ -16,6 +16,7 @@
  */
 package peernet.core;
 
+import java.io.Serializable;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 
@@ -28,7 +29,9 @@ import peernet.transport.Address;
  * <p>
  * XXX: Add documentation
  */
-public abstract class Protocol implements Cloneable {
+public abstract class Protocol implements Cloneable, Serializable {
+    private static final long serialVersionUID = 1;
+
     /**
      * Parameter for assigning a settings class to a protocol.
      *
@@ -37,9 +40,10 @@ public abstract class Protocol implements Cloneable {
     public static final String PAR_SETTINGS = "settings";
 
     /**
-     * Settings of this protocol
+     * Settings of this protocol. Not part of checkpoints, as they are derived
+     * from the configuration.
      */
-    protected ProtocolSettings settings;
+    protected transient ProtocolSettings settings;
 
     /**
      * The Node this protocol belongs to. Available through the public
@@ -95,6 +99,26 @@ public abstract class Protocol implements Cloneable {
     }
 
 
+    /**
+     * Schedules an internal event that can be cancelled.
+     * <p>
+     * Like {@link #schedule(long, Object)}, arranges an <code>event</code>
+     * Object to be delivered to the same node, same protocol, in
+     * <code>delay</code> time units, unless the returned {@link Timer} is
+     * cancelled in the meantime. The event is delivered as is, not wrapped in
+     * the timer.
+     *
+     * @param delay the time units in which the event will be triggered
+     * @param event the object to be delivered
+     * @return a handle to cancel the event
+     */
+    public final Timer scheduleTimer(long delay, Object event) {
+        Timer timer = new Timer(event);
+        Engine.instance().addEventIn(delay, null, node, settings.pid, timer);
+        return timer;
+    }
+
+
     public long nextDelay()  //XXX What is this????
     {
         return 0;
@@ -0,0 +1,520 @@
+package peernet.core;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.BiPredicate;
+
+import peernet.transport.Address;
+
+
+/**
+ * Monotone radix heap (Ahuja, Mehlhorn, Orlin, Tarjan, "Faster algorithms for
+ * the shortest path problem", JACM 1990) used as an alternative
+ * {@link EventQueue} for the SIM engine. Select it by setting
+ * {@value peernet.Simulator#PAR_SIM_HEAP} to
+ * <code>peernet.core.RadixHeap</code>.
+ * <p>
+ * The SIM engine only schedules events at <code>CommonState.getTime() +
+ * delay</code>, with a non-negative delay, so the simulation time of the
+ * events leaving the queue never decreases. This heap exploits that: events
+ * are placed in bucket <em>i</em> when the highest bit in which their time
+ * differs from the time of the last dequeued event is bit <em>i-1</em>. When
+ * the events of the current time are exhausted, the first non-empty bucket is
+ * scanned for its minimum and redistributed to lower buckets, which amounts to
+ * O(log C) work per event, C being the largest delay, and no comparisons at
+ * all outside of that scan. Buckets are plain contiguous arrays of keys and
+ * slot indices.
+ * <p>
+ * Monotonicity holds for the time part of the key only: the random low
+ * <code>rbits</code> bits appended by the engine may go backwards within the
+ * same time unit. Events of the current time unit are therefore kept in a
+ * small binary heap ordered by their full key (bucket 0).
+ * <p>
+ * Inserting an event earlier than the last dequeued time breaks the
+ * invariant, and is rejected with an {@link IllegalStateException}.
+ */
+public class RadixHeap implements EventQueue
+{
+	// --------------------------------------------------------------------------
+	// Constants
+	// --------------------------------------------------------------------------
+	/** Initial size of the arena and of each bucket */
+	private static final int SIZE = 16;
+	/** Number of radix buckets, not counting bucket 0 */
+	private static final int BUCKETS = 64;
+	/** Marks the end of the free list */
+	private static final int NIL = -1;
+
+	// --------------------------------------------------------------------------
+	// Fields
+	// --------------------------------------------------------------------------
+	/** Number of low bits of the key that do not belong to the time */
+	private final int rbits;
+
+	/** Src component of the arena */
+	private Address[] srcs;
+	/** Node component of the arena */
+	private Node[] nodes;
+	/** Pid component of the arena */
+	private byte[] pids;
+	/** Event component of the arena */
+	private Object[] events;
+	/** Next slot in the free list */
+	private int[] nextFree;
+	/** Head of the free list */
+	private int free = NIL;
+	/** Number of arena slots ever handed out */
+	private int used = 0;
+
+	/** Keys of the radix buckets, bucket i is at index i-1 */
+	private final long[][] bucketKeys = new long[BUCKETS][];
+	/** Slots of the radix buckets, bucket i is at index i-1 */
+	private final int[][] bucketSlots = new int[BUCKETS][];
+	/** Number of events per radix bucket */
+	private final int[] bucketSize = new int[BUCKETS];
+	/** Bit i-1 is set iff radix bucket i is not empty */
+	private long occupied = 0;
+
+	/** Keys of bucket 0, a binary heap (1-based) of the current time's events */
+	private long[] heapKeys;
+	/** Slots of bucket 0 */
+	private int[] heapSlots;
+	/** Number of events in bucket 0 */
+	private int heapSize = 0;
+
+	/** Time (key &gt;&gt; rbits) of the last dequeued event */
+	private long last = 0;
+	/** Number of events */
+	private int size;
+
+	/** Singleton event object used to return (event, time, node, pid) tuples */
+	private final Event ev = new Event();
+	private final Events evs = new Events(1);
+
+
+
+	// --------------------------------------------------------------------------
+	// Constructor
+	// --------------------------------------------------------------------------
+	/**
+	 * Initializes a new radix heap for the number of random bits used by the
+	 * engine.
+	 */
+	public RadixHeap()
+	{
+		this(Engine.instance().rbits);
+	}
+
+
+
+	/**
+	 * Initializes a new radix heap for keys whose lowest <code>rbits</code>
+	 * bits are not part of the time.
+	 */
+	public RadixHeap(int rbits)
+	{
+		this.rbits = rbits;
+		srcs = new Address[SIZE];
+		nodes = new Node[SIZE];
+		pids = new byte[SIZE];
+		events = new Object[SIZE];
+		nextFree = new int[SIZE];
+		heapKeys = new long[SIZE + 1];
+		heapSlots = new int[SIZE + 1];
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	// Methods
+	// --------------------------------------------------------------------------
+	/**
+	 * Returns the current number of events in the system.
+	 */
+	public long size()
+	{
+		return size;
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Add a new event, to be scheduled at the specified time.
+	 *
+	 * @param time  the time at which this event should be scheduled
+	 * @param event the object decribing the event
+	 * @param node  the node at which the event has to be delivered
+	 * @param pid   the protocol that handles the event
+	 * @throws IllegalStateException if the event is scheduled before the last
+	 *           dequeued event
+	 */
+	public void add(long time, Address src, Node node, byte pid, Object event)
+	{
+		long t = time >> rbits;
+		if (t < last)
+			throw new IllegalStateException("Non-monotone insert in RadixHeap: time " + t + " is before last dequeued time " + last);
+
+		int slot = allocate();
+		srcs[slot] = src;
+		nodes[slot] = node;
+		pids[slot] = pid;
+		events[slot] = event;
+		size++;
+
+		if (t == last)
+			heapPush(time, slot);
+		else
+			bucketPush(64 - Long.numberOfLeadingZeros(t ^ last), time, slot);
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Removes the first event in the heap and returns it. Note that, to avoid
+	 * garbage collection, a singleton instance of the Event class is used. This
+	 * means that data contained in the returned event are overwritten when a new
+	 * invocation of this method is performed.
+	 *
+	 * @return first event or null if size is zero
+	 */
+	public Event removeFirst()
+	{
+		if (size == 0)
+			return null;
+		if (heapSize == 0)
+			refill();
+		poll(ev);
+		return ev;
+	}
+
+
+
+	/**
+	 * Removes all the events of the first time unit. See
+	 * {@link EventQueue#removeMany()}. These are exactly the events of bucket
+	 * 0, so no key needs to be inspected.
+	 */
+	public Events removeMany()
+	{
+		if (size == 0)
+			return null;
+		if (heapSize == 0)
+			refill();
+		evs.clear();
+		while (heapSize > 0)
+			poll(evs.append());
+		return evs;
+	}
+
+
+
+	/**
+	 * Returns the key of the first event. Contrary to {@link #removeFirst()},
+	 * this does not advance the last dequeued time, so events may still be
+	 * inserted at the current time after a call to this method.
+	 */
+	public long getNextTime()
+	{
+		if (size == 0)
+			return Long.MAX_VALUE;
+		if (heapSize > 0)
+			return heapKeys[1];
+		int b = Long.numberOfTrailingZeros(occupied);
+		long[] keys = bucketKeys[b];
+		long min = Long.MAX_VALUE;
+		for (int i = 0; i < bucketSize[b]; i++)
+			if (keys[i] < min)
+				min = keys[i];
+		return min;
+	}
+
+
+
+	/**
+	 * Removes the events matching the filter, see
+	 * {@link EventQueue#removeIf(BiPredicate)}. Buckets are packed in place, and
+	 * bucket 0 is rebuilt by pushing its remaining events again.
+	 */
+	public int removeIf(BiPredicate<Node, Object> filter)
+	{
+		int before = size;
+		for (int b = 0; b < BUCKETS; b++) {
+			long[] keys = bucketKeys[b];
+			int[] slots = bucketSlots[b];
+			int n = 0;
+			for (int i = 0; i < bucketSize[b]; i++) {
+				if (filter.test(nodes[slots[i]], events[slots[i]])) {
+					release(slots[i]);
+					size--;
+					continue;
+				}
+				keys[n] = keys[i];
+				slots[n] = slots[i];
+				n++;
+			}
+			bucketSize[b] = n;
+			if (n == 0)
+				occupied &= ~(1L << b);
+		}
+
+		int n = 0;
+		for (int i = 1; i <= heapSize; i++) {
+			if (filter.test(nodes[heapSlots[i]], events[heapSlots[i]])) {
+				release(heapSlots[i]);
+				size--;
+				continue;
+			}
+			n++;
+			heapKeys[n] = heapKeys[i];
+			heapSlots[n] = heapSlots[i];
+		}
+		heapSize = 0;
+		for (int i = 1; i <= n; i++)
+			heapPush(heapKeys[i], heapSlots[i]);
+		return before - size;
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Prints the time values contained in the heap, bucket by bucket.
+	 */
+	public String toString()
+	{
+		StringBuffer buffer = new StringBuffer();
+		buffer.append("[Size: " + size + " Last: " + last + " Times: ");
+		for (int i = 1; i <= heapSize; i++)
+			buffer.append(heapKeys[i] + ",");
+		for (int b = 0; b < BUCKETS; b++)
+			for (int i = 0; i < bucketSize[b]; i++)
+				buffer.append(bucketKeys[b][i] + ",");
+		buffer.append("]");
+		return buffer.toString();
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	// Private methods
+	// --------------------------------------------------------------------------
+
+	/**
+	 * Advances the last dequeued time to the minimum time of the first
+	 * non-empty bucket, and redistributes that bucket. All its events end up in
+	 * lower buckets, the earliest ones in bucket 0. Assumes bucket 0 is empty
+	 * and the heap is not.
+	 */
+	private void refill()
+	{
+		int b = Long.numberOfTrailingZeros(occupied);
+		long[] keys = bucketKeys[b];
+		int[] slots = bucketSlots[b];
+		int n = bucketSize[b];
+
+		long min = Long.MAX_VALUE;
+		for (int i = 0; i < n; i++)
+			if (keys[i] < min)
+				min = keys[i];
+		last = min >> rbits;
+
+		bucketSize[b] = 0;
+		occupied &= ~(1L << b);
+		for (int i = 0; i < n; i++) {
+			long t = keys[i] >> rbits;
+			if (t == last)
+				heapPush(keys[i], slots[i]);
+			else
+				bucketPush(64 - Long.numberOfLeadingZeros(t ^ last), keys[i], slots[i]);
+		}
+	}
+
+
+
+	/**
+	 * Copies the first event of bucket 0 into <code>e</code>, and removes it.
+	 * Assumes bucket 0 is not empty.
+	 */
+	private void poll(Event e)
+	{
+		e.time = heapKeys[1];
+		int slot = heapPop();
+		e.src = srcs[slot];
+		e.node = nodes[slot];
+		e.pid = pids[slot];
+		e.event = events[slot];
+		release(slot);
+		size--;
+	}
+
+
+
+	/**
+	 * Appends an event to radix bucket <code>i</code> (1-based).
+	 */
+	private void bucketPush(int i, long key, int slot)
+	{
+		int b = i - 1;
+		int n = bucketSize[b];
+		if (bucketKeys[b] == null) {
+			bucketKeys[b] = new long[SIZE];
+			bucketSlots[b] = new int[SIZE];
+		} else if (n == bucketKeys[b].length) {
+			bucketKeys[b] = Arrays.copyOf(bucketKeys[b], 2 * n);
+			bucketSlots[b] = Arrays.copyOf(bucketSlots[b], 2 * n);
+		}
+		bucketKeys[b][n] = key;
+		bucketSlots[b][n] = slot;
+		bucketSize[b] = n + 1;
+		occupied |= 1L << b;
+	}
+
+
+
+	/**
+	 * Adds an event to bucket 0.
+	 */
+	private void heapPush(long key, int slot)
+	{
+		int pos = ++heapSize;
+		if (pos == heapKeys.length) {
+			heapKeys = Arrays.copyOf(heapKeys, 2 * pos);
+			heapSlots = Arrays.copyOf(heapSlots, 2 * pos);
+		}
+		while (pos > 1 && heapKeys[pos >> 1] > key) {
+			heapKeys[pos] = heapKeys[pos >> 1];
+			heapSlots[pos] = heapSlots[pos >> 1];
+			pos >>= 1;
+		}
+		heapKeys[pos] = key;
+		heapSlots[pos] = slot;
+	}
+
+
+
+	/**
+	 * Removes the first event of bucket 0, and returns its slot.
+	 */
+	private int heapPop()
+	{
+		int first = heapSlots[1];
+		long key = heapKeys[heapSize];
+		int slot = heapSlots[heapSize];
+		heapSize--;
+
+		int pos = 1, child;
+		while ((child = pos << 1) <= heapSize) {
+			if (child < heapSize && heapKeys[child + 1] < heapKeys[child])
+				child++;
+			if (heapKeys[child] >= key)
+				break;
+			heapKeys[pos] = heapKeys[child];
+			heapSlots[pos] = heapSlots[child];
+			pos = child;
+		}
+		heapKeys[pos] = key;
+		heapSlots[pos] = slot;
+		return first;
+	}
+
+
+
+	/**
+	 * Returns a free arena slot, growing the arena if needed.
+	 */
+	private int allocate()
+	{
+		if (free != NIL) {
+			int slot = free;
+			free = nextFree[slot];
+			return slot;
+		}
+		if (used == srcs.length)
+			doubleCapacity();
+		return used++;
+	}
+
+
+
+	/**
+	 * Returns a slot to the free list, dropping its references so that the
+	 * garbage collector can reclaim them.
+	 */
+	private void release(int slot)
+	{
+		srcs[slot] = null;
+		nodes[slot] = null;
+		events[slot] = null;
+		nextFree[slot] = free;
+		free = slot;
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 *
+	 */
+	private void doubleCapacity()
+	{
+		int newsize = srcs.length * 2;
+		srcs = Arrays.copyOf(srcs, newsize);
+		nodes = Arrays.copyOf(nodes, newsize);
+		pids = Arrays.copyOf(pids, newsize);
+		events = Arrays.copyOf(events, newsize);
+		nextFree = Arrays.copyOf(nextFree, newsize);
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	// Testing
+	// --------------------------------------------------------------------------
+	public static void main(String[] args)
+	{
+		Random random = new Random();
+		RadixHeap heap = new RadixHeap(8);
+		int rep = 1000000;
+		if (args.length>0)
+			rep = Integer.parseInt(args[0]);
+		long[] values1 = new long[rep];
+		long[] values2 = new long[rep];
+		for (int i = 0; i<rep; i++)
+			values1[i] = random.nextInt(1000000000);
+		long time1 = System.currentTimeMillis();
+		for (int i = 0; i<rep; i++)
+			heap.add(values1[i], null, null, (byte) 1, null);
+		long time2 = System.currentTimeMillis();
+		System.out.println("Inserting: "+(time2-time1));
+		time1 = System.currentTimeMillis();
+		for (int i = 0; i<rep; i++)
+			values2[i] = heap.removeFirst().time;
+		time2 = System.currentTimeMillis();
+		System.out.println("Removing: "+(time2-time1));
+
+		Arrays.sort(values1);
+		long errorCount = 0;
+		for (int i = 0; i<rep; i++)
+		{
+			if (values1[i]!=values2[i])
+				errorCount++;
+		}
+		if(errorCount > 0) {
+			System.out.println("Incorrect order: " + errorCount + " unexpected values");
+		}
+
+		try {
+			heap.add(values1[rep-1], null, null, (byte) 1, null);
+			heap.add(0, null, null, (byte) 1, null);
+			heap.removeFirst();
+			heap.add(0, null, null, (byte) 1, null);
+			System.out.println("Non-monotone insert was not detected");
+		} catch (IllegalStateException e) {
+			System.out.println("Non-monotone insert detected: " + e.getMessage());
+		}
+
+		System.out.println("Done!");
+	}
+}
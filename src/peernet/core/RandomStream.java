@@ -0,0 +1,28 @@
+package peernet.core;
+
+import peernet.util.ExtendedRandom;
+
+
+/**
+ * The subsystems that draw from random substreams of their own, instead of
+ * {@link CommonState#r}, when {@value CommonState#PAR_SUBSTREAMS} is set. See
+ * {@link CommonState#stream(RandomStream)} and
+ * {@link CommonState#stream(RandomStream, Node)}.
+ * <p>
+ * Substreams are derived from the random seed with
+ * {@link ExtendedRandom#substream(long)}, so the numbers drawn by one
+ * subsystem, or for one node, do not depend on how many numbers the others
+ * drew. Results thus stay reproducible when events are reordered, or when
+ * nodes are processed in parallel.
+ */
+public enum RandomStream
+{
+	/** The order of events scheduled for the same time, per destination node */
+	TIEBREAK,
+
+	/** The delays drawn by transports, per sending node */
+	TRANSPORT,
+
+	/** The choice of the nodes that join or leave the network */
+	CHURN;
+}
@@ -0,0 +1,16 @@
+package peernet.core;
+
+/**
+ * Marker interface for controls that only observe the nodes and their
+ * protocols, without modifying them, such as reports.
+ * <p>
+ * In EMU and NET modes, {@link EngineNet} stops all nodes while it executes
+ * a control, so that the control sees a consistent state. Read-only controls
+ * are instead executed while the nodes keep running: they never stall the
+ * experiment, but they may observe nodes in the middle of an event, and the
+ * states of different nodes at slightly different times. They must thus
+ * tolerate protocol state that changes while they read it. Other engines
+ * execute them as any other control.
+ */
+public interface ReadOnlyControl extends Control {
+}
@@ -189,6 +189,19 @@ public class Schedule {
     }
 
 
+    /**
+     * Returns the delay from <code>time</code> to the first time point strictly
+     * after it, or -1 if there is none. Used to schedule controls when
+     * resuming an experiment from a snapshot.
+     */
+    /*package*/ long delayAfter(long time) {
+        if (step <= 0)
+            return -1;
+        long t = from > time ? from : from + ((time - from) / step + 1) * step;
+        return t <= until ? t - time : -1;
+    }
+
+
   /**
    * Change Log: Joao Leitao: made this method publix to allow access by classes outside this pacakge. 
    * @param time
@@ -0,0 +1,238 @@
+package peernet.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import peernet.config.Configuration;
+import peernet.core.Engine.Type;
+import peernet.util.ExtendedRandom;
+
+
+/**
+ * The state of one experiment: its engine, its network, its current time and
+ * its source of randomness. {@link Engine}, {@link Network} and
+ * {@link CommonState} keep their static interface, and read and update the
+ * context of the calling thread.
+ * <p>
+ * By default, all threads share a single context, created from the
+ * system-wide configuration when first needed, so a JVM runs a single
+ * experiment, as it always did. To run several experiments concurrently
+ * (see {@link peernet.rangesim.RangeSimulator}), each of them is given its own
+ * context, bound with {@link #bind(SimulationContext)} to the thread that runs
+ * it. The threads created by that thread, such as {@link LogicalProcess}es,
+ * inherit its context. Once a context has been bound, threads without a
+ * context can no longer access the simulation state.
+ * <p>
+ * Other components may keep per-experiment state in the current context with
+ * {@link #attachment(Object, Supplier)}, instead of static fields.
+ */
+public final class SimulationContext
+{
+	/** The contexts of the threads running concurrent experiments */
+	private static final InheritableThreadLocal<SimulationContext> local = new InheritableThreadLocal<>();
+
+	/** Set once a context has been bound to some thread */
+	private static volatile boolean concurrent = false;
+
+	/** The context shared by all threads, if no context has been bound */
+	private static SimulationContext global = null;
+
+	/** The random generator used by {@link CommonState#r} once contexts are bound */
+	static final ContextRandom contextRandom = new ContextRandom();
+
+	// ---------------------------------------------------------------------
+	// Engine
+	// ---------------------------------------------------------------------
+
+	final Type type;
+
+	Engine engine = null;
+
+	// ---------------------------------------------------------------------
+	// CommonState
+	// ---------------------------------------------------------------------
+
+	long time = 0;
+
+	long endTime = -1;
+
+	long zeroTime = -1;
+
+	boolean processTime = false;
+
+	String experienceName;
+
+	ExtendedRandom random;
+
+	/** Set by {@value CommonState#PAR_SUBSTREAMS} */
+	final boolean substreams;
+
+	/** The substreams of the subsystems, created on first use */
+	ExtendedRandom[] streams = null;
+
+	// ---------------------------------------------------------------------
+	// Network
+	// ---------------------------------------------------------------------
+
+	Node[] nodes = null;
+
+	int len;
+
+	Node prototype = null;
+
+	Map<Long, Node> nodesByID;
+
+	long counterID = -1;
+
+	/** See {@link #attachment(Object, Supplier)} */
+	private final Map<Object, Object> attachments = new HashMap<>();
+
+	/** See {@link #routerNetwork(Supplier)} */
+	private volatile Object routerNetwork = null;
+
+
+
+	/**
+	 * Creates the context of a new experiment, from the configuration of the
+	 * calling thread. The random generator is seeded with
+	 * {@value CommonState#PAR_SEED}, or with the current time if it is not
+	 * defined.
+	 */
+	public SimulationContext()
+	{
+		type = Engine.readType();
+		long seed = Configuration.getLong(CommonState.PAR_SEED, System.currentTimeMillis());
+		random = (ExtendedRandom) Configuration.getInstance(CommonState.PAR_RANDOM, new ExtendedRandom(seed));
+		random.setSeed(seed);
+		substreams = Configuration.contains(CommonState.PAR_SUBSTREAMS);
+	}
+
+
+
+	/**
+	 * Returns the context of the calling thread.
+	 *
+	 * @throws IllegalStateException if contexts are bound to threads, but not
+	 *           to the calling one
+	 */
+	public static SimulationContext current()
+	{
+		if (concurrent) {
+			SimulationContext context = local.get();
+			if (context == null)
+				throw new IllegalStateException("No simulation context in thread " + Thread.currentThread().getName());
+			return context;
+		}
+		if (global == null)
+			global = new SimulationContext();
+		return global;
+	}
+
+
+
+	/**
+	 * Binds a context to the calling thread, and to the threads it creates
+	 * from now on. The thread must not be running an experiment in another
+	 * context.
+	 *
+	 * @param context the context, or null to unbind the current one
+	 */
+	public static synchronized void bind(SimulationContext context)
+	{
+		if (!concurrent) {
+			if (global != null)
+				throw new IllegalStateException("Cannot bind contexts once the global one is in use");
+			concurrent = true;
+			CommonState.r = contextRandom;
+		}
+		if (context == null)
+			local.remove();
+		else
+			local.set(context);
+	}
+
+
+
+	/**
+	 * Returns the object attached to the current context under the given key,
+	 * creating it on first use.
+	 *
+	 * @param key identifies the object, typically the class using it
+	 * @param factory creates the object
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T attachment(Object key, Supplier<? extends T> factory)
+	{
+		Map<Object, Object> attachments = current().attachments;
+		synchronized (attachments) {
+			Object value = attachments.get(key);
+			if (value == null) {
+				value = factory.get();
+				attachments.put(key, value);
+			}
+			return (T) value;
+		}
+	}
+
+
+
+	/**
+	 * Returns the router network of the current context, kept by
+	 * {@link peernet.transport.RouterNetwork}, creating it on first use. Unlike
+	 * attachments, it is read without locking, as it is looked up for every
+	 * message sent.
+	 *
+	 * @param factory creates the router network
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T routerNetwork(Supplier<? extends T> factory)
+	{
+		SimulationContext context = current();
+		Object value = context.routerNetwork;
+		if (value == null) {
+			synchronized (context) {
+				value = context.routerNetwork;
+				if (value == null)
+					context.routerNetwork = value = factory.get();
+			}
+		}
+		return (T) value;
+	}
+
+
+
+	/**
+	 * Returns the substream of a subsystem.
+	 */
+	ExtendedRandom stream(RandomStream stream)
+	{
+		if (streams == null)
+			streams = new ExtendedRandom[RandomStream.values().length];
+		ExtendedRandom r = streams[stream.ordinal()];
+		if (r == null)
+			r = streams[stream.ordinal()] = random.substream(Long.MIN_VALUE + stream.ordinal());
+		return r;
+	}
+
+
+
+	/**
+	 * Returns true once contexts have been bound to threads.
+	 */
+	static boolean isConcurrent()
+	{
+		return concurrent;
+	}
+
+
+
+	/**
+	 * Returns the random generator of the current context. Used as
+	 * {@link CommonState#r} once contexts are bound to threads.
+	 */
+	static ExtendedRandom random()
+	{
+		return current().random;
+	}
+}
@@ -0,0 +1,277 @@
+package peernet.core;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import peernet.transport.Address;
+import peernet.util.ExtendedRandom;
+
+
+/**
+ * Reads and writes snapshots of the complete state of an {@link EngineSim}
+ * experiment, taken by {@link Checkpoint}: the current time, the random
+ * generator, the nodes with their protocols, and all pending events.
+ * <p>
+ * The snapshot is a single Java serialization stream, so that references
+ * among nodes, protocols and events are preserved. Nodes, protocols and event
+ * payloads must thus be serializable. Their configuration-derived parts,
+ * i.e., transports and {@link ProtocolSettings}, are not stored, but taken
+ * from the configuration of the restoring experiment. {@link Schedule} events
+ * are stored by index, and controls by name, so the restoring configuration
+ * may change their parameters. Snapshots are read through a memory-mapped
+ * view of the file.
+ */
+final class Snapshot
+{
+	private static final int MAGIC = 0x504e534e;
+
+	private static final int VERSION = 2;
+
+	/** Size of the regions of the file mapped at once */
+	private static final long REGION = 1L << 30;
+
+
+
+	private Snapshot()
+	{
+	}
+
+
+
+	/**
+	 * Writes a snapshot of the experiment of <code>engine</code>. Must be
+	 * called between two batches, when all pending events are in the queues.
+	 */
+	static void write(String file, EngineSim engine) throws IOException
+	{
+		SimulationContext context = SimulationContext.current();
+		List<Event> events = drain(engine.simHeap);
+		if (engine.wheel != null)
+			events.addAll(drain(engine.wheel));
+		// Monotone queues, such as RadixHeap, would reject the events once
+		// drained, as earlier than the last removed one: put them in new ones
+		engine.createHeaps();
+
+		try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(engine.rbits);
+			out.writeLong(context.time);
+			out.writeObject(context.random);
+			out.writeObject(context.streams);
+			out.writeLong(context.counterID);
+
+			out.writeInt(context.len);
+			out.writeObject(context.nodes);
+
+			out.writeInt(engine.controlNames.length);
+			for (String name : engine.controlNames)
+				out.writeUTF(name);
+
+			out.writeInt(events.size());
+			for (Event ev : events) {
+				out.writeLong(ev.time);
+				out.writeByte(ev.pid);
+				out.writeObject(ev.node);
+				if (ev.node == null)
+					continue; // control event, pid is the control index
+				out.writeObject(ev.src);
+				int schedule = scheduleIndex(engine, ev);
+				out.writeInt(schedule);
+				if (schedule < 0)
+					out.writeObject(ev.event);
+			}
+		} finally {
+			// Put the events back, even if the snapshot failed
+			for (Event ev : events)
+				engine.addEventKey(ev.time, ev.src, ev.node, ev.pid, ev.event);
+		}
+	}
+
+
+
+	/**
+	 * Restores the experiment of <code>engine</code> from a snapshot. The
+	 * event queues must be empty, and the protocol schedules loaded. Controls
+	 * are loaded once the network is restored. The pending events of controls
+	 * present in the snapshot are restored; controls that are not present are
+	 * scheduled at their first time point after the current time.
+	 */
+	static void read(String file, EngineSim engine) throws IOException, ClassNotFoundException
+	{
+		SimulationContext context = SimulationContext.current();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+				ObjectInputStream in = new ObjectInputStream(new MappedInputStream(raf.getChannel()))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException(file + " is not a snapshot");
+			if (in.readInt() != VERSION)
+				throw new IOException(file + ": unsupported snapshot version");
+			int rbits = in.readInt();
+			if (rbits != engine.rbits)
+				throw new IllegalStateException("Snapshot " + file + " was taken with " + rbits + " time bits, not " + engine.rbits);
+			context.time = in.readLong();
+			ExtendedRandom random = (ExtendedRandom) in.readObject();
+			ExtendedRandom[] streams = (ExtendedRandom[]) in.readObject();
+			long counterID = in.readLong();
+
+			int len = in.readInt();
+			Network.restore((Node[]) in.readObject(), len);
+			context.counterID = counterID;
+
+			// Map the controls of the snapshot to the configured ones
+			engine.loadControls();
+			List<String> names = Arrays.asList(engine.controlNames);
+			boolean[] saved = new boolean[engine.controls.length];
+			int[] controlIndex = new int[in.readInt()];
+			for (int i = 0; i < controlIndex.length; i++) {
+				controlIndex[i] = names.indexOf(in.readUTF());
+				if (controlIndex[i] >= 0)
+					saved[controlIndex[i]] = true;
+			}
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				long key = in.readLong();
+				byte pid = in.readByte();
+				Node node = (Node) in.readObject();
+				if (node == null) {
+					if (controlIndex[pid] >= 0)
+						engine.addEventKey(key, null, null, (byte) controlIndex[pid], null);
+					continue;
+				}
+				node.restored(context.prototype); // in case it left the network
+				Address src = (Address) in.readObject();
+				int schedule = in.readInt();
+				Object event;
+				if (schedule >= 0) {
+					if (pid >= engine.protocolSchedules.length || schedule >= engine.protocolSchedules[pid].length)
+						throw new IllegalStateException("Snapshot " + file + " refers to schedule " + schedule + " of protocol " + pid + ", which is not configured");
+					event = engine.protocolSchedules[pid][schedule];
+				} else
+					event = in.readObject();
+				engine.addEventKey(key, src, node, pid, event);
+			}
+
+			// Installed last, in case the configured components drew numbers
+			CommonState.setRandom(random);
+			context.streams = streams;
+			for (int i = 0; i < saved.length; i++) {
+				long delay = engine.controlSchedules[i].delayAfter(context.time);
+				if (!saved[i] && delay > 0)
+					engine.addEventIn(delay, null, null, i, null);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Removes all the events of a queue, in order.
+	 */
+	private static List<Event> drain(EventQueue queue)
+	{
+		List<Event> events = new ArrayList<>((int) queue.size());
+		Event ev;
+		while ((ev = queue.removeFirst()) != null)
+			events.add(new Event(ev.time, ev.src, ev.node, ev.pid, ev.event));
+		return events;
+	}
+
+
+
+	/**
+	 * Returns the index of the event among the schedules of its protocol, or
+	 * -1 if it is not a schedule event.
+	 */
+	private static int scheduleIndex(EngineSim engine, Event ev)
+	{
+		if (ev.event instanceof Schedule) {
+			Schedule[] schedules = engine.protocolSchedules[ev.pid];
+			for (int i = 0; i < schedules.length; i++)
+				if (schedules[i] == ev.event)
+					return i;
+		}
+		return -1;
+	}
+
+
+
+	/**
+	 * Reads a file through successive memory-mapped regions.
+	 */
+	private static class MappedInputStream extends InputStream
+	{
+		private final FileChannel channel;
+
+		private ByteBuffer buffer = ByteBuffer.allocate(0);
+
+		/** Offset of the end of the current region */
+		private long position = 0;
+
+
+
+		MappedInputStream(FileChannel channel)
+		{
+			this.channel = channel;
+		}
+
+
+
+		/**
+		 * Maps the next region, if the current one is exhausted.
+		 *
+		 * @return false at the end of the file
+		 */
+		private boolean fill() throws IOException
+		{
+			if (buffer.hasRemaining())
+				return true;
+			long size = Math.min(REGION, channel.size() - position);
+			if (size <= 0)
+				return false;
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+			position += size;
+			return true;
+		}
+
+
+
+		@Override
+		public int read() throws IOException
+		{
+			return fill() ? buffer.get() & 0xff : -1;
+		}
+
+
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0)
+				return 0;
+			if (!fill())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+
+
+		@Override
+		public int available()
+		{
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package peernet.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import peernet.transport.Address;
+
+
+/**
+ * A {@link Heap} shared by the threads that schedule events and the single
+ * thread that executes them, in EMU and NET modes. Events are taken once their
+ * time has come, in real time.
+ * <p>
+ * Waiting relies on a {@link ReentrantLock} and its {@link Condition}, rather
+ * than on the monitor of the heap, so that virtual threads that wait for their
+ * next event are unmounted from their carrier thread instead of pinning it.
+ */
+class TimedHeap extends Heap
+{
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/** Signalled when an event is added */
+	private final Condition added = lock.newCondition();
+
+
+
+	/**
+	 * Adds an event, and wakes up the executing thread, in case the event is
+	 * due before the ones it is waiting for.
+	 */
+	void put(long time, Address src, Node node, byte pid, Object event)
+	{
+		lock.lock();
+		try {
+			add(time, src, node, pid, event);
+			added.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+
+	/**
+	 * Waits until the first event is due, and removes it. As with
+	 * {@link #removeFirst()}, the returned event is reused by the next call.
+	 *
+	 * @param rbits the number of random bits of the event keys
+	 */
+	Event take(int rbits) throws InterruptedException
+	{
+		lock.lock();
+		try {
+			long remaining;
+			while ((remaining = (getNextTime() >> rbits) - CommonState.getTime()) > 0)
+				added.await(remaining, TimeUnit.MILLISECONDS);
+			return removeFirst();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+}
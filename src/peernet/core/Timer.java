@@ -0,0 +1,114 @@
+package peernet.core;
+
+import java.io.Serializable;
+import java.util.function.BiPredicate;
+
+
+/**
+ * Handle on an event scheduled with
+ * {@link Protocol#scheduleTimer(long, Object)}, which allows cancelling it
+ * before it is delivered, typically a timeout that became useless because a
+ * reply arrived first.
+ * <p>
+ * Cancelling is lazy: the event stays in the event queue as a tombstone, and
+ * is skipped when its time comes. SIM engines purge tombstones in bulk, with
+ * {@link EventQueue#removeIf(BiPredicate)}, when they make up a large part of
+ * the queue.
+ * <p>
+ * Timers are not thread-safe. In EMU and NET modes, they should only be
+ * cancelled by the protocols of their own node.
+ */
+public final class Timer implements Serializable
+{
+	private static final long serialVersionUID = 1;
+
+	/** The event delivered when the timer expires */
+	final Object event;
+
+	/** Set by {@link #cancel()} */
+	private boolean cancelled = false;
+
+	/** Set when the event has been delivered */
+	private boolean expired = false;
+
+
+
+	Timer(Object event)
+	{
+		this.event = event;
+	}
+
+
+
+	/**
+	 * Cancels the timer, unless it has already expired.
+	 *
+	 * @return true if the timer was pending, and is now cancelled
+	 */
+	public boolean cancel()
+	{
+		if (cancelled || expired)
+			return false;
+		cancelled = true;
+		Engine.instance().timerCancelled(this);
+		return true;
+	}
+
+
+
+	/**
+	 * Returns true if the timer has neither expired nor been cancelled.
+	 */
+	public boolean isPending()
+	{
+		return !cancelled && !expired;
+	}
+
+
+
+	/**
+	 * Returns true if the timer has been cancelled.
+	 */
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+
+
+	/**
+	 * Returns the event that is delivered when the timer expires.
+	 */
+	public Object getEvent()
+	{
+		return event;
+	}
+
+
+
+	/**
+	 * Called by engines when the time of the timer has come.
+	 *
+	 * @return false if the timer was cancelled, in which case its event must
+	 *         not be delivered
+	 */
+	boolean expire()
+	{
+		if (cancelled)
+			return false;
+		expired = true;
+		return true;
+	}
+
+
+
+	/**
+	 * Makes the timer pending again, for engines that undo the cancellation or
+	 * the expiry of timers when rolling back.
+	 */
+	void reset()
+	{
+		cancelled = false;
+		expired = false;
+	}
+}
@@ -0,0 +1,601 @@
+package peernet.core;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.BiPredicate;
+
+import peernet.transport.Address;
+
+
+/**
+ * Hashed hierarchical timing wheel (Varghese, Lauck, "Hashed and hierarchical
+ * timing wheels", SOSP 1987), used by the SIM engine to hold the periodic
+ * {@link Schedule} events of protocols, apart from the message queue. It is
+ * enabled by {@value peernet.Simulator#PAR_SIM_WHEEL}.
+ * <p>
+ * The wheel has {@value #LEVELS} levels of {@value #SLOTS} slots. Slot
+ * <em>s</em> of level <em>k</em> holds the events whose time differs from the
+ * current time only in its <em>k</em>-th byte and below, and whose
+ * <em>k</em>-th byte is <em>s</em>; a slot of level 0 thus holds the events of
+ * a single time unit. Slots are unsorted linked lists, so inserting an event
+ * is O(1). When the current time moves into the range of a slot of a higher
+ * level, that slot is cascaded into the lower levels. Each event is cascaded
+ * at most {@value #LEVELS} times, and in practice once per level crossed by
+ * its delay, i.e., never for delays below {@value #SLOTS}.
+ * <p>
+ * When the current time reaches a slot of level 0, its events are moved into
+ * a binary heap ordered by their full key, which also receives the events
+ * added for the current time. They thus leave the wheel in the same order as
+ * from any other {@link EventQueue}, including the random tie-breaking bits,
+ * in O(log k) per event for k events in the time unit.
+ * <p>
+ * Like {@link RadixHeap}, the wheel relies on the simulation time never going
+ * backwards: inserting an event earlier than the last dequeued time is
+ * rejected with an {@link IllegalStateException}. Contrary to removals,
+ * {@link #getNextTime()} does not advance the current time.
+ */
+public class TimingWheel implements EventQueue
+{
+	// --------------------------------------------------------------------------
+	// Constants
+	// --------------------------------------------------------------------------
+	/** Number of time bits covered by each level */
+	private static final int BITS = 8;
+	/** Number of slots per level */
+	private static final int SLOTS = 1 << BITS;
+	/** Mask of the slot index within a level */
+	private static final int MASK = SLOTS - 1;
+	/** Number of levels, enough to cover all 64 bits of time */
+	private static final int LEVELS = 64 / BITS;
+	/** Initial size of the arena */
+	private static final int SIZE = 16;
+	/** Marks the end of slot lists and of the free list */
+	private static final int NIL = -1;
+
+	// --------------------------------------------------------------------------
+	// Fields
+	// --------------------------------------------------------------------------
+	/** Number of low bits of the key that do not belong to the time */
+	private final int rbits;
+
+	/** Key component of the arena */
+	private long[] keys;
+	/** Src component of the arena */
+	private Address[] srcs;
+	/** Node component of the arena */
+	private Node[] nodes;
+	/** Pid component of the arena */
+	private byte[] pids;
+	/** Event component of the arena */
+	private Object[] events;
+	/** Next slot in the same wheel slot, or in the free list */
+	private int[] next;
+	/** Head of the free list */
+	private int free = NIL;
+	/** Number of arena slots ever handed out */
+	private int used = 0;
+
+	/** First arena slot of each wheel slot, level by level */
+	private final int[] heads = new int[LEVELS * SLOTS];
+	/** Bit s of word 4k+s/64 is set iff slot s of level k is not empty */
+	private final long[] occupied = new long[LEVELS * SLOTS / 64];
+
+	/** Binary heap (on keys) of the arena slots of the current time unit */
+	private int[] due = new int[SIZE];
+	/** Number of events in {@link #due} */
+	private int dueSize = 0;
+
+	/** Time (key &gt;&gt; rbits) of the last dequeued event */
+	private long now = 0;
+	/** Number of events */
+	private int size = 0;
+	/** Cached result of getNextTime(), valid until the next removal */
+	private long first = Long.MAX_VALUE;
+	/** Whether first is up to date */
+	private boolean firstValid = true;
+
+	/** Singleton event object used to return (event, time, node, pid) tuples */
+	private final Event ev = new Event();
+	private final Events evs = new Events(1);
+
+
+
+	// --------------------------------------------------------------------------
+	// Constructor
+	// --------------------------------------------------------------------------
+	/**
+	 * Initializes a new timing wheel for the number of random bits used by the
+	 * engine.
+	 */
+	public TimingWheel()
+	{
+		this(Engine.instance().rbits);
+	}
+
+
+
+	/**
+	 * Initializes a new timing wheel for keys whose lowest <code>rbits</code>
+	 * bits are not part of the time.
+	 */
+	public TimingWheel(int rbits)
+	{
+		this.rbits = rbits;
+		keys = new long[SIZE];
+		srcs = new Address[SIZE];
+		nodes = new Node[SIZE];
+		pids = new byte[SIZE];
+		events = new Object[SIZE];
+		next = new int[SIZE];
+		Arrays.fill(heads, NIL);
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	// Methods
+	// --------------------------------------------------------------------------
+	/**
+	 * Returns the current number of events in the system.
+	 */
+	public long size()
+	{
+		return size;
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Add a new event, to be scheduled at the specified time.
+	 *
+	 * @param time  the time at which this event should be scheduled
+	 * @param event the object decribing the event
+	 * @param node  the node at which the event has to be delivered
+	 * @param pid   the protocol that handles the event
+	 * @throws IllegalStateException if the event is scheduled before the last
+	 *           dequeued event
+	 */
+	public void add(long time, Address src, Node node, byte pid, Object event)
+	{
+		if ((time >> rbits) < now)
+			throw new IllegalStateException("Non-monotone insert in TimingWheel: time " + (time >> rbits) + " is before last dequeued time " + now);
+
+		int slot = allocate();
+		keys[slot] = time;
+		srcs[slot] = src;
+		nodes[slot] = node;
+		pids[slot] = pid;
+		events[slot] = event;
+		size++;
+		if ((time >> rbits) == now)
+			push(slot);
+		else
+			link(slot);
+		if (firstValid && time < first)
+			first = time;
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Removes the first event in the wheel and returns it. Note that, to avoid
+	 * garbage collection, a singleton instance of the Event class is used. This
+	 * means that data contained in the returned event are overwritten when a new
+	 * invocation of this method is performed.
+	 *
+	 * @return first event or null if size is zero
+	 */
+	public Event removeFirst()
+	{
+		if (size == 0)
+			return null;
+		if (dueSize == 0)
+			advance();
+		poll(ev, pop());
+		firstValid = false;
+		return ev;
+	}
+
+
+
+	/**
+	 * Removes all the events of the first time unit, in key order. See
+	 * {@link EventQueue#removeMany()}. These are exactly the events of the
+	 * heap of the current time unit, once it is filled.
+	 */
+	public Events removeMany()
+	{
+		if (size == 0)
+			return null;
+		if (dueSize == 0)
+			advance();
+
+		evs.clear();
+		while (dueSize > 0)
+			poll(evs.append(), pop());
+		firstValid = false;
+		return evs;
+	}
+
+
+
+	/**
+	 * Returns the key of the first event, scanning the first non-empty slot if
+	 * the current time unit has no event left and it is not known yet.
+	 */
+	public long getNextTime()
+	{
+		if (size == 0)
+			return Long.MAX_VALUE;
+		if (dueSize > 0)
+			return keys[due[0]];
+		if (!firstValid) {
+			long min = Long.MAX_VALUE;
+			for (int s = heads[firstSlot()]; s != NIL; s = next[s])
+				if (keys[s] < min)
+					min = keys[s];
+			first = min;
+			firstValid = true;
+		}
+		return first;
+	}
+
+
+
+	/**
+	 * Removes the events matching the filter, see
+	 * {@link EventQueue#removeIf(BiPredicate)}, slot by slot.
+	 */
+	public int removeIf(BiPredicate<Node, Object> filter)
+	{
+		int before = size;
+		int kept = 0;
+		for (int i = 0; i < dueSize; i++) {
+			int s = due[i];
+			if (filter.test(nodes[s], events[s])) {
+				release(s);
+				size--;
+			} else
+				due[kept++] = s;
+		}
+		dueSize = kept;
+		for (int i = (dueSize >> 1) - 1; i >= 0; i--)
+			siftDown(i);
+		for (int w = 0; w < heads.length; w++) {
+			if (heads[w] == NIL)
+				continue;
+			int prev = NIL;
+			for (int s = heads[w], n; s != NIL; s = n) {
+				n = next[s];
+				if (!filter.test(nodes[s], events[s])) {
+					prev = s;
+					continue;
+				}
+				if (prev == NIL)
+					heads[w] = n;
+				else
+					next[prev] = n;
+				release(s);
+				size--;
+			}
+			if (heads[w] == NIL)
+				occupied[w >> 6] &= ~(1L << w);
+		}
+		firstValid = false;
+		return before - size;
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Prints the time values contained in the wheel, slot by slot.
+	 */
+	public String toString()
+	{
+		StringBuffer buffer = new StringBuffer();
+		buffer.append("[Size: " + size + " Now: " + now + " Times: ");
+		for (int i = 0; i < dueSize; i++)
+			buffer.append(keys[due[i]] + ",");
+		for (int w = 0; w < heads.length; w++)
+			for (int s = heads[w]; s != NIL; s = next[s])
+				buffer.append(keys[s] + ",");
+		buffer.append("]");
+		return buffer.toString();
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	// Private methods
+	// --------------------------------------------------------------------------
+
+	/**
+	 * Inserts an arena slot in the wheel slot matching its time, relative to
+	 * the current time.
+	 */
+	private void link(int slot)
+	{
+		long t = keys[slot] >> rbits;
+		int level = t == now ? 0 : (63 - Long.numberOfLeadingZeros(t ^ now)) / BITS;
+		int w = level * SLOTS + (int) ((t >>> (level * BITS)) & MASK);
+		next[slot] = heads[w];
+		heads[w] = slot;
+		occupied[w >> 6] |= 1L << w;
+	}
+
+
+
+	/**
+	 * Returns the index (in {@link #heads}) of the first non-empty wheel slot,
+	 * that is, the one holding the earliest events. Assumes the wheel is not
+	 * empty.
+	 */
+	private int firstSlot()
+	{
+		for (int level = 0; level < LEVELS; level++) {
+			int from = (int) ((now >>> (level * BITS)) & MASK);
+			// Levels above 0 only hold events beyond the current slot
+			if (level > 0)
+				from++;
+			if (from == SLOTS)
+				continue;
+			int w = nextOccupied(level * SLOTS + from, (level + 1) * SLOTS);
+			if (w != NIL)
+				return w;
+		}
+		throw new IllegalStateException("TimingWheel: " + size + " events, but no slot is occupied");
+	}
+
+
+
+	/**
+	 * Returns the first occupied wheel slot in [from, to), or NIL. Both bounds
+	 * lie within the same level, which spans whole words of the bitmap.
+	 */
+	private int nextOccupied(int from, int to)
+	{
+		int word = from >> 6;
+		long bits = occupied[word] & (-1L << from);
+		while (true) {
+			if (bits != 0)
+				return (word << 6) + Long.numberOfTrailingZeros(bits);
+			if (++word << 6 >= to)
+				return NIL;
+			bits = occupied[word];
+		}
+	}
+
+
+
+	/**
+	 * Cascades higher level slots until the earliest events are in level 0,
+	 * makes their time the current time, and moves them into the heap of the
+	 * current time unit. Assumes that heap is empty, and the wheel is not.
+	 */
+	private void advance()
+	{
+		int w;
+		while ((w = firstSlot()) >= SLOTS) {
+			int level = w / SLOTS;
+			int shift = level * BITS;
+			// Move to the beginning of the range of that slot
+			long high = level == LEVELS - 1 ? 0 : (now >>> (shift + BITS)) << (shift + BITS);
+			now = high | ((long) (w & MASK) << shift);
+
+			int s = heads[w];
+			heads[w] = NIL;
+			occupied[w >> 6] &= ~(1L << w);
+			while (s != NIL) {
+				int n = next[s];
+				link(s);
+				s = n;
+			}
+		}
+		now = (now & ~(long) MASK) | w;
+
+		int s = heads[w];
+		heads[w] = NIL;
+		occupied[w >> 6] &= ~(1L << w);
+		for (; s != NIL; s = next[s]) {
+			if (dueSize == due.length)
+				due = Arrays.copyOf(due, dueSize * 2);
+			due[dueSize++] = s;
+		}
+		for (int i = (dueSize >> 1) - 1; i >= 0; i--)
+			siftDown(i);
+	}
+
+
+
+	/**
+	 * Adds an arena slot of the current time unit to its heap.
+	 */
+	private void push(int slot)
+	{
+		if (dueSize == due.length)
+			due = Arrays.copyOf(due, dueSize * 2);
+		int i = dueSize++;
+		long key = keys[slot];
+		while (i > 0) {
+			int parent = (i - 1) >> 1;
+			if (keys[due[parent]] <= key)
+				break;
+			due[i] = due[parent];
+			i = parent;
+		}
+		due[i] = slot;
+	}
+
+
+
+	/**
+	 * Removes the arena slot with the smallest key from the heap of the
+	 * current time unit, and returns it. Assumes that heap is not empty.
+	 */
+	private int pop()
+	{
+		int min = due[0];
+		due[0] = due[--dueSize];
+		siftDown(0);
+		return min;
+	}
+
+
+
+	/**
+	 * Moves the element at position <code>i</code> of the heap of the current
+	 * time unit down to its place.
+	 */
+	private void siftDown(int i)
+	{
+		if (dueSize == 0)
+			return;
+		int slot = due[i];
+		long key = keys[slot];
+		int child;
+		while ((child = 2 * i + 1) < dueSize) {
+			if (child + 1 < dueSize && keys[due[child + 1]] < keys[due[child]])
+				child++;
+			if (keys[due[child]] >= key)
+				break;
+			due[i] = due[child];
+			i = child;
+		}
+		due[i] = slot;
+	}
+
+
+
+	/**
+	 * Copies an event into <code>e</code>, and releases its arena slot, which
+	 * has already been unlinked from the wheel.
+	 */
+	private void poll(Event e, int slot)
+	{
+		e.time = keys[slot];
+		e.src = srcs[slot];
+		e.node = nodes[slot];
+		e.pid = pids[slot];
+		e.event = events[slot];
+		release(slot);
+		size--;
+	}
+
+
+
+	/**
+	 * Returns a free arena slot, growing the arena if needed.
+	 */
+	private int allocate()
+	{
+		if (free != NIL) {
+			int slot = free;
+			free = next[slot];
+			return slot;
+		}
+		if (used == keys.length)
+			doubleCapacity();
+		return used++;
+	}
+
+
+
+	/**
+	 * Returns a slot to the free list, dropping its references so that the
+	 * garbage collector can reclaim them.
+	 */
+	private void release(int slot)
+	{
+		srcs[slot] = null;
+		nodes[slot] = null;
+		events[slot] = null;
+		next[slot] = free;
+		free = slot;
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	/**
+	 *
+	 */
+	private void doubleCapacity()
+	{
+		int newsize = keys.length * 2;
+		keys = Arrays.copyOf(keys, newsize);
+		srcs = Arrays.copyOf(srcs, newsize);
+		nodes = Arrays.copyOf(nodes, newsize);
+		pids = Arrays.copyOf(pids, newsize);
+		events = Arrays.copyOf(events, newsize);
+		next = Arrays.copyOf(next, newsize);
+	}
+
+
+
+	// --------------------------------------------------------------------------
+	// Testing
+	// --------------------------------------------------------------------------
+	/**
+	 * Runs a hold model (remove the first event, insert a later one) on a
+	 * {@link Heap} and on a timing wheel with the same random delays, and
+	 * checks that both return the same keys. Delays span several levels.
+	 */
+	public static void main(String[] args)
+	{
+		Random random = new Random(1);
+		Heap heap = new Heap();
+		TimingWheel wheel = new TimingWheel(8);
+		int rep = 1000000;
+		if (args.length>0)
+			rep = Integer.parseInt(args[0]);
+		int[] ranges = { 10, 1000, 100000 };
+
+		for (int i = 0; i<10000; i++) {
+			long key = (long) random.nextInt(1000)<<8 | random.nextInt(256);
+			heap.add(key, null, null, (byte) 1, null);
+			wheel.add(key, null, null, (byte) 1, null);
+		}
+
+		long errorCount = 0;
+		long time1 = System.currentTimeMillis();
+		for (int i = 0; i<rep; i++) {
+			long a = heap.removeFirst().time;
+			long b = wheel.removeFirst().time;
+			if (a!=b)
+				errorCount++;
+			long delay = random.nextInt(ranges[i%ranges.length]);
+			long key = ((a>>8)+delay)<<8 | random.nextInt(256);
+			heap.add(key, null, null, (byte) 1, null);
+			wheel.add(key, null, null, (byte) 1, null);
+		}
+		long time2 = System.currentTimeMillis();
+		System.out.println("Hold: "+(time2-time1));
+
+		// Drain the wheel by time units
+		while (wheel.size()>0) {
+			Events batch = wheel.removeMany();
+			for (int i = 0; i<batch.size; i++)
+				if (heap.removeFirst().time!=batch.array[i].time)
+					errorCount++;
+		}
+		if (heap.size()!=0)
+			errorCount++;
+		if(errorCount > 0) {
+			System.out.println("Incorrect order: " + errorCount + " unexpected values");
+		}
+
+		try {
+			wheel.add(1L<<20, null, null, (byte) 1, null);
+			wheel.removeFirst();
+			wheel.add(0, null, null, (byte) 1, null);
+			System.out.println("Non-monotone insert was not detected");
+		} catch (IllegalStateException e) {
+			System.out.println("Non-monotone insert detected: " + e.getMessage());
+		}
+
+		System.out.println("Done!");
+	}
+}
@@ -149,7 +149,7 @@ public class DynamicNetwork implements Control {
      */
     protected void remove(int n) {
         for (int i = 0; i < n; ++i)
-            Network.remove(CommonState.r.nextInt(Network.size()));
+            Network.remove(CommonState.stream(RandomStream.CHURN).nextInt(Network.size()));
     }
 
 
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2003-2005 The BISON Project
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License version 2 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package peernet.rangesim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import peernet.Simulator;
+import peernet.config.Configuration;
+import peernet.config.IllegalParameterException;
+import peernet.config.ParsedProperties;
+import peernet.core.CommonState;
+import peernet.core.Engine;
+import peernet.core.Engine.Type;
+import peernet.core.SimulationContext;
+import peernet.util.StringListParser;
+
+
+/**
+ * Runs one SIM experiment for each point of a range of parameter values, for
+ * instance for several random seeds or network sizes, concurrently in a single
+ * JVM. Compared to running {@link Simulator} once per point, this saves the
+ * startup and class loading time of each experiment, and router networks read
+ * from traces (see {@link peernet.transport.RouterNetwork#load}) are loaded
+ * only once.
+ * <p>
+ * Ranges are defined by parameters {@value #PAR_RANGE}.<em>id</em>, whose
+ * value is a parameter name and a range expression (see
+ * {@link StringListParser}), separated by a semicolon. For example:
+ * <pre>
+ *   range.0 random.seed;1:10
+ *   range.1 network.size;1000,10000
+ * </pre>
+ * runs 20 experiments, one for each combination of values. Each experiment
+ * runs in its own {@link SimulationContext}, with its own configuration,
+ * engine, network and random generator, on a pool of
+ * {@value #PAR_THREADS} threads.
+ * <p>
+ * The standard output of each experiment is buffered, and printed in the
+ * order of the experiments once they complete, preceded by a line with the
+ * values of its parameters. Provided that {@value CommonState#PAR_SEED} is
+ * set, the output is thus the same irrespective of the number of threads.
+ * Protocols and controls must not share static state across experiments.
+ */
+public class RangeSimulator
+{
+  // ========================== static constants ==========================
+  // ======================================================================
+
+  /**
+   * The prefix of range parameters.
+   *
+   * @config
+   */
+  public static final String PAR_RANGE = "range";
+
+  /**
+   * The number of experiments run concurrently. Defaults to the number of
+   * available processors.
+   *
+   * @config
+   */
+  public static final String PAR_THREADS = "simulation.threads";
+
+  // ============================== fields ================================
+  // ======================================================================
+
+  /** The standard output of the experiments run by the calling thread */
+  private static final InheritableThreadLocal<PrintStream> output = new InheritableThreadLocal<PrintStream>();
+
+  /** The configuration shared by all experiments */
+  private final Properties properties;
+
+  /** The names of the parameters defined by ranges */
+  private final String[] keys;
+
+  /** The values of the parameters of each experiment */
+  private final List<String[]> points = new ArrayList<String[]>();
+
+
+
+  // ----------------------------------------------------------------------
+  /**
+   * Reads the ranges from the (system-wide) configuration.
+   *
+   * @param properties the configuration, which must also be set with
+   *          {@link Configuration#setConfig(Properties)}
+   */
+  public RangeSimulator(Properties properties)
+  {
+    this.properties = properties;
+    String[] names = Configuration.getNames(PAR_RANGE);
+    keys = new String[names.length];
+    String[][] values = new String[names.length][];
+    for (int i = 0; i < names.length; i++) {
+      String[] range = Configuration.getString(names[i]).split(";");
+      if (range.length != 2)
+        throw new IllegalParameterException(names[i], "should be formatted as <parameter>;<range expression>");
+      keys[i] = range[0].trim();
+      values[i] = StringListParser.parseList(range[1].trim());
+    }
+
+    // Cartesian product of the ranges, the last one varying fastest
+    points.add(new String[0]);
+    for (int i = 0; i < keys.length; i++) {
+      List<String[]> extended = new ArrayList<String[]>();
+      for (String[] point : points)
+        for (String value : values[i]) {
+          String[] p = new String[i + 1];
+          System.arraycopy(point, 0, p, 0, i);
+          p[i] = value;
+          extended.add(p);
+        }
+      points.clear();
+      points.addAll(extended);
+    }
+  }
+
+
+
+  // ----------------------------------------------------------------------
+  /**
+   * Runs all the experiments, printing their outputs in order on
+   * <code>out</code>.
+   *
+   * @param threads the number of experiments run concurrently
+   * @return the number of experiments that failed
+   */
+  public int run(int threads, PrintStream out)
+  {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    List<Future<String>> results = new ArrayList<Future<String>>();
+    for (int i = 0; i < points.size(); i++) {
+      final int index = i;
+      results.add(pool.submit(() -> runExperiment(index)));
+    }
+    pool.shutdown();
+
+    int failures = 0;
+    for (int i = 0; i < points.size(); i++) {
+      out.println(header(i));
+      try {
+        out.print(results.get(i).get());
+      }
+      catch (ExecutionException e) {
+        failures++;
+        out.println("Experiment failed: " + e.getCause());
+        e.getCause().printStackTrace();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failures += points.size() - i;
+        break;
+      }
+      out.flush();
+    }
+    return failures;
+  }
+
+
+
+  // ----------------------------------------------------------------------
+  /**
+   * Runs experiment <code>index</code> in the calling thread, in a context of
+   * its own.
+   *
+   * @return the standard output of the experiment
+   */
+  private String runExperiment(int index)
+  {
+    Properties p = new Properties();
+    p.putAll(properties);
+    String[] point = points.get(index);
+    for (int i = 0; i < keys.length; i++)
+      p.setProperty(keys[i], point[i]);
+
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    output.set(new PrintStream(buffer, true));
+    Configuration.setLocalConfig(p);
+    try {
+      SimulationContext.bind(new SimulationContext());
+      if (Engine.getType() != Type.SIM && Engine.getType() != Type.SIM_CUSTOM)
+        throw new IllegalParameterException("engine.mode", "Only SIM experiments can run concurrently");
+      CommonState.setExperienceName(Configuration.getString(Simulator.PAR_SIM_NAME, "Simulation-" + System.currentTimeMillis()) + "-" + index);
+      System.err.println(header(index) + ", random seed " + CommonState.r.getLastSeed());
+      Engine.instance().startExperiment();
+    }
+    finally {
+      SimulationContext.bind(null);
+      Configuration.setLocalConfig(null);
+      output.get().flush();
+      output.remove();
+    }
+    return buffer.toString();
+  }
+
+
+
+  // ----------------------------------------------------------------------
+  /**
+   * Returns a line describing experiment <code>index</code>.
+   */
+  private String header(int index)
+  {
+    StringBuilder s = new StringBuilder("Experiment " + index);
+    String[] point = points.get(index);
+    for (int i = 0; i < keys.length; i++)
+      s.append(i == 0 ? ": " : ", ").append(keys[i]).append('=').append(point[i]);
+    return s.toString();
+  }
+
+
+
+  // ----------------------------------------------------------------------
+  /**
+   * Standard output that forwards everything to the output of the experiment
+   * run by the calling thread, if any.
+   */
+  private static class ExperimentOutput extends OutputStream
+  {
+    private final PrintStream stdout;
+
+    ExperimentOutput(PrintStream stdout)
+    {
+      this.stdout = stdout;
+    }
+
+    private PrintStream target()
+    {
+      PrintStream out = output.get();
+      return out != null ? out : stdout;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+      target().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      target().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+      target().flush();
+    }
+  }
+
+
+
+  // ----------------------------------------------------------------------
+  /**
+   * Loads the configuration and runs the experiments of all the points of
+   * the ranges it defines.
+   *
+   * @param args passed on to
+   *          {@link ParsedProperties#ParsedProperties(String[])}
+   */
+  public static void main(String[] args)
+  {
+    long time = System.currentTimeMillis();
+    System.err.println("RangeSimulator: loading configuration");
+    ParsedProperties properties = new ParsedProperties(args);
+    Configuration.setConfig(properties);
+    int threads = Configuration.getInt(PAR_THREADS, Runtime.getRuntime().availableProcessors());
+
+    RangeSimulator simulator = new RangeSimulator(properties);
+    System.err.println("RangeSimulator: running " + simulator.points.size() + " experiments on " + threads + " threads");
+
+    PrintStream stdout = System.out;
+    System.setOut(new PrintStream(new ExperimentOutput(stdout), true));
+    int failures = simulator.run(threads, stdout);
+    System.setOut(stdout);
+
+    System.err.println("RangeSimulator: terminated in " + (System.currentTimeMillis() - time) + " miliseconds");
+    if (failures > 0) {
+      System.err.println("RangeSimulator: " + failures + " experiments failed");
+      System.exit(1);
+    }
+  }
+}
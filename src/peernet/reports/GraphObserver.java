@@ -70,15 +70,22 @@ public abstract class GraphObserver extends FileObserver {
     protected final GraphAlgorithms ga = new GraphAlgorithms();
     protected Graph g;
     // ---------------------------------------------------------------------
-    private static int lastpid = -1;
-    private static long time = -1;
-    private static Graph dirg;
-    private static Graph undirg;
-    private static boolean fast;
     /**
-     * If any extending class defines undir we need to maintain an undir graph.
+     * The graphs shared by all the observers of an experiment.
      */
-    private static boolean needUndir = false;
+    private static final class Cache {
+        int lastpid = -1;
+        long time = -1;
+        Graph dirg;
+        Graph undirg;
+        boolean fast;
+        /**
+         * If any extending class defines undir we need to maintain an undir graph.
+         */
+        boolean needUndir = false;
+    }
+
+    private final Cache cache = SimulationContext.attachment(Cache.class, Cache::new);
 
 
     // ===================== initialization ================================
@@ -95,8 +102,8 @@ public abstract class GraphObserver extends FileObserver {
         this.name = name;
         pid = Configuration.getPid(name + "." + PAR_PROT);
         undir = (Configuration.contains(name + "." + PAR_UNDIR) | Configuration.contains(name + "." + PAR_UNDIR_ALT));
-        GraphObserver.fast = Configuration.contains(PAR_FAST);
-        GraphObserver.needUndir = (GraphObserver.needUndir || undir);
+        cache.fast = Configuration.contains(PAR_FAST);
+        cache.needUndir = (cache.needUndir || undir);
     }
 
 
@@ -106,34 +113,34 @@ public abstract class GraphObserver extends FileObserver {
     /**
      * Sets {@link #g}. It MUST be called by any implementation of
      * {@link #execute()} before doing anything else. Attempts to initialize
-     * {@link #g} from a pre-calculated graph stored in a static field, but first
+     * {@link #g} from a pre-calculated graph shared by all observers, but first
      * it checks whether it needs to be updated. If the simulation time has
      * progressed or it was calculated for a different protocol, then updates this
-     * static graph as well. The purpose of this mechanism is to save the time of
+     * shared graph as well. The purpose of this mechanism is to save the time of
      * constructing the graph if many observers are run on the same graph. Time
      * savings can be very significant if the undirected version of the same graph
      * is observed by many observers.
      */
     protected void updateGraph() {
         if (
-                CommonState.getTime() != GraphObserver.time ||
-                        //CommonState.getPhase() != GraphObserver.phase ||
-                        pid != GraphObserver.lastpid) {
+                CommonState.getTime() != cache.time ||
+                        //CommonState.getPhase() != cache.phase ||
+                        pid != cache.lastpid) {
             // we need to update the graphs
-            GraphObserver.lastpid = pid;
-            GraphObserver.time = CommonState.getTime();
-            //GraphObserver.phase = CommonState.getPhase();
-            GraphObserver.dirg = new OverlayGraph(pid);
-            if (GraphObserver.needUndir) {
-                if (fast)
-                    GraphObserver.undirg = new FastUndirGraph(GraphObserver.dirg);
+            cache.lastpid = pid;
+            cache.time = CommonState.getTime();
+            //cache.phase = CommonState.getPhase();
+            cache.dirg = new OverlayGraph(pid);
+            if (cache.needUndir) {
+                if (cache.fast)
+                    cache.undirg = new FastUndirGraph(cache.dirg);
                 else
-                    GraphObserver.undirg = new ConstUndirGraph(GraphObserver.dirg);
+                    cache.undirg = new ConstUndirGraph(cache.dirg);
             }
         }
         if (undir)
-            g = GraphObserver.undirg;
+            g = cache.undirg;
         else
-            g = GraphObserver.dirg;
+            g = cache.dirg;
     }
 }
@@ -19,6 +19,7 @@ package peernet.reports;
 import peernet.config.Configuration;
 import peernet.config.IllegalParameterException;
 import peernet.core.CommonState;
+import peernet.core.SimulationContext;
 import peernet.graph.ConstUndirGraph;
 import peernet.graph.FastUndirGraph;
 import peernet.graph.Graph;
@@ -69,20 +70,27 @@ public abstract class GraphObserver_2 extends FileObserver {
     protected final GraphAlgorithms ga = new GraphAlgorithms();
     protected Graph g;
     // ---------------------------------------------------------------------
-    private static int lastpid = -1234;
-    private static long time = -1234;
-    private static Graph dirg;
-    private static Graph undirg;
-    private static Graph reverseg;
-    private static boolean fast;
     /**
-     * If any extending class defines undir we need to maintain an undir graph.
+     * The graphs shared by all the observers of an experiment.
      */
-    private static boolean needUndir = false;
-    /**
-     * If any extending class defines reverse we need to maintain a reverse graph.
-     */
-    private static boolean needReverse = false;
+    private static final class Cache {
+        int lastpid = -1234;
+        long time = -1234;
+        Graph dirg;
+        Graph undirg;
+        Graph reverseg;
+        boolean fast;
+        /**
+         * If any extending class defines undir we need to maintain an undir graph.
+         */
+        boolean needUndir = false;
+        /**
+         * If any extending class defines reverse we need to maintain a reverse graph.
+         */
+        boolean needReverse = false;
+    }
+
+    private final Cache cache = SimulationContext.attachment(Cache.class, Cache::new);
 
 
     // ===================== initialization ================================
@@ -104,8 +112,8 @@ public abstract class GraphObserver_2 extends FileObserver {
             throw new IllegalParameterException(name + "." + PAR_UNDIR + ", " + name + "." + PAR_REVERSE,
                     "Parameters must not be defined together.");
         }
-        GraphObserver_2.needUndir = (GraphObserver_2.needUndir || undir);
-        GraphObserver_2.needReverse = (GraphObserver_2.needReverse || reverse);
+        cache.needUndir = (cache.needUndir || undir);
+        cache.needReverse = (cache.needReverse || reverse);
     }
 
 
@@ -115,39 +123,39 @@ public abstract class GraphObserver_2 extends FileObserver {
     /**
      * Sets {@link #g}. It MUST be called by any implementation of
      * {@link #execute()} before doing anything else. Attempts to initialize
-     * {@link #g} from a pre-calculated graph stored in a static field, but first
+     * {@link #g} from a pre-calculated graph shared by all observers, but first
      * it checks whether it needs to be updated. If the simulation time has
      * progressed or it was calculated for a different protocol, then updates this
-     * static graph as well. The purpose of this mechanism is to save the time of
+     * shared graph as well. The purpose of this mechanism is to save the time of
      * constructing the graph if many observers are run on the same graph. Time
      * savings can be very significant if the undirected version of the same graph
      * is observed by many observers.
      */
     protected void updateGraph() {
         if (
-                CommonState.getTime() != GraphObserver_2.time ||
-                        //CommonState.getPhase() != GraphObserver_2.phase ||
-                        pid != GraphObserver_2.lastpid) {
+                CommonState.getTime() != cache.time ||
+                        //CommonState.getPhase() != cache.phase ||
+                        pid != cache.lastpid) {
             // we need to update the graphs
-            GraphObserver_2.lastpid = pid;
-            GraphObserver_2.time = CommonState.getTime();
-            //      GraphObserver_2.phase = CommonState.getPhase();
-            GraphObserver_2.dirg = new OverlayGraph(pid);
-            if (GraphObserver_2.needUndir) {
-                if (fast)
-                    GraphObserver_2.undirg = new FastUndirGraph(GraphObserver_2.dirg);
+            cache.lastpid = pid;
+            cache.time = CommonState.getTime();
+            //      cache.phase = CommonState.getPhase();
+            cache.dirg = new OverlayGraph(pid);
+            if (cache.needUndir) {
+                if (cache.fast)
+                    cache.undirg = new FastUndirGraph(cache.dirg);
                 else
-                    GraphObserver_2.undirg = new ConstUndirGraph(GraphObserver_2.dirg);
+                    cache.undirg = new ConstUndirGraph(cache.dirg);
             }
-            if (GraphObserver_2.needReverse) {
-                GraphObserver_2.reverseg = new ReverseGraph(GraphObserver_2.dirg);
+            if (cache.needReverse) {
+                cache.reverseg = new ReverseGraph(cache.dirg);
             }
         }
         if (undir)
-            g = GraphObserver_2.undirg;
+            g = cache.undirg;
         else if (reverse)
-            g = GraphObserver_2.reverseg;
+            g = cache.reverseg;
         else
-            g = GraphObserver_2.dirg;
+            g = cache.dirg;
     }
 }
@@ -18,6 +18,8 @@
 
 package peernet.reports;
 
+import peernet.core.ReadOnlyControl;
+
 /**
  * This observer reports memory utilization (max, total and
  * free, as defined by <code>java.lang.Runtime</code>).
@@ -25,7 +27,7 @@ package peernet.reports;
  * @author Alberto Montresor
  * @version $Revision: 1.1 $
  */
-public class MemoryObserver extends FileObserver {
+public class MemoryObserver extends FileObserver implements ReadOnlyControl {
 
     /**
      * The runtime object to obtain memory info
@@ -0,0 +1,467 @@
+package peernet.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+import peernet.config.Configuration;
+import peernet.config.IllegalParameterException;
+
+
+/**
+ * Registry of the binary {@link MessageCodec}s of message classes, used by
+ * the NET transports to encode the payloads of packets. Each registered class
+ * has a small numeric type id, which is written in front of its encoding.
+ * Payloads of classes without a codec are written with Java serialization,
+ * under type id 0.
+ * <p>
+ * A packet is encoded as the pid it is destined to (two bytes), the type id
+ * of the payload (two bytes), and the encoding of the payload. Type ids 1 to
+ * {@value #RESERVED} are reserved for the codecs of <code>Integer</code>,
+ * <code>Long</code>, <code>String</code> and <code>byte[]</code>, which are
+ * always registered.
+ * <p>
+ * Codecs are registered either from code, with
+ * {@link #register(int, Class, MessageCodec)}, typically in a static
+ * initializer of the protocol, or from the configuration:
+ * <pre>
+ *   codec.join JoinMessageCodec
+ *   codec.join.id 16
+ *   codec.join.type JoinMessage
+ * </pre>
+ * All the nodes of an experiment must register the same codecs under the
+ * same ids. Codecs are looked up by the exact class of the payload, so
+ * subclasses need codecs of their own.
+ * <p>
+ * Encoding is done into buffers of {@value #BUFFER_SIZE} bytes, taken from a
+ * pool with {@link #acquire()} and given back with {@link #release}.
+ */
+public final class Codecs {
+    /**
+     * The prefix of the codecs registered from the configuration. Each codec
+     * defines its type id with parameter <code>id</code>, and the message
+     * class it serializes with parameter <code>type</code>.
+     *
+     * @config
+     */
+    public static final String PAR_CODEC = "codec";
+
+    /** The type id of payloads written with Java serialization */
+    public static final int SERIALIZED = 0;
+
+    /**
+     * The pid that marks a datagram holding several packets, each prefixed
+     * by its length on two bytes.
+     */
+    public static final int BATCH = 0xffff;
+
+    /** The highest type id reserved for built-in codecs */
+    public static final int RESERVED = 15;
+
+    /**
+     * The size of pooled buffers, and thus the largest encoded packet.
+     * Datagrams are smaller, see {@link TransportUDP#MAX_DATAGRAM}.
+     */
+    public static final int BUFFER_SIZE = 65536;
+
+    /** The most buffers kept in the pool */
+    private static final int POOL_SIZE = 256;
+
+    private static final Map<Class<?>, Integer> ids = new ConcurrentHashMap<>();
+
+    /** The codecs by type id, replaced as a whole by registrations */
+    private static volatile MessageCodec<?>[] codecs = new MessageCodec<?>[RESERVED + 1];
+
+    /** Set once the codecs of the configuration have been registered */
+    private static volatile boolean configured = false;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+
+    static {
+        register(1, Integer.class, new MessageCodec<Integer>() {
+            public void encode(Integer message, ByteBuffer out) {
+                out.putInt(message);
+            }
+
+            public Integer decode(ByteBuffer in) {
+                return in.getInt();
+            }
+        });
+        register(2, Long.class, new MessageCodec<Long>() {
+            public void encode(Long message, ByteBuffer out) {
+                out.putLong(message);
+            }
+
+            public Long decode(ByteBuffer in) {
+                return in.getLong();
+            }
+        });
+        register(3, String.class, new MessageCodec<String>() {
+            public void encode(String message, ByteBuffer out) {
+                putString(out, message);
+            }
+
+            public String decode(ByteBuffer in) throws IOException {
+                return getString(in);
+            }
+        });
+        register(4, byte[].class, new MessageCodec<byte[]>() {
+            public void encode(byte[] message, ByteBuffer out) {
+                out.putInt(message.length);
+                out.put(message);
+            }
+
+            public byte[] decode(ByteBuffer in) throws IOException {
+                byte[] message = new byte[getLength(in)];
+                in.get(message);
+                return message;
+            }
+        });
+    }
+
+
+    private Codecs() {
+    }
+
+
+    /**
+     * Registers the codec of a message class.
+     *
+     * @param id the type id of the class, greater than {@value #RESERVED}
+     *          for application classes, and less than 65536
+     * @throws IllegalArgumentException if the id or the class is already
+     *           registered
+     */
+    public static synchronized <T> void register(int id, Class<T> type, MessageCodec<? super T> codec) {
+        if (id <= SERIALIZED || id > 0xffff)
+            throw new IllegalArgumentException("Type id " + id + " out of range");
+        if (id < codecs.length && codecs[id] != null)
+            throw new IllegalArgumentException("Type id " + id + " is already registered");
+        if (ids.containsKey(type))
+            throw new IllegalArgumentException(type.getName() + " is already registered");
+        MessageCodec<?>[] extended = new MessageCodec<?>[Math.max(id + 1, codecs.length)];
+        System.arraycopy(codecs, 0, extended, 0, codecs.length);
+        extended[id] = codec;
+        codecs = extended;
+        ids.put(type, id);
+    }
+
+
+    /**
+     * Registers the codecs defined by {@value #PAR_CODEC}, on first use.
+     */
+    private static synchronized void configure() {
+        if (configured)
+            return;
+        for (String name : Configuration.getNames(PAR_CODEC)) {
+            int id = Configuration.getInt(name + ".id");
+            if (id <= RESERVED)
+                throw new IllegalParameterException(name + ".id", "Type ids up to " + RESERVED + " are reserved");
+            @SuppressWarnings("unchecked")
+            Class<Object> type = Configuration.getClass(name + ".type");
+            @SuppressWarnings("unchecked")
+            MessageCodec<Object> codec = (MessageCodec<Object>) Configuration.getInstance(name);
+            try {
+                register(id, type, codec);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalParameterException(name, e.getMessage());
+            }
+        }
+        configured = true;
+    }
+
+
+    /**
+     * Returns the codec of a type id, or null if none is registered.
+     */
+    private static MessageCodec<?> codec(int id) {
+        MessageCodec<?>[] codecs = Codecs.codecs;
+        return id < codecs.length ? codecs[id] : null;
+    }
+
+
+    /**
+     * Returns the type id of a class, or {@value #SERIALIZED} if it has no
+     * codec.
+     */
+    private static int id(Class<?> type) {
+        Integer id = ids.get(type);
+        return id == null ? SERIALIZED : id;
+    }
+
+
+    /**
+     * Encodes a packet into a buffer of the pool. The buffer is returned
+     * flipped, ready to be sent, and should then be given back with
+     * {@link #release(ByteBuffer)}.
+     *
+     * @throws IOException if the payload cannot be encoded, or is too large
+     */
+    public static ByteBuffer encode(int pid, Object payload) throws IOException {
+        return encode(pid, payload, BUFFER_SIZE);
+    }
+
+
+    /**
+     * Encodes a packet of at most <code>max</code> bytes into a buffer of
+     * the pool, as {@link #encode(int, Object)}.
+     *
+     * @throws IOException if the payload cannot be encoded, or is too large
+     */
+    public static ByteBuffer encode(int pid, Object payload, int max) throws IOException {
+        ByteBuffer buffer = acquire();
+        buffer.limit(Math.min(max, BUFFER_SIZE));
+        try {
+            encode(pid, payload, buffer);
+        } catch (BufferOverflowException e) {
+            release(buffer);
+            throw new IOException("Payload too large: " + payload.getClass().getName());
+        } catch (IOException | RuntimeException e) {
+            release(buffer);
+            throw e;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+
+    /**
+     * Encodes a packet at the position of <code>out</code>.
+     *
+     * @throws BufferOverflowException if the packet does not fit, in which
+     *           case the position of <code>out</code> is undefined
+     * @throws IOException if the payload cannot be encoded
+     */
+    @SuppressWarnings("unchecked")
+    public static void encode(int pid, Object payload, ByteBuffer out) throws IOException {
+        if (!configured)
+            configure();
+        int id = id(payload.getClass());
+        out.putShort((short) pid);
+        out.putShort((short) id);
+        if (id == SERIALIZED) {
+            // length-prefixed, as the object stream may read ahead
+            int start = out.position();
+            out.putInt(0);
+            ObjectOutputStream oos = new ObjectOutputStream(new BufferOutputStream(out));
+            oos.writeObject(payload);
+            oos.flush();
+            out.putInt(start, out.position() - start - 4);
+        } else
+            ((MessageCodec<Object>) codec(id)).encode(payload, out);
+    }
+
+
+    /**
+     * Decodes a packet from the position of <code>in</code>.
+     *
+     * @param src the address the packet was received from
+     * @throws IOException if the packet is corrupt, or of an unknown type
+     */
+    public static Packet decode(Address src, ByteBuffer in) throws IOException, ClassNotFoundException {
+        if (!configured)
+            configure();
+        try {
+            int pid = in.getShort() & 0xffff;
+            int id = in.getShort() & 0xffff;
+            Object event;
+            if (id == SERIALIZED) {
+                int length = in.getInt();
+                if (length < 0 || length > in.remaining())
+                    throw new IOException("Truncated packet");
+                ByteBuffer object = in.slice();
+                object.limit(length);
+                in.position(in.position() + length);
+                event = new ObjectInputStream(new BufferInputStream(object)).readObject();
+            } else {
+                MessageCodec<?> codec = codec(id);
+                if (codec == null)
+                    throw new IOException("Unknown type id " + id);
+                event = codec.decode(in);
+            }
+            return new Packet(src, pid, event);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated packet");
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt packet", e);
+        }
+    }
+
+
+    /**
+     * Decodes the packets of a datagram, which holds either a single packet,
+     * or several of them batched.
+     *
+     * @param src the address the datagram was received from
+     * @param out receives the packets, in order
+     * @throws IOException if the datagram is corrupt, in which case the
+     *           packets before the corrupt one have been passed to
+     *           <code>out</code>
+     */
+    public static void decodeDatagram(Address src, ByteBuffer in, Consumer<Packet> out) throws IOException, ClassNotFoundException {
+        if (in.remaining() < 2 || (in.getShort(in.position()) & 0xffff) != BATCH) {
+            out.accept(decode(src, in));
+            return;
+        }
+        in.position(in.position() + 2);
+        while (in.remaining() >= 2) {
+            int length = in.getShort() & 0xffff;
+            if (length > in.remaining())
+                throw new IOException("Truncated packet");
+            ByteBuffer record = in.slice();
+            record.limit(length);
+            in.position(in.position() + length);
+            out.accept(decode(src, record));
+        }
+    }
+
+
+    /**
+     * Takes a cleared buffer of {@value #BUFFER_SIZE} bytes from the pool.
+     */
+    public static ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null)
+            return ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.clear();
+        return buffer;
+    }
+
+
+    /**
+     * Gives a buffer taken with {@link #acquire()} back to the pool. Buffers
+     * of other sizes are ignored.
+     */
+    public static void release(ByteBuffer buffer) {
+        if (buffer.capacity() == BUFFER_SIZE && !buffer.isDirect() && pool.size() < POOL_SIZE)
+            pool.offer(buffer);
+    }
+
+
+    // ------------------------------------------------------------------
+    // Helpers for codecs
+    // ------------------------------------------------------------------
+
+    /**
+     * Writes a string as its length and its UTF-8 bytes.
+     */
+    public static void putString(ByteBuffer out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+
+    /**
+     * Reads a string written by {@link #putString(ByteBuffer, String)}.
+     */
+    public static String getString(ByteBuffer in) throws IOException {
+        byte[] bytes = new byte[getLength(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Reads the length of an array, checking that its elements are within
+     * <code>in</code>, so that corrupt input does not allocate at random.
+     *
+     * @throws IOException if the length is negative, or beyond the limit
+     */
+    public static int getLength(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining())
+            throw new IOException("Corrupt length " + length);
+        return length;
+    }
+
+
+    /**
+     * Writes a NET address, e.g., the sender of a {@link NetworkMessage}.
+     */
+    public static void putAddress(ByteBuffer out, AddressNet address) {
+        byte[] ip = address.ip.getAddress();
+        out.put((byte) ip.length);
+        out.put(ip);
+        out.putShort((short) address.port);
+    }
+
+
+    /**
+     * Reads an address written by {@link #putAddress(ByteBuffer, AddressNet)}.
+     */
+    public static AddressNet getAddress(ByteBuffer in) throws IOException {
+        int length = in.get();
+        if (length != 4 && length != 16)
+            throw new IOException("Corrupt address");
+        byte[] ip = new byte[length];
+        in.get(ip);
+        return new AddressNet(InetAddress.getByAddress(ip), in.getShort() & 0xffff);
+    }
+
+
+    /**
+     * Writes to a buffer, for Java serialization.
+     */
+    private static class BufferOutputStream extends OutputStream {
+        private final ByteBuffer out;
+
+        BufferOutputStream(ByteBuffer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) {
+            out.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            out.put(b, off, len);
+        }
+    }
+
+
+    /**
+     * Reads from a buffer, for Java serialization.
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer in;
+
+        BufferInputStream(ByteBuffer in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() {
+            return in.hasRemaining() ? in.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!in.hasRemaining())
+                return -1;
+            len = Math.min(len, in.remaining());
+            in.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return in.remaining();
+        }
+    }
+}
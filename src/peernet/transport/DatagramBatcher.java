@@ -0,0 +1,161 @@
+package peernet.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Packs the packets that a node sends to the same destination within a short
+ * time into a single datagram, for the UDP transports. A datagram is sent as
+ * soon as the next packet would not fit in its size, or once its first packet
+ * has waited for the linger time. A datagram that holds a single packet is
+ * sent as is; otherwise it is marked with pid {@link Codecs#BATCH}, and each
+ * packet is prefixed by its length (see
+ * {@link Codecs#decodeDatagram(Address, ByteBuffer, java.util.function.Consumer)}).
+ */
+final class DatagramBatcher {
+    /**
+     * Sends a datagram, from the position to the limit of the buffer.
+     */
+    interface Sender {
+        void send(ByteBuffer data, AddressNet dest) throws IOException;
+    }
+
+
+    /** The size of the header of a batch: the marker, then a record length */
+    private static final int HEADER = 4;
+
+    /** Sends the datagrams whose linger time has expired, for all nodes */
+    private static ScheduledThreadPoolExecutor timer = null;
+
+    private final int size;
+    private final long linger;
+    private final Sender sender;
+
+    /** The datagrams being filled, by destination */
+    private final Map<AddressNet, Batch> batches = new HashMap<>();
+
+    /** Buffers of sent datagrams, for reuse */
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+
+    /**
+     * @param size the largest datagram, in bytes
+     * @param linger the longest a packet waits for others, in milliseconds
+     */
+    DatagramBatcher(int size, long linger, Sender sender) {
+        this.size = size;
+        this.linger = linger;
+        this.sender = sender;
+    }
+
+
+    /**
+     * Starts the timer on first use.
+     */
+    private static synchronized ScheduledThreadPoolExecutor timer() {
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "DatagramBatcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return timer;
+    }
+
+
+    /**
+     * Adds a packet to the datagram to its destination, sending the datagram
+     * if full. Packets too large to share a datagram are sent at once.
+     */
+    void send(AddressNet dest, int pid, Object payload) throws IOException {
+        ByteBuffer record = TransportUDP.encode(pid, payload);
+        if (record == null)
+            return;
+        try {
+            if (record.remaining() > size - HEADER - 2) {
+                sender.send(record, dest);
+                return;
+            }
+            synchronized (this) {
+                Batch batch = batches.get(dest);
+                if (batch != null && batch.data.remaining() < 2 + record.remaining()) {
+                    flush(batch);
+                    batch = null;
+                }
+                if (batch == null) {
+                    batch = new Batch(dest, buffer());
+                    batches.put(dest, batch);
+                    timer().schedule(batch, linger, TimeUnit.MILLISECONDS);
+                }
+                batch.data.putShort((short) record.remaining());
+                batch.data.put(record);
+                batch.count++;
+            }
+        } finally {
+            Codecs.release(record);
+        }
+    }
+
+
+    /**
+     * Returns an empty buffer, with room for the marker of a batch.
+     */
+    private ByteBuffer buffer() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocate(size);
+        buffer.clear();
+        buffer.putShort((short) Codecs.BATCH);
+        return buffer;
+    }
+
+
+    /**
+     * Sends a datagram, and forgets it. Must hold the lock.
+     */
+    private void flush(Batch batch) {
+        batches.remove(batch.dest);
+        ByteBuffer data = batch.data;
+        data.flip();
+        if (batch.count == 1)
+            data.position(HEADER); // a single packet is sent as is
+        try {
+            sender.send(data, batch.dest);
+        } catch (IOException e) {
+            // No problem failing to send a packet.
+            // It is most likely due to full networks buffers.
+        }
+        free.push(data);
+    }
+
+
+    /**
+     * A datagram being filled. Runs when its linger time expires.
+     */
+    private class Batch implements Runnable {
+        final AddressNet dest;
+        final ByteBuffer data;
+        int count = 0;
+
+
+        Batch(AddressNet dest, ByteBuffer data) {
+            this.dest = dest;
+            this.data = data;
+        }
+
+
+        public void run() {
+            synchronized (DatagramBatcher.this) {
+                if (batches.get(dest) == this)
+                    flush(this);
+            }
+        }
+    }
+}
@@ -24,7 +24,7 @@ import peernet.core.Control;
 
 
 /**
- * Initializes static singleton {@link RouterNetwork} by reading a king data
+ * Initializes {@link RouterNetwork} by reading a king data
  * set.
  *
  * @author Alberto Montresor
@@ -88,12 +88,21 @@ public class KingParser implements Control {
     // ---------------------------------------------------------------------
 
     /**
-     * Initializes static singleton {@link RouterNetwork} by reading a king data
+     * Initializes {@link RouterNetwork} by reading a king data
      * set.
      *
      * @return always false
      */
     public boolean execute() {
+        RouterNetwork.load("KingParser " + filename + " " + ratio, this::load);
+        return false;
+    }
+
+
+    /**
+     * Reads the latencies into {@link RouterNetwork}.
+     */
+    private void load() {
         BufferedReader in = null;
         if (filename != null) {
             try {
@@ -132,6 +141,5 @@ public class KingParser implements Control {
             while (line != null);
         } catch (IOException e) {
         }
-        return false;
     }
 }
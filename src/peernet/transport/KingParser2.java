@@ -25,7 +25,7 @@ import peernet.config.*;
 import peernet.core.Control;
 
 /**
- * Initializes static singleton {@link RouterNetwork} by reading a king data set.
+ * Initializes {@link RouterNetwork} by reading a king data set.
  *
  * @author Alberto Montresor
  * @version $Revision: 1.7 $
@@ -89,11 +89,20 @@ public class KingParser2 implements Control {
 // ---------------------------------------------------------------------
 
     /**
-     * Initializes static singleton {@link RouterNetwork} by reading a king data set.
+     * Initializes {@link RouterNetwork} by reading a king data set.
      *
      * @return always false
      */
     public boolean execute() {
+        RouterNetwork.load("KingParser2 " + filename + " " + ratio, this::load);
+        return false;
+    }
+
+
+    /**
+     * Reads the latencies into {@link RouterNetwork}.
+     */
+    private void load() {
         BufferedReader in = null;
         if (filename != null) {
             try {
@@ -151,8 +160,6 @@ public class KingParser2 implements Control {
         } catch (IOException e) {
             e.printStackTrace();
         }
-
-        return false;
     }
 
 }
@@ -0,0 +1,67 @@
+package peernet.transport;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+
+/**
+ * Registry of the NET transports listening in this JVM, by port, for the
+ * in-JVM fast path of {@link TransportNet}. Stream and datagram transports
+ * have separate ports.
+ */
+final class Loopback {
+    /** The handlers of the listening transports, by {@link #key} */
+    private static final Map<Integer, Consumer<Packet>> handlers = new ConcurrentHashMap<>();
+
+    /** Whether addresses are those of this host, as they are checked */
+    private static final Map<InetAddress, Boolean> local = new ConcurrentHashMap<>();
+
+
+    private Loopback() {
+    }
+
+
+    private static int key(boolean stream, int port) {
+        return stream ? port + 65536 : port;
+    }
+
+
+    static void register(boolean stream, int port, Consumer<Packet> handler) {
+        handlers.put(key(stream, port), handler);
+    }
+
+
+    /**
+     * Returns the handler of the transport listening at an address, or null
+     * if it is not in this JVM.
+     */
+    static Consumer<Packet> handler(boolean stream, AddressNet address) {
+        Consumer<Packet> handler = handlers.get(key(stream, address.port));
+        if (handler == null || !isLocal(address.ip))
+            return null;
+        return handler;
+    }
+
+
+    /**
+     * Returns true if <code>ip</code> is an address of this host.
+     */
+    static boolean isLocal(InetAddress ip) {
+        return local.computeIfAbsent(ip, Loopback::checkLocal);
+    }
+
+
+    private static boolean checkLocal(InetAddress ip) {
+        if (ip.isLoopbackAddress() || ip.isAnyLocalAddress())
+            return true;
+        try {
+            return NetworkInterface.getByInetAddress(ip) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+}
@@ -18,7 +18,7 @@ import peernet.core.Control;
 
 
 /**
- * Initializes static singleton {@link RouterNetwork} by reading a trace file
+ * Initializes {@link RouterNetwork} by reading a trace file
  * containing the latency distance measured between a set of "virtual" routers.
  * Latency between two nodes is not necessarily symmetric.
  * <p>
@@ -88,12 +88,21 @@ public class MatrixParser implements Control {
 
 
     /**
-     * Initializes static singleton {@link RouterNetwork} by reading a king data
+     * Initializes {@link RouterNetwork} by reading a king data
      * set.
      *
      * @return always false
      */
     public boolean execute() {
+        RouterNetwork.load("MatrixParser " + filename + " " + ratio + " " + binary, this::load);
+        return false;
+    }
+
+
+    /**
+     * Reads the latencies into {@link RouterNetwork}.
+     */
+    private void load() {
         try {
             if (binary)
                 readBinaryFormat(filename, ratio);
@@ -102,7 +111,6 @@ public class MatrixParser implements Control {
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage());
         }
-        return false;
     }
 
 
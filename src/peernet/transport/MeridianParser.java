@@ -31,7 +31,7 @@ import peernet.core.Control;
 
 
 /**
- * Initializes static singleton {@link RouterNetwork} by reading a king data set.
+ * Initializes {@link RouterNetwork} by reading a king data set.
  *
  * @author Spyros Voulgaris
  * @version $Revision: 1.0$
@@ -107,11 +107,20 @@ public class MeridianParser implements Control {
 // ---------------------------------------------------------------------
 
     /**
-     * Initializes static singleton {@link RouterNetwork} by reading a king data set.
+     * Initializes {@link RouterNetwork} by reading a king data set.
      *
      * @return always false
      */
     public boolean execute() {
+        RouterNetwork.load("MeridianParser " + filename + " " + ratio + " " + size, this::load);
+        return false;
+    }
+
+
+    /**
+     * Reads the latencies into {@link RouterNetwork}.
+     */
+    private void load() {
         BufferedReader in = null;
         if (filename != null) {
             try {
@@ -149,8 +158,6 @@ public class MeridianParser implements Control {
             }
         } catch (IOException e) {
         }
-
-        return false;
     }
 
 }
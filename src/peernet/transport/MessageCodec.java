@@ -0,0 +1,33 @@
+package peernet.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Binary serializer of a message class, registered with {@link Codecs} under
+ * a small numeric type id. Codecs write and read the fields of messages
+ * directly, so they are much cheaper than Java serialization, both in CPU
+ * and in bytes on the wire.
+ * <p>
+ * Codecs are shared by all the nodes of the JVM, and must thus be stateless.
+ * When configured with {@value Codecs#PAR_CODEC}, they are created through a
+ * constructor taking the configuration prefix as its single parameter.
+ *
+ * @see Codecs
+ */
+public interface MessageCodec<T> {
+    /**
+     * Writes <code>message</code> at the position of <code>out</code>.
+     *
+     * @throws java.nio.BufferOverflowException if the message does not fit
+     */
+    public void encode(T message, ByteBuffer out) throws IOException;
+
+
+    /**
+     * Reads a message written by {@link #encode(Object, ByteBuffer)} from the
+     * position of <code>in</code>.
+     */
+    public T decode(ByteBuffer in) throws IOException;
+}
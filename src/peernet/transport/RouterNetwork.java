@@ -17,9 +17,19 @@
  */
 package peernet.transport;
 
+import java.util.HashMap;
+import java.util.Map;
+
+import peernet.core.SimulationContext;
+
 /**
  * This static singleton emulates an underlying router network of fixed size,
  * and stores the latency measurements for all pairs of routers.
+ * <p>
+ * Each experiment (see {@link SimulationContext}) has its own router network.
+ * Networks read from traces should be set up with
+ * {@link #load(String, Runnable)}, so that experiments running concurrently in
+ * the same JVM share a single read-only copy of the latencies of each trace.
  *
  * @author Alberto Montresor
  * @version $Revision: 1.5 $
@@ -28,18 +38,29 @@ public class RouterNetwork {
     // ---------------------------------------------------------------------
     // Fields
     // ---------------------------------------------------------------------
+
     /**
-     * True if latency between nodes is considered symmetric. False otherwise.
-     */
-    private static boolean symm;
-    /**
-     * Size of the router network.
+     * The router network of an experiment.
      */
-    private static int size;
+    private static final class Latencies {
+        /**
+         * True if latency between nodes is considered symmetric. False otherwise.
+         */
+        boolean symm;
+        /**
+         * Size of the router network.
+         */
+        int size;
+        /**
+         * Latency distances between nodes.
+         */
+        int[][] array;
+    }
+
     /**
-     * Latency distances between nodes.
+     * The networks set up with {@link #load(String, Runnable)}, by source.
      */
-    private static int[][] array;
+    private static final Map<String, Latencies> loaded = new HashMap<String, Latencies>();
 
 
     // ---------------------------------------------------------------------
@@ -57,6 +78,16 @@ public class RouterNetwork {
     // Methods
     // ---------------------------------------------------------------------
 
+    /**
+     * Returns the router network of the current experiment.
+     */
+    private static Latencies latencies() {
+        return SimulationContext.routerNetwork(Latencies::new);
+    }
+
+
+    // ---------------------------------------------------------------------
+
     /**
      * Resets the network, by creating a triangular (if symm is true) or a
      * rectangular (if symm is false) array of integers. Initially all latencies
@@ -67,14 +98,49 @@ public class RouterNetwork {
      */
     @SuppressWarnings("hiding")
     public static void reset(final int size, final boolean symm) {
-        RouterNetwork.symm = symm;
-        RouterNetwork.size = size;
-        array = new int[size][];
+        Latencies l = latencies();
+        l.symm = symm;
+        l.size = size;
+        l.array = new int[size][];
         for (int i = 0; i < size; i++) {
             if (symm)
-                array[i] = new int[i];
+                l.array[i] = new int[i];
             else
-                array[i] = new int[size];
+                l.array[i] = new int[size];
+        }
+    }
+
+
+    // ---------------------------------------------------------------------
+
+    /**
+     * Sets up the network of the current experiment from the given source.
+     * The first time a source is used in this JVM, <code>loader</code> is run
+     * to set up the network, with {@link #reset(int, boolean)} and
+     * {@link #setLatency(int, int, int)}. Afterwards, the network is shared
+     * with all the experiments that load the same source, and must not be
+     * modified.
+     *
+     * @param source identifies the latencies, e.g., by the name of the trace
+     *               file and of any parameter affecting its parsing
+     * @param loader sets up the network, if the source was not loaded before
+     */
+    public static void load(String source, Runnable loader) {
+        synchronized (loaded) {
+            Latencies shared = loaded.get(source);
+            Latencies l = latencies();
+            if (shared == null) {
+                loader.run();
+                shared = new Latencies();
+                shared.symm = l.symm;
+                shared.size = l.size;
+                shared.array = l.array;
+                loaded.put(source, shared);
+            } else {
+                l.symm = shared.symm;
+                l.size = shared.size;
+                l.array = shared.array;
+            }
         }
     }
 
@@ -92,7 +158,8 @@ public class RouterNetwork {
     public static int getLatency(int sender, int receiver) {
         if (sender == receiver)
             return 0;
-        if (symm) {
+        Latencies l = latencies();
+        if (l.symm) {
             // Symmetric network
             if (sender < receiver) {
                 int tmp = sender;
@@ -100,7 +167,7 @@ public class RouterNetwork {
                 receiver = tmp;
             }
         }
-        return array[sender][receiver];
+        return l.array[sender][receiver];
     }
 
 
@@ -115,7 +182,8 @@ public class RouterNetwork {
      * @param latency  the latency to be set
      */
     public static void setLatency(int sender, int receiver, int latency) {
-        if (symm) {
+        Latencies l = latencies();
+        if (l.symm) {
             // Symmetric network
             if (sender < receiver) {
                 int tmp = sender;
@@ -123,7 +191,24 @@ public class RouterNetwork {
                 receiver = tmp;
             }
         }
-        array[sender][receiver] = latency;
+        l.array[sender][receiver] = latency;
+    }
+
+
+    // ---------------------------------------------------------------------
+
+    /**
+     * Returns the smallest latency between two distinct routers, ignoring
+     * broken (negative) links, or 0 if there are less than two routers.
+     */
+    public static int getMinLatency() {
+        Latencies l = latencies();
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < l.size; i++)
+            for (int j = 0; j < l.array[i].length; j++)
+                if (i != j && l.array[i][j] >= 0 && l.array[i][j] < min)
+                    min = l.array[i][j];
+        return min == Integer.MAX_VALUE ? 0 : min;
     }
 
 
@@ -134,6 +219,6 @@ public class RouterNetwork {
      * routers).
      */
     public static int getSize() {
-        return size;
+        return latencies().size;
     }
 }
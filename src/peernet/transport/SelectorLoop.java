@@ -0,0 +1,142 @@
+package peernet.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * I/O thread of the NIO transports, which services the channels registered
+ * with its {@link Selector}. The attachment of each key is the
+ * {@link Handler} called when the channel is ready. All the NIO transports of
+ * the JVM share a single pool of loops, started on first use.
+ */
+final class SelectorLoop extends Thread {
+    /**
+     * Called by the loop when the channel of a key is ready.
+     */
+    interface Handler {
+        void ready(SelectionKey key);
+    }
+
+
+    /** The period of the tasks run with {@link #every(Runnable)}, in ms */
+    static final long PERIOD = 1000;
+
+    private static SelectorLoop[] loops = null;
+    private static int next = 0;
+
+    final Selector selector;
+
+    /**
+     * A direct buffer of {@link Codecs#BUFFER_SIZE} bytes, for the handlers
+     * to read into.
+     */
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(Codecs.BUFFER_SIZE);
+
+    /** Tasks to run in the loop, such as registrations */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /** Tasks run every {@link #PERIOD}, only accessed by the loop */
+    private final List<Runnable> periodic = new ArrayList<>();
+
+
+    private SelectorLoop(String name) {
+        super(name);
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open selector", e);
+        }
+    }
+
+
+    /**
+     * Returns the loop to register the next channel with, in turn. The pool
+     * is started by the first call, with <code>threads</code> loops.
+     */
+    static synchronized SelectorLoop next(int threads) {
+        if (loops == null) {
+            loops = new SelectorLoop[threads];
+            for (int i = 0; i < threads; i++) {
+                loops[i] = new SelectorLoop("SelectorLoop-" + i);
+                loops[i].start();
+            }
+        }
+        return loops[next++ % loops.length];
+    }
+
+
+    /**
+     * Runs a task in the loop, as soon as possible.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+
+    /**
+     * Runs a task in the loop every {@link #PERIOD}.
+     */
+    void every(Runnable task) {
+        execute(() -> periodic.add(task));
+    }
+
+
+    public void run() {
+        long last = System.currentTimeMillis();
+        while (true) {
+            try {
+                selector.select(PERIOD);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                run(task);
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid())
+                    continue;
+                try {
+                    ((Handler) key.attachment()).ready(key);
+                } catch (RuntimeException e) {
+                    // Only the channel at fault stops being serviced
+                    e.printStackTrace();
+                    key.cancel();
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - last >= PERIOD) {
+                last = now;
+                for (Runnable t : periodic)
+                    run(t);
+            }
+        }
+    }
+
+
+    /**
+     * Runs a task, so that its failure does not stop the loop.
+     */
+    private static void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
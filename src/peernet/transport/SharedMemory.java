@@ -0,0 +1,435 @@
+package peernet.transport;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+
+/**
+ * Rings of shared memory between the processes of a host, for
+ * {@link TransportShm}. Each process sends to each other process through a
+ * ring of its own, a memory-mapped file named
+ * <code>&lt;receiver&gt;-&lt;sender&gt;.ring</code> after the process ids,
+ * so that every ring has a single producer and a single consumer. The
+ * process listening at a port is found in the file <code>ports/&lt;port&gt;</code>.
+ * <p>
+ * A ring starts with the position of its producer (head) and of its consumer
+ * (tail), on separate cache lines, followed by the records. Each side only
+ * writes its own position, with release semantics, and reads the other with
+ * acquire semantics, so records are passed without locks nor system calls.
+ * A record is its length, followed by the destination port, the source
+ * address, and the packet as encoded by {@link Codecs}. Records are aligned
+ * on 8 bytes, and do not wrap: a {@link #PADDING} length skips to the start
+ * of the ring.
+ * <p>
+ * A single thread per process polls the rings to it, spinning for a while
+ * when they run dry, then parking.
+ */
+final class SharedMemory extends Thread {
+    /** The size of the header of a ring */
+    private static final int HEADER = 128;
+
+    /** The offsets of the positions, in the header */
+    private static final int HEAD = 0;
+    private static final int TAIL = 64;
+
+    /** The length of a record that skips to the start of the ring */
+    private static final int PADDING = -1;
+
+    /**
+     * Polls without finding records before yielding, then before parking.
+     * Spinning on a single processor would only delay the other processes.
+     */
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 10000 : 0;
+    private static final int YIELDS = SPINS + 100;
+
+    /** How long to park when idle, in ns */
+    private static final long PARK = 50000;
+
+    /**
+     * How often to look for new rings and dead processes, and to look up
+     * again ports not found, in ms
+     */
+    private static final long PERIOD = 100;
+
+    /** Atomic access to the positions */
+    private static final VarHandle POSITION = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private static SharedMemory instance = null;
+
+    private final Path dir;
+    private final Path ports;
+    private final int size;
+
+    /** The id of this process */
+    private final long self = ProcessHandle.current().pid();
+
+    /** The handlers of the ports of this process */
+    private final Map<Integer, Consumer<Packet>> handlers = new ConcurrentHashMap<>();
+
+    /** The process of each destination, as far as known */
+    private final Map<AddressNet, Route> routes = new ConcurrentHashMap<>();
+
+    /** The rings to the other processes */
+    private final Map<Long, Ring> outbound = new ConcurrentHashMap<>();
+
+    /** The rings from the other processes, only accessed by the thread */
+    private final List<Ring> inbound = new ArrayList<>();
+    private final Set<Path> mapped = new HashSet<>();
+
+
+    private SharedMemory(Path dir, int size) throws IOException {
+        super("SharedMemory");
+        this.dir = dir;
+        this.ports = dir.resolve("ports");
+        this.size = size;
+        Files.createDirectories(ports);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::cleanup));
+    }
+
+
+    /**
+     * Returns the rings of this process, started by the first call with
+     * rings of <code>size</code> bytes in <code>dir</code>.
+     */
+    static synchronized SharedMemory get(Path dir, int size) throws IOException {
+        if (instance == null) {
+            instance = new SharedMemory(dir, size);
+            instance.start();
+        }
+        return instance;
+    }
+
+
+    /**
+     * Makes a port of this process reachable by the other processes.
+     */
+    void register(int port, Consumer<Packet> handler) throws IOException {
+        handlers.put(port, handler);
+        Path tmp = ports.resolve(port + "." + self + ".tmp");
+        Files.write(tmp, ByteBuffer.allocate(8).putLong(self).array());
+        Files.move(tmp, ports.resolve(Integer.toString(port)), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+
+    /**
+     * Sends a packet through the ring to the process of its destination.
+     *
+     * @return true if sent, false if the destination is not a process of
+     *         this host, or its ring is full
+     */
+    boolean send(AddressNet src, AddressNet dest, int pid, Object payload) {
+        Ring ring = ring(dest);
+        if (ring == null)
+            return false;
+        ByteBuffer record = Codecs.acquire();
+        try {
+            record.putShort((short) dest.port);
+            Codecs.putAddress(record, src);
+            Codecs.encode(pid, payload, record);
+            record.flip();
+            return ring.offer(record);
+        } catch (IOException | BufferOverflowException e) {
+            return false; // let the network path decide
+        } finally {
+            Codecs.release(record);
+        }
+    }
+
+
+    /**
+     * Returns the ring to the process of a destination, or null if none.
+     */
+    private Ring ring(AddressNet dest) {
+        Route route = routes.get(dest);
+        long now = System.currentTimeMillis();
+        if (route == null || (route.process == 0 && now - route.checked >= PERIOD)) {
+            route = new Route(lookup(dest), now);
+            routes.put(dest, route);
+        }
+        if (route.process == 0)
+            return null;
+        return outbound.computeIfAbsent(route.process, this::open);
+    }
+
+
+    /**
+     * Returns the process listening at an address, or 0 if none on this host.
+     */
+    private long lookup(AddressNet dest) {
+        if (!Loopback.isLocal(dest.ip))
+            return 0;
+        long process;
+        try {
+            process = ByteBuffer.wrap(Files.readAllBytes(ports.resolve(Integer.toString(dest.port)))).getLong();
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException | RuntimeException e) {
+            return 0; // being replaced, try again later
+        }
+        return isAlive(process) ? process : 0;
+    }
+
+
+    private boolean isAlive(long process) {
+        return process == self || ProcessHandle.of(process).map(ProcessHandle::isAlive).orElse(false);
+    }
+
+
+    /**
+     * Maps the ring to a process, creating it if needed. The file is only
+     * renamed once full-sized, so the consumer never maps it partially.
+     */
+    private Ring open(long process) {
+        try {
+            Path path = dir.resolve(process + "-" + self + ".ring");
+            if (!Files.exists(path)) {
+                Path tmp = dir.resolve(process + "-" + self + ".tmp");
+                try (RandomAccessFile file = new RandomAccessFile(tmp.toFile(), "rw")) {
+                    file.setLength(HEADER + size);
+                }
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return new Ring(path, process, true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null; // computeIfAbsent tries again next time
+        }
+    }
+
+
+    public void run() {
+        long last = 0;
+        int idle = 0;
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (now - last >= PERIOD) {
+                last = now;
+                scan();
+            }
+            int polled = 0;
+            for (Ring ring : inbound)
+                polled += ring.poll();
+            if (polled > 0)
+                idle = 0;
+            else if (++idle < SPINS)
+                Thread.onSpinWait();
+            else if (idle < YIELDS)
+                Thread.yield();
+            else
+                LockSupport.parkNanos(PARK);
+        }
+    }
+
+
+    /**
+     * Maps the new rings to this process, and forgets the rings of the
+     * processes that have exited, once drained.
+     */
+    private void scan() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, self + "-*.ring")) {
+            for (Path path : files) {
+                if (mapped.add(path)) {
+                    String name = path.getFileName().toString();
+                    long process = Long.parseLong(name.substring(name.indexOf('-') + 1, name.length() - 5));
+                    inbound.add(new Ring(path, process, false));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+
+        for (Iterator<Ring> i = inbound.iterator(); i.hasNext();) {
+            Ring ring = i.next();
+            if (!isAlive(ring.process) && ring.poll() == 0) {
+                i.remove();
+                mapped.remove(ring.path);
+                delete(ring.path);
+            }
+        }
+        for (Ring ring : outbound.values()) {
+            if (!isAlive(ring.process)) {
+                outbound.remove(ring.process);
+                routes.values().removeIf(route -> route.process == ring.process);
+            }
+        }
+    }
+
+
+    /**
+     * Removes the ports of this process, and the rings to it.
+     */
+    private void cleanup() {
+        for (int port : handlers.keySet()) {
+            Path path = ports.resolve(Integer.toString(port));
+            try {
+                if (ByteBuffer.wrap(Files.readAllBytes(path)).getLong() == self)
+                    delete(path);
+            } catch (IOException | RuntimeException e) {
+                // already taken over, or removed
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, self + "-*.ring")) {
+            for (Path path : files)
+                delete(path);
+        } catch (IOException e) {
+            // nothing more to do
+        }
+    }
+
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // nothing more to do
+        }
+    }
+
+
+    /**
+     * The process listening at an address, or 0 if none, as of a time.
+     */
+    private static final class Route {
+        final long process;
+        final long checked;
+
+
+        Route(long process, long checked) {
+            this.process = process;
+            this.checked = checked;
+        }
+    }
+
+
+    /**
+     * One end of a ring: the producer, used under its lock by the sending
+     * threads, or the consumer, used by the polling thread.
+     */
+    private final class Ring {
+        final Path path;
+
+        /** The process at the other end */
+        final long process;
+
+        private final MappedByteBuffer buffer;
+
+        /** For relative access to the records */
+        private final ByteBuffer records;
+
+        private final int capacity;
+
+        /** The head for the producer, the tail for the consumer */
+        private long position;
+
+
+        Ring(Path path, long process, boolean producer) throws IOException {
+            this.path = path;
+            this.process = process;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            }
+            capacity = buffer.capacity() - HEADER;
+            if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+                throw new IOException("Not a ring: " + path);
+            records = buffer.duplicate();
+            // Carries on where a previous process with the same id left off
+            position = (long) POSITION.getAcquire(buffer, producer ? HEAD : TAIL);
+        }
+
+
+        /**
+         * Appends a record, from the position to the limit of
+         * <code>data</code>.
+         *
+         * @return false if the ring is full
+         */
+        synchronized boolean offer(ByteBuffer data) {
+            int length = data.remaining();
+            int needed = align(4 + length);
+            long free = capacity - (position - (long) POSITION.getAcquire(buffer, TAIL));
+            int offset = (int) (position & (capacity - 1));
+            int padding = offset + needed > capacity ? capacity - offset : 0;
+            if (padding + needed > free)
+                return false;
+            if (padding > 0) {
+                buffer.putInt(HEADER + offset, PADDING);
+                offset = 0;
+            }
+            buffer.putInt(HEADER + offset, length);
+            records.clear();
+            records.position(HEADER + offset + 4);
+            records.put(data);
+            position += padding + needed;
+            POSITION.setRelease(buffer, HEAD, position);
+            return true;
+        }
+
+
+        /**
+         * Delivers the records available, then frees their space.
+         *
+         * @return the number of records delivered
+         */
+        int poll() {
+            long head = (long) POSITION.getAcquire(buffer, HEAD);
+            if (head == position)
+                return 0;
+            int count = 0;
+            while (position < head) {
+                int offset = (int) (position & (capacity - 1));
+                int length = buffer.getInt(HEADER + offset);
+                if (length == PADDING) {
+                    position += capacity - offset;
+                    continue;
+                }
+                records.clear();
+                records.position(HEADER + offset + 4);
+                records.limit(HEADER + offset + 4 + length);
+                deliver(records);
+                position += align(4 + length);
+                count++;
+            }
+            POSITION.setRelease(buffer, TAIL, position);
+            return count;
+        }
+
+
+        private void deliver(ByteBuffer record) {
+            try {
+                Consumer<Packet> handler = handlers.get(record.getShort() & 0xffff);
+                AddressNet src = Codecs.getAddress(record);
+                if (handler != null)
+                    handler.accept(Codecs.decode(src, record));
+            } catch (ClassNotFoundException | IOException | RuntimeException e) {
+                e.printStackTrace(); // corrupt record, drop it
+            }
+        }
+    }
+
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+}
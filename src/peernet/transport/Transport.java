@@ -9,6 +9,7 @@ import java.util.Properties;
 import peernet.config.Configuration;
 import peernet.core.Engine;
 import peernet.core.Node;
+import peernet.core.SimulationContext;
 import peernet.core.EngineAgent;
 
 
@@ -35,7 +36,6 @@ public abstract class Transport extends EngineAgent implements Cloneable {
     private static final String defaultTransportSim = "peernet.transport.UniformRandomTransport";
     private static final String defaultTransportEmu = "peernet.transport.UniformRandomTransport";
     private static final String defaultTransportNet = "peernet.transport.TransportUDP";
-    private static Transport defaultTransportInstance = null;
 
 
     public static Properties setDefaultTransports() {
@@ -60,6 +60,17 @@ public abstract class Transport extends EngineAgent implements Cloneable {
     public abstract void send(Node src, Address dest, int pid, Object payload);
 
 
+    /**
+     * Returns a lower bound on the delay of any message sent through this
+     * transport. Parallel engines use it as lookahead, i.e., the time window in
+     * which nodes can be simulated independently. Defaults to 0, meaning no
+     * lookahead at all.
+     */
+    public long minDelay() {
+        return 0;
+    }
+
+
     public Object clone() {
         Transport transport = null;
         try {
@@ -72,10 +83,10 @@ public abstract class Transport extends EngineAgent implements Cloneable {
 
 
     public static Transport defaultTransportInstance() {
-        if (defaultTransportInstance == null) {
+        return SimulationContext.attachment(Transport.class, () -> {
             String key = Engine.getType().toString().toLowerCase() + "." + PAR_TRANSPORT;
             if (Configuration.contains(key))
-                defaultTransportInstance = (Transport) Configuration.getInstance(key);
+                return (Transport) Configuration.getInstance(key);
             else // no default transport defined ==> use the absolutely default one
                 switch (Engine.getType()) {
                     case SIM:
@@ -84,9 +95,8 @@ public abstract class Transport extends EngineAgent implements Cloneable {
                     case NET:
                         //defaultTransportInstance = (Transport) Configuration.getInstance(defaultTransportNet);
                     default:
-                        break;
+                        return null;
                 }
-        }
-        return defaultTransportInstance;
+        });
     }
 }
@@ -5,6 +5,7 @@ package peernet.transport;
 
 import peernet.config.Configuration;
 import peernet.core.Engine;
+import peernet.core.Network;
 import peernet.core.Node;
 import peernet.core.Engine.AddressType;
 
@@ -40,6 +41,29 @@ public class TransportEmu extends Transport {
     }
 
 
+    /**
+     * Twice the {@value #PAR_LOCAL} delay, plus the minimum latency between
+     * distinct routers if the nodes all have distinct routers, i.e., distinct
+     * IDs modulo the number of routers (as {@link Node#hashCode()} is the ID).
+     * Otherwise two nodes may share a router, and only the local delay is
+     * guaranteed.
+     */
+    @Override
+    public long minDelay() {
+        int routers = RouterNetwork.getSize();
+        if (Network.size() > routers)
+            return local * 2;
+        boolean[] taken = new boolean[routers];
+        for (int i = 0; i < Network.size(); i++) {
+            int router = (int) Network.get(i).getID() % routers;
+            if (taken[router])
+                return local * 2;
+            taken[router] = true;
+        }
+        return local * 2 + RouterNetwork.getMinLatency();
+    }
+
+
     @Override
     public Object clone() {
         return this; // In SIM or EMU modes, all nodes use a single transport instance
@@ -3,10 +3,65 @@
  */
 package peernet.transport;
 
+import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
 
+import peernet.config.Configuration;
 
+
+/**
+ * Transport of the NET mode, over real sockets.
+ * <p>
+ * Several nodes often run in the same JVM. If {@value #PAR_LOOPBACK} is set,
+ * packets to the nodes of the JVM skip the sockets: the payload is passed
+ * directly to the destination, which receives it as it would from the
+ * network. Protocols must then not modify messages once sent, unless
+ * {@value #PAR_LOOPBACK_COPY} is also set, in which case the destination
+ * receives a copy, made by encoding and decoding the payload as for the
+ * network.
+ */
 public abstract class TransportNet extends Transport {
+    /**
+     * Delivers packets to the nodes of the same JVM directly. Disabled by
+     * default.
+     *
+     * @config
+     */
+    private static final String PAR_LOOPBACK = "loopback";
+
+    /**
+     * Copies the packets delivered directly, if {@value #PAR_LOOPBACK} is
+     * set. Disabled by default.
+     *
+     * @config
+     */
+    private static final String PAR_LOOPBACK_COPY = "loopback.copy";
+
+    private final boolean loopback;
+    private final boolean loopbackCopy;
+
+
+    /**
+     * Creates a transport without the in-JVM fast path.
+     */
+    protected TransportNet() {
+        loopback = false;
+        loopbackCopy = false;
+    }
+
+
+    /**
+     * Creates a transport, reading {@value #PAR_LOOPBACK} and
+     * {@value #PAR_LOOPBACK_COPY}.
+     */
+    protected TransportNet(String prefix) {
+        loopback = Configuration.contains(prefix + "." + PAR_LOOPBACK);
+        loopbackCopy = Configuration.contains(prefix + "." + PAR_LOOPBACK_COPY);
+    }
+
     /**
      * Returns the IP address where this Transport is listening to.
      */
@@ -26,4 +81,76 @@ public abstract class TransportNet extends Transport {
      * @return The Packet received through the network.
      */
     public abstract Packet receive();
+
+
+    /**
+     * Starts receiving the packets of this transport, and passing them to
+     * <code>handler</code>, for the rest of the experiment. By default, a
+     * thread created by <code>threads</code> loops on {@link #receive()}.
+     * Transports that multiplex many sockets on a few threads of their own
+     * override this, and may call the handler from any thread.
+     */
+    public void listen(Consumer<Packet> handler, ThreadFactory threads) {
+        listenLocally(handler);
+        threads.newThread(() -> {
+            while (true)
+                handler.accept(receive());
+        }).start();
+    }
+
+
+    /**
+     * Returns true for stream transports, whose ports are distinct from
+     * those of datagram transports.
+     */
+    protected boolean isStream() {
+        return false;
+    }
+
+
+    /**
+     * Makes the transport reachable by the nodes of the JVM directly, if
+     * {@value #PAR_LOOPBACK} is set. To be called by all implementations of
+     * {@link #listen(Consumer, ThreadFactory)}.
+     */
+    protected final void listenLocally(Consumer<Packet> handler) {
+        if (loopback)
+            Loopback.register(isStream(), getPort(), handler);
+    }
+
+
+    /**
+     * Delivers a packet directly, if {@value #PAR_LOOPBACK} is set and its
+     * destination is a node of the JVM. To be called first by implementations
+     * of {@link #send}.
+     *
+     * @return true if the packet has been delivered, false if it should be
+     *         sent through the network
+     */
+    protected final boolean sendLocally(Address dest, int pid, Object payload) {
+        if (!loopback)
+            return false;
+        AddressNet to = (AddressNet) dest;
+        Consumer<Packet> handler = Loopback.handler(isStream(), to);
+        if (handler == null)
+            return false;
+
+        // Seen from the destination, the packet comes from the same host
+        AddressNet src = new AddressNet(to.ip, getPort());
+        if (!loopbackCopy) {
+            handler.accept(new Packet(src, pid, payload));
+            return true;
+        }
+        ByteBuffer data = null;
+        try {
+            data = Codecs.encode(pid, payload);
+            handler.accept(Codecs.decode(src, data));
+            return true;
+        } catch (IOException | ClassNotFoundException e) {
+            return false; // e.g., too large to copy, let the network path decide
+        } finally {
+            if (data != null)
+                Codecs.release(data);
+        }
+    }
 }
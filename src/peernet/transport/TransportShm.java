@@ -0,0 +1,102 @@
+package peernet.transport;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+
+import peernet.config.Configuration;
+import peernet.config.IllegalParameterException;
+import peernet.core.Node;
+
+
+/**
+ * Transport between the simulator processes of a host through shared
+ * memory, for emulations split over several JVMs. Packets to a node of
+ * another process of the host are written to a ring in a memory-mapped file,
+ * which that process polls, so they are passed without system calls (see
+ * {@link SharedMemory}). They are encoded by {@link Codecs}, as for the
+ * network.
+ * <p>
+ * Nodes are addressed as with {@link TransportUDPNIO}, which this transport
+ * falls back to for the other hosts, for the processes not listening yet,
+ * and when a ring is full. All the processes must use the same
+ * {@value #PAR_DIR}.
+ */
+public class TransportShm extends TransportUDPNIO {
+    /**
+     * The directory of the rings, preferably on a memory file system.
+     * Defaults to <code>/dev/shm/peernet</code> if available, or else to
+     * <code>peernet-shm</code> in the temporary directory.
+     *
+     * @config
+     */
+    private static final String PAR_DIR = "dir";
+
+    /**
+     * The size of each ring, in bytes. Must be a power of two, of at least
+     * twice {@link Codecs#BUFFER_SIZE}. Defaults to 1 MB.
+     *
+     * @config
+     */
+    private static final String PAR_RING = "ring";
+
+    private final Path dir;
+    private final int ringSize;
+
+    /** The rings of the process, once listening */
+    private SharedMemory rings = null;
+
+
+    public TransportShm(String prefix) {
+        super(prefix);
+        Path shm = Paths.get("/dev/shm");
+        String defaultDir = Files.isDirectory(shm) ? shm.resolve("peernet").toString()
+                : Paths.get(System.getProperty("java.io.tmpdir"), "peernet-shm").toString();
+        dir = Paths.get(Configuration.getString(prefix + "." + PAR_DIR, defaultDir));
+        ringSize = Configuration.getInt(prefix + "." + PAR_RING, 1 << 20);
+        if (ringSize < 2 * Codecs.BUFFER_SIZE || Integer.bitCount(ringSize) != 1)
+            throw new IllegalParameterException(prefix + "." + PAR_RING, "The ring size should be a power of two, of at least " + 2 * Codecs.BUFFER_SIZE);
+    }
+
+
+    @Override
+    public void send(Node src, Address dest, int pid, Object payload) {
+        if (sendLocally(dest, pid, payload))
+            return;
+        AddressNet to = (AddressNet) dest;
+        // Seen from the destination, the packet comes from the same host
+        if (rings != null && rings.send(new AddressNet(to.ip, getPort()), to, pid, payload))
+            return;
+        super.send(src, dest, pid, payload);
+    }
+
+
+    /**
+     * Not supported, as packets arrive both from the socket and from the
+     * rings.
+     */
+    @Override
+    public Packet receive() {
+        throw new IllegalStateException("Packets are delivered to the handler given to listen()");
+    }
+
+
+    /**
+     * Registers the port of the node with the rings of the process, as well
+     * as its socket with the I/O threads.
+     */
+    @Override
+    public void listen(Consumer<Packet> handler, ThreadFactory threads) {
+        super.listen(handler, threads);
+        try {
+            rings = SharedMemory.get(dir, ringSize);
+            rings.register(getPort(), handler);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,623 @@
+package peernet.transport;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import peernet.config.Configuration;
+import peernet.config.IllegalParameterException;
+import peernet.core.Node;
+
+
+/**
+ * TCP transport, for protocols whose messages may not fit in a datagram, such
+ * as state transfers or large views. Each node listens on a server socket of
+ * its own, and keeps a cache of connections to the nodes it sends to, closed
+ * once idle for {@value #PAR_IDLE} milliseconds. Packets are encoded by
+ * {@link Codecs}, and framed by their length, up to {@value #PAR_MAXFRAME}
+ * bytes.
+ * <p>
+ * All sockets are non-blocking, and serviced by the I/O threads shared by the
+ * NIO transports of the JVM (see {@link TransportUDPNIO}). Sending a message
+ * only queues it on its connection; the I/O thread then writes all the
+ * messages queued by then at once, with a single gathering write.
+ * <p>
+ * Like any transport, it may be set for some protocols only, with
+ * <code>protocol.</code><em>name</em><code>.transport</code>.
+ */
+public class TransportTCP extends TransportNet {
+    /**
+     * The port to listen to.
+     *
+     * @config
+     */
+    private static final String PAR_PORT = "port";
+
+    /**
+     * The number of I/O threads, shared by all the nodes of the JVM, and by
+     * the other NIO transports. Defaults to the number of available
+     * processors.
+     *
+     * @config
+     */
+    private static final String PAR_THREADS = "threads";
+
+    /**
+     * The time after which an unused connection is closed, in milliseconds.
+     * Defaults to 60000.
+     *
+     * @config
+     */
+    private static final String PAR_IDLE = "idle";
+
+    /**
+     * The largest message, in bytes. Larger messages are dropped, with a
+     * warning. Defaults to 16 MB.
+     *
+     * @config
+     */
+    private static final String PAR_MAXFRAME = "maxframe";
+
+    /** The most messages written at once on a connection */
+    private static final int BATCH = 64;
+
+    /**
+     * The next available port to try to bind to, if {@value #PAR_PORT} is
+     * defined.
+     */
+    private static int nextPort = -1;
+    private static int initPort = -1;
+    private static final Object portLock = new Object();
+
+    private final int threads;
+    private final long idle;
+    private final int maxFrame;
+
+    /** The server socket of the node, or null for the prototype */
+    private ServerSocketChannel server = null;
+
+    /** The connections to the nodes this node sends to */
+    private Map<AddressNet, Connection> connections = null;
+
+    /** The I/O thread of the sockets of the node, chosen on first use */
+    private SelectorLoop loop = null;
+
+    /** Receives the packets, once listening */
+    private Consumer<Packet> handler = null;
+
+    /** The packets returned by {@link #receive()}, if used */
+    private BlockingQueue<Packet> inbox = null;
+
+    /** The key of the server socket, if accepting is paused */
+    private SelectionKey paused = null;
+
+
+    public TransportTCP(String prefix) {
+        super(prefix);
+        synchronized (portLock) {
+            initPort = Configuration.getInt(prefix + "." + PAR_PORT, -1);
+            if (initPort != -1)
+                nextPort = initPort;
+        }
+        threads = Configuration.getInt(prefix + "." + PAR_THREADS, Runtime.getRuntime().availableProcessors());
+        if (threads < 1)
+            throw new IllegalParameterException(prefix + "." + PAR_THREADS, "There should be at least one I/O thread");
+        idle = Configuration.getLong(prefix + "." + PAR_IDLE, 60000);
+        maxFrame = Configuration.getInt(prefix + "." + PAR_MAXFRAME, 1 << 24);
+        if (maxFrame < Codecs.BUFFER_SIZE)
+            throw new IllegalParameterException(prefix + "." + PAR_MAXFRAME, "Should be at least " + Codecs.BUFFER_SIZE);
+    }
+
+
+    public void send(Node src, Address dest, int pid, Object payload) {
+        if (sendLocally(dest, pid, payload))
+            return;
+        ByteBuffer frame;
+        try {
+            frame = encodeFrame(pid, payload);
+        } catch (IOException e) {
+            System.err.println("TransportTCP: dropping message to " + dest + ": " + e.getMessage());
+            return;
+        }
+        sendFrame((AddressNet) dest, frame);
+    }
+
+
+    /**
+     * Queues an encoded frame on the connection to <code>to</code>, opening it
+     * if needed.
+     */
+    private void sendFrame(AddressNet to, ByteBuffer frame) {
+        while (true) {
+            Connection connection;
+            try {
+                connection = connections.computeIfAbsent(to, this::connect);
+            } catch (UncheckedIOException e) {
+                return; // No problem failing to send, as for a lost packet
+            }
+            connection.queue.add(frame);
+            if (!connection.closed.get()) {
+                connection.lastUsed = System.currentTimeMillis();
+                connection.schedule();
+                return;
+            }
+            // Closed in the meantime: try again on a new connection, unless
+            // the message was already taken along with the connection, which
+            // then drops it or sends it again
+            if (!connection.queue.remove(frame))
+                return;
+            connections.remove(to, connection);
+        }
+    }
+
+
+    /**
+     * Encodes a packet, prefixed by its length, growing the buffer as needed.
+     * The buffer is returned flipped.
+     */
+    private ByteBuffer encodeFrame(int pid, Object payload) throws IOException {
+        ByteBuffer buffer = Codecs.acquire();
+        while (true) {
+            try {
+                buffer.putInt(0);
+                Codecs.encode(pid, payload, buffer);
+                buffer.putInt(0, buffer.position() - 4);
+                buffer.flip();
+                return buffer;
+            } catch (BufferOverflowException e) {
+                if (buffer.capacity() >= maxFrame + 4)
+                    throw new IOException("Message larger than " + maxFrame + " bytes");
+                Codecs.release(buffer);
+                buffer = ByteBuffer.allocate((int) Math.min(2L * buffer.capacity(), maxFrame + 4));
+            }
+        }
+    }
+
+
+    /**
+     * Opens a connection, which is registered with the I/O thread.
+     */
+    private Connection connect(AddressNet to) {
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            boolean connected = channel.connect(new InetSocketAddress(to.ip, to.port));
+            Connection connection = new Connection(to, channel, loop());
+            connection.loop.execute(() -> connection.register(connected));
+            return connection;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    /**
+     * Blocks until the next packet is received. Only possible if the
+     * transport is not listening through
+     * {@link #listen(Consumer, ThreadFactory)}.
+     */
+    @Override
+    public Packet receive() {
+        synchronized (this) {
+            if (inbox == null) {
+                if (handler != null)
+                    throw new IllegalStateException("Packets are delivered by the I/O threads");
+                inbox = new LinkedBlockingQueue<>();
+                start(inbox::add);
+            }
+        }
+        while (true) {
+            try {
+                return inbox.take();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    /**
+     * Registers the server socket with one of the I/O threads, which then pass
+     * the packets received to <code>handler</code>. No thread is created
+     * through <code>threads</code>.
+     */
+    @Override
+    public void listen(Consumer<Packet> handler, ThreadFactory threads) {
+        synchronized (this) {
+            if (this.handler != null)
+                throw new IllegalStateException("Already listening");
+            start(handler);
+        }
+    }
+
+
+    private void start(Consumer<Packet> handler) {
+        this.handler = handler;
+        listenLocally(handler);
+        SelectorLoop loop = loop();
+        loop.execute(() -> {
+            try {
+                server.configureBlocking(false);
+                server.register(loop.selector, SelectionKey.OP_ACCEPT, (SelectorLoop.Handler) this::accept);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        });
+    }
+
+
+    /**
+     * Returns the I/O thread of the sockets of this node, choosing it on
+     * first use.
+     */
+    private synchronized SelectorLoop loop() {
+        if (loop == null) {
+            loop = SelectorLoop.next(threads);
+            loop.every(this::periodic);
+        }
+        return loop;
+    }
+
+
+    /**
+     * Accepts the pending incoming connections.
+     */
+    private void accept(SelectionKey key) {
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.register(loop.selector, SelectionKey.OP_READ, new Inbound(channel));
+            }
+        } catch (IOException e) {
+            // Most likely out of file descriptors: the connection is still
+            // pending, so stop accepting until the next period
+            System.err.println("TransportTCP: cannot accept connections on port " + getPort() + ": " + e.getMessage());
+            key.interestOps(0);
+            paused = key;
+        }
+    }
+
+
+    /**
+     * Closes the connections that have not been used for {@value #PAR_IDLE}
+     * milliseconds, and resumes accepting connections if paused.
+     */
+    private void periodic() {
+        if (paused != null) {
+            if (paused.isValid())
+                paused.interestOps(SelectionKey.OP_ACCEPT);
+            paused = null;
+        }
+        long now = System.currentTimeMillis();
+        for (Connection connection : connections.values())
+            connection.closeIfIdle(now);
+    }
+
+
+    @Override
+    protected boolean isStream() {
+        return true;
+    }
+
+
+    public InetAddress getAddress() {
+        if (server != null)
+            return server.socket().getInetAddress();
+        else
+            return null;
+    }
+
+
+    public int getPort() {
+        if (server != null)
+            return server.socket().getLocalPort();
+        else
+            return -1;
+    }
+
+
+    private static ServerSocketChannel bindNextLocalPort() {
+        synchronized (portLock) {
+            while (true) {
+                ServerSocketChannel channel;
+                try {
+                    channel = ServerSocketChannel.open();
+                } catch (IOException e) {
+                    return null;
+                }
+                try {
+                    channel.bind(initPort < 0 ? null : new InetSocketAddress(nextPort));
+                } catch (IOException e) {
+                    try {
+                        channel.close();
+                    } catch (IOException e1) {
+                        // nothing more to do
+                    }
+                    if (initPort < 0 || advancePort() == initPort)
+                        return null;
+                    continue;
+                }
+                if (initPort >= 0)
+                    advancePort();
+                return channel;
+            }
+        }
+    }
+
+
+    private static int advancePort() {
+        nextPort++;
+        if (nextPort == 65536)
+            nextPort = 1024;
+        return nextPort;
+    }
+
+
+    @Override
+    public Object clone() {
+        TransportTCP trans = (TransportTCP) super.clone();
+        trans.server = bindNextLocalPort();
+        trans.connections = new ConcurrentHashMap<>();
+        trans.loop = null;
+        trans.handler = null;
+        trans.inbox = null;
+        trans.paused = null;
+        return trans;
+    }
+
+
+    /**
+     * Outgoing connection to another node. Messages are queued by the sending
+     * threads, and written by the I/O thread, which is the only one to touch
+     * the channel.
+     */
+    private class Connection implements SelectorLoop.Handler {
+        final AddressNet to;
+        final SocketChannel channel;
+        final SelectorLoop loop;
+
+        /** Frames waiting to be written, the first one maybe in part */
+        final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+
+        /** Set while a flush is pending in the I/O thread */
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        final AtomicBoolean closed = new AtomicBoolean(false);
+        volatile long lastUsed = System.currentTimeMillis();
+
+        private SelectionKey key = null;
+        private boolean connected = false;
+        private final ByteBuffer[] batch = new ByteBuffer[BATCH];
+
+
+        Connection(AddressNet to, SocketChannel channel, SelectorLoop loop) {
+            this.to = to;
+            this.channel = channel;
+            this.loop = loop;
+            // The receiver learns the address of the sender from its port
+            ByteBuffer hello = ByteBuffer.allocate(4).putInt(getPort());
+            hello.flip();
+            queue.add(hello);
+        }
+
+
+        /**
+         * Asks the I/O thread to write the queued messages.
+         */
+        void schedule() {
+            if (scheduled.compareAndSet(false, true))
+                loop.execute(this::flush);
+        }
+
+
+        void register(boolean connected) {
+            try {
+                this.connected = connected;
+                key = channel.register(loop.selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+                if (connected)
+                    flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+
+        public void ready(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    channel.finishConnect();
+                    connected = true;
+                    key.interestOps(SelectionKey.OP_READ);
+                    flush();
+                    return;
+                }
+                if (key.isReadable()) {
+                    // Nothing is sent back, but the peer may close
+                    ByteBuffer buffer = loop.buffer;
+                    buffer.clear();
+                    if (channel.read(buffer) < 0) {
+                        close();
+                        return;
+                    }
+                }
+                if (key.isValid() && key.isWritable())
+                    flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+
+        /**
+         * Writes as many queued messages as the socket accepts, and waits for
+         * it to become writable again if needed.
+         */
+        void flush() {
+            scheduled.set(false);
+            if (!connected || closed.get())
+                return;
+            try {
+                while (true) {
+                    int n = 0;
+                    for (Iterator<ByteBuffer> it = queue.iterator(); it.hasNext() && n < BATCH;)
+                        batch[n++] = it.next();
+                    if (n == 0)
+                        break;
+                    channel.write(batch, 0, n);
+                    boolean full = batch[n - 1].hasRemaining();
+                    for (int i = 0; i < n && !batch[i].hasRemaining(); i++)
+                        Codecs.release(queue.poll());
+                    Arrays.fill(batch, 0, n, null);
+                    if (full) {
+                        // wait for the socket buffer to drain
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+
+        /**
+         * Closes the connection if it has not been used for {@value #PAR_IDLE}
+         * milliseconds, and has nothing left to write. It is marked closed
+         * before its queue is checked again, so the messages of the senders
+         * that did not see it closed are found there, and sent again on a new
+         * connection.
+         */
+        void closeIfIdle(long now) {
+            if (now - lastUsed <= idle || !queue.isEmpty() || !closed.compareAndSet(false, true))
+                return;
+            disconnect();
+            ByteBuffer frame;
+            while ((frame = queue.poll()) != null)
+                sendFrame(to, frame);
+        }
+
+
+        /**
+         * Closes the connection, dropping the messages still queued.
+         */
+        void close() {
+            if (!closed.compareAndSet(false, true))
+                return;
+            disconnect();
+            ByteBuffer frame;
+            while ((frame = queue.poll()) != null)
+                Codecs.release(frame);
+        }
+
+
+        private void disconnect() {
+            connections.remove(to, this);
+            if (key != null)
+                key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing more to do
+            }
+        }
+    }
+
+
+    /**
+     * Incoming connection from another node, whose frames are decoded as they
+     * are complete.
+     */
+    private class Inbound implements SelectorLoop.Handler {
+        private final SocketChannel channel;
+
+        private ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+        /** The address of the sender, once its port is known */
+        private AddressNet src = null;
+
+
+        Inbound(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+
+        public void ready(SelectionKey key) {
+            try {
+                if (channel.read(buffer) < 0) {
+                    close(key);
+                    return;
+                }
+                buffer.flip();
+                if (src == null) {
+                    if (buffer.remaining() < 4) {
+                        buffer.compact();
+                        return;
+                    }
+                    InetAddress ip = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+                    src = new AddressNet(ip, buffer.getInt());
+                }
+                while (buffer.remaining() >= 4) {
+                    int length = buffer.getInt(buffer.position());
+                    if (length < 0 || length > maxFrame) {
+                        close(key); // corrupt stream
+                        return;
+                    }
+                    if (buffer.remaining() < 4 + length) {
+                        if (buffer.capacity() < 4 + length) {
+                            ByteBuffer larger = ByteBuffer.allocate(Math.max(4 + length, 2 * buffer.capacity()));
+                            larger.put(buffer);
+                            buffer = larger;
+                            return; // already compacted
+                        }
+                        break;
+                    }
+                    buffer.position(buffer.position() + 4);
+                    ByteBuffer frame = buffer.slice();
+                    frame.limit(length);
+                    buffer.position(buffer.position() + length);
+                    try {
+                        handler.accept(Codecs.decode(src, frame));
+                    } catch (ClassNotFoundException | IOException e) {
+                        e.printStackTrace(); // corrupt message, drop it
+                    }
+                }
+                buffer.compact();
+            } catch (IOException e) {
+                close(key);
+            }
+        }
+
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing more to do
+            }
+        }
+    }
+}
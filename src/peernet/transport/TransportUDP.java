@@ -3,18 +3,17 @@
  */
 package peernet.transport;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
 import peernet.config.Configuration;
+import peernet.config.IllegalParameterException;
 import peernet.core.Node;
 
 
@@ -24,6 +23,27 @@ public class TransportUDP extends TransportNet {
      */
     private static final String PAR_PORT = "port";
 
+    /**
+     * If defined, packets sent to the same destination within
+     * {@value #PAR_LINGER} milliseconds are packed into datagrams of up to
+     * this many bytes, e.g., the MTU of the network. The receiver unpacks them
+     * into separate packets. Disabled by default.
+     *
+     * @config
+     */
+    static final String PAR_BATCH = "batch";
+
+    /**
+     * The longest a packet waits for others to share its datagram, in
+     * milliseconds, if {@value #PAR_BATCH} is defined. Defaults to 1.
+     *
+     * @config
+     */
+    static final String PAR_LINGER = "linger";
+
+    /** The largest UDP payload */
+    static final int MAX_DATAGRAM = 65507;
+
     /**
      * Stores the UDP socket used by this Transport. Note that each node
      * running on a single JVM uses its own exclusive socket.
@@ -32,6 +52,16 @@ public class TransportUDP extends TransportNet {
     private DatagramPacket dgram = null;
     private byte[] recvBuffer = null;
 
+    /** The datagram size and linger time of batches, or 0 if disabled */
+    private final int batchSize;
+    private final long linger;
+
+    /** Packs outgoing packets, if enabled */
+    private DatagramBatcher batcher = null;
+
+    /** Packets of a batched datagram not returned by {@link #receive()} yet */
+    private ArrayDeque<Packet> received = null;
+
     /**
      * The next available port to try to bind to. Define as object rather than
      * primitive int, so we can synchronize on it, which makes the point of
@@ -44,52 +74,93 @@ public class TransportUDP extends TransportNet {
      * Default constructor.
      */
     public TransportUDP(String prefix) {
+        super(prefix);
         initPort = Configuration.getInt(prefix + "." + PAR_PORT, -1);
         if (initPort != -1)
             nextPort = initPort;
 
-        recvBuffer = new byte[65536]; //TODO: parameterize
+        recvBuffer = new byte[Codecs.BUFFER_SIZE]; //TODO: parameterize
+        batchSize = batchSize(prefix);
+        linger = Configuration.getLong(prefix + "." + PAR_LINGER, 1);
+    }
+
+
+    /**
+     * Reads {@value #PAR_BATCH}, or returns 0 if not defined.
+     */
+    static int batchSize(String prefix) {
+        int size = Configuration.getInt(prefix + "." + PAR_BATCH, 0);
+        if (size != 0 && (size < 64 || size > MAX_DATAGRAM))
+            throw new IllegalParameterException(prefix + "." + PAR_BATCH, "Should be between 64 and " + MAX_DATAGRAM);
+        return size;
+    }
+
+
+    /**
+     * Encodes a packet to be sent in a datagram of its own. Packets that
+     * cannot be, e.g., larger than {@value #MAX_DATAGRAM} bytes, are reported
+     * and dropped.
+     *
+     * @return a buffer of the pool, see {@link Codecs#encode(int, Object)},
+     *         or null if dropped
+     */
+    static ByteBuffer encode(int pid, Object payload) {
+        try {
+            return Codecs.encode(pid, payload, MAX_DATAGRAM);
+        } catch (IOException e) {
+            System.err.println("Dropping packet of protocol " + pid + ": " + e.getMessage());
+            return null;
+        }
     }
 
 
     public void send(Node src, Address dest, int pid, Object payload) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos;
+        if (sendLocally(dest, pid, payload))
+            return;
+        ByteBuffer data = null;
         try {
-            oos = new ObjectOutputStream(baos);
-            oos.writeObject(pid);
-            oos.writeObject(payload);
-            DatagramPacket datagramPacket = new DatagramPacket(baos.toByteArray(),
-                    baos.size(), ((AddressNet) dest).ip, ((AddressNet) dest).port);
-            socket.send(datagramPacket);
+            if (batcher != null) {
+                batcher.send((AddressNet) dest, pid, payload);
+                return;
+            }
+            data = encode(pid, payload);
+            if (data != null)
+                send(data, (AddressNet) dest);
         } catch (IOException e) {
             // No problem failing to send a packet.
             // It is most likely due to full networks buffers.
+        } finally {
+            if (data != null)
+                Codecs.release(data);
         }
     }
 
 
+    private void send(ByteBuffer data, AddressNet dest) throws IOException {
+        DatagramPacket datagramPacket = new DatagramPacket(data.array(),
+                data.arrayOffset() + data.position(), data.remaining(), dest.ip, dest.port);
+        socket.send(datagramPacket);
+    }
+
+
     @Override
     public Packet receive() {
         try {
-            // First, wait for a packet to be received.
-            socket.receive(dgram);
-            ByteArrayInputStream bais = new ByteArrayInputStream(dgram.getData());
-            ObjectInputStream ois = new ObjectInputStream(bais);
-            AddressNet srcAddr = new AddressNet(dgram.getAddress(), dgram.getPort());
-            int pid = (Integer) ois.readObject();
-            Object event = ois.readObject();
-
-            assert srcAddr != null : "TransportUDP.receive().srcAddr is null!";
-            assert event != null : "TransportUDP.receive().event is null!";
-
-            Packet packet = new Packet(srcAddr, pid, event);
+            while (received.isEmpty()) {
+                // First, wait for a packet to be received.
+                socket.receive(dgram);
+                AddressNet srcAddr = new AddressNet(dgram.getAddress(), dgram.getPort());
+                try {
+                    Codecs.decodeDatagram(srcAddr, ByteBuffer.wrap(dgram.getData(), 0, dgram.getLength()), received::add);
+                } catch (ClassNotFoundException | IOException e) {
+                    e.printStackTrace(); // corrupt packet, drop the rest of it
+                }
+            }
+            Packet packet = received.poll();
 
             assert packet != null : "TransportUDP.receive().packet is null!";
 
             return packet;
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
         } catch (IOException e) {
             try {
                 System.out.println("myhost=" + InetAddress.getLocalHost().getHostName());
@@ -161,6 +232,9 @@ public class TransportUDP extends TransportNet {
         trans.socket = bindNextLocalPort();
         trans.recvBuffer = recvBuffer.clone();
         trans.dgram = new DatagramPacket(trans.recvBuffer, trans.recvBuffer.length);
+        trans.received = new ArrayDeque<>();
+        if (batchSize > 0)
+            trans.batcher = new DatagramBatcher(batchSize, linger, trans::send);
 
         return trans;
     }
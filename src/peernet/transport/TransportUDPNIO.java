@@ -0,0 +1,288 @@
+package peernet.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+
+import peernet.config.Configuration;
+import peernet.config.IllegalParameterException;
+import peernet.core.Node;
+
+
+/**
+ * UDP transport that multiplexes the sockets of all the nodes of the JVM on a
+ * small pool of I/O threads, rather than blocking a receiving thread per node
+ * as {@link TransportUDP} does. Each node still has a socket of its own, a
+ * non-blocking {@link DatagramChannel}, which is registered with the
+ * {@link Selector} of one of the I/O threads. These read the datagrams into
+ * direct buffers, decode them, and pass them straight to the heap of the
+ * node. Packets are encoded by {@link Codecs}, as by {@link TransportUDP},
+ * so nodes using either transport can talk to each other.
+ * <p>
+ * Running tens of thousands of nodes per host requires a limit on open files
+ * to match, as each node still holds a socket.
+ */
+public class TransportUDPNIO extends TransportNet {
+    /**
+     * The port to listen to.
+     *
+     * @config
+     */
+    private static final String PAR_PORT = "port";
+
+    /**
+     * The number of I/O threads, shared by all the nodes of the JVM, and by
+     * the other NIO transports. Defaults to the number of available
+     * processors.
+     *
+     * @config
+     */
+    private static final String PAR_THREADS = "threads";
+
+    /**
+     * Batches packets to the same destination, as {@link TransportUDP}.
+     *
+     * @config
+     */
+    private static final String PAR_BATCH = TransportUDP.PAR_BATCH;
+
+    /**
+     * The linger time of batches, as for {@link TransportUDP}.
+     *
+     * @config
+     */
+    private static final String PAR_LINGER = TransportUDP.PAR_LINGER;
+
+    /**
+     * The next available port to try to bind to, if {@value #PAR_PORT} is
+     * defined.
+     */
+    private static int nextPort = -1;
+    private static int initPort = -1;
+    private static final Object portLock = new Object();
+
+    /**
+     * The most datagrams read from a socket at once, so that a busy node does
+     * not hold back the others.
+     */
+    private static final int MAX_READS = 64;
+
+    private final int threads;
+
+    /** The datagram size and linger time of batches, or 0 if disabled */
+    private final int batchSize;
+    private final long linger;
+
+    /** Packs outgoing packets, if enabled */
+    private DatagramBatcher batcher = null;
+
+    /** The socket of the node, or null for the prototype */
+    private DatagramChannel channel = null;
+
+    /** Receives the packets, once registered with an I/O thread */
+    private Consumer<Packet> handler = null;
+
+    /** Used by {@link #receive()}, if not registered */
+    private ByteBuffer recvBuffer = null;
+    private ArrayDeque<Packet> received = null;
+
+
+    public TransportUDPNIO(String prefix) {
+        super(prefix);
+        synchronized (portLock) {
+            initPort = Configuration.getInt(prefix + "." + PAR_PORT, -1);
+            if (initPort != -1)
+                nextPort = initPort;
+        }
+        threads = Configuration.getInt(prefix + "." + PAR_THREADS, Runtime.getRuntime().availableProcessors());
+        if (threads < 1)
+            throw new IllegalParameterException(prefix + "." + PAR_THREADS, "There should be at least one I/O thread");
+        batchSize = TransportUDP.batchSize(prefix);
+        linger = Configuration.getLong(prefix + "." + PAR_LINGER, 1);
+    }
+
+
+    public void send(Node src, Address dest, int pid, Object payload) {
+        if (sendLocally(dest, pid, payload))
+            return;
+        ByteBuffer data = null;
+        try {
+            if (batcher != null) {
+                batcher.send((AddressNet) dest, pid, payload);
+                return;
+            }
+            data = TransportUDP.encode(pid, payload);
+            if (data != null)
+                send(data, (AddressNet) dest);
+        } catch (IOException e) {
+            // No problem failing to send a packet.
+            // It is most likely due to full networks buffers.
+        } finally {
+            if (data != null)
+                Codecs.release(data);
+        }
+    }
+
+
+    private void send(ByteBuffer data, AddressNet dest) throws IOException {
+        // Sent from a heap buffer: the JDK copies it into a direct buffer
+        // cached per thread, which costs less memory than one per node
+        channel.send(data, new InetSocketAddress(dest.ip, dest.port));
+    }
+
+
+    /**
+     * Blocks until the next packet is received. Only possible as long as the
+     * transport is not registered with the I/O threads by
+     * {@link #listen(Consumer, ThreadFactory)}.
+     */
+    @Override
+    public Packet receive() {
+        if (handler != null)
+            throw new IllegalStateException("Packets are delivered by the I/O threads");
+        try {
+            while (received.isEmpty()) {
+                recvBuffer.clear();
+                InetSocketAddress from = (InetSocketAddress) channel.receive(recvBuffer);
+                recvBuffer.flip();
+                try {
+                    Codecs.decodeDatagram(new AddressNet(from.getAddress(), from.getPort()), recvBuffer, received::add);
+                } catch (ClassNotFoundException | IOException e) {
+                    e.printStackTrace(); // corrupt datagram, drop the rest of it
+                }
+            }
+            return received.poll();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return null;
+    }
+
+
+    /**
+     * Registers the socket with one of the I/O threads, which then pass the
+     * packets it receives to <code>handler</code>. No thread is created
+     * through <code>threads</code>.
+     */
+    @Override
+    public void listen(Consumer<Packet> handler, ThreadFactory threads) {
+        this.handler = handler;
+        listenLocally(handler);
+        try {
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        SelectorLoop loop = SelectorLoop.next(this.threads);
+        loop.execute(() -> {
+            try {
+                channel.register(loop.selector, SelectionKey.OP_READ, (SelectorLoop.Handler) key -> read(key, loop.buffer));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+
+    /**
+     * Reads, decodes and delivers the datagrams available on the socket.
+     * Called by the I/O thread, which passes its direct buffer.
+     */
+    private void read(SelectionKey key, ByteBuffer buffer) {
+        for (int i = 0; i < MAX_READS; i++) {
+            InetSocketAddress from;
+            try {
+                buffer.clear();
+                from = (InetSocketAddress) channel.receive(buffer);
+            } catch (IOException e) {
+                e.printStackTrace();
+                key.cancel();
+                return;
+            }
+            if (from == null)
+                return; // no more datagrams for now
+
+            buffer.flip();
+            try {
+                Codecs.decodeDatagram(new AddressNet(from.getAddress(), from.getPort()), buffer, handler);
+            } catch (ClassNotFoundException | IOException e) {
+                e.printStackTrace(); // corrupt datagram, drop it
+            }
+        }
+    }
+
+
+    public InetAddress getAddress() {
+        if (channel != null)
+            return channel.socket().getLocalAddress();
+        else
+            return null;
+    }
+
+
+    public int getPort() {
+        if (channel != null)
+            return channel.socket().getLocalPort();
+        else
+            return -1;
+    }
+
+
+    private static DatagramChannel bindNextLocalPort() {
+        synchronized (portLock) {
+            while (true) {
+                DatagramChannel channel;
+                try {
+                    channel = DatagramChannel.open();
+                } catch (IOException e) {
+                    return null;
+                }
+                try {
+                    channel.bind(initPort < 0 ? null : new InetSocketAddress(nextPort));
+                } catch (IOException e) {
+                    try {
+                        channel.close();
+                    } catch (IOException e1) {
+                        // nothing more to do
+                    }
+                    if (initPort < 0 || advancePort() == initPort)
+                        return null;
+                    continue;
+                }
+                if (initPort >= 0)
+                    advancePort();
+                return channel;
+            }
+        }
+    }
+
+
+    private static int advancePort() {
+        nextPort++;
+        if (nextPort == 65536)
+            nextPort = 1024;
+        return nextPort;
+    }
+
+
+    @Override
+    public Object clone() {
+        TransportUDPNIO trans = (TransportUDPNIO) super.clone();
+        trans.channel = bindNextLocalPort();
+        trans.recvBuffer = ByteBuffer.allocate(Codecs.BUFFER_SIZE);
+        trans.received = new ArrayDeque<>();
+        if (batchSize > 0)
+            trans.batcher = new DatagramBatcher(batchSize, linger, trans::send);
+        trans.handler = null;
+        return trans;
+    }
+}
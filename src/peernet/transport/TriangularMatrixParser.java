@@ -24,7 +24,7 @@ import peernet.config.*;
 import peernet.core.*;
 
 /**
- * Initializes static singleton {@link RouterNetwork} by reading a trace
+ * Initializes {@link RouterNetwork} by reading a trace
  * file containing the latency distance measured between a set of
  * "virtual" routers. Latency is assumed to be symmetric, so the
  * latency between x and y is equal to the latency to y and x.
@@ -101,11 +101,20 @@ public class TriangularMatrixParser implements Control {
 // ---------------------------------------------------------------------
 
     /**
-     * Initializes static singleton {@link RouterNetwork} by reading a king data set.
+     * Initializes {@link RouterNetwork} by reading a king data set.
      *
      * @return always false
      */
     public boolean execute() {
+        RouterNetwork.load("TriangularMatrixParser " + filename + " " + ratio, this::load);
+        return false;
+    }
+
+
+    /**
+     * Reads the latencies into {@link RouterNetwork}.
+     */
+    private void load() {
         try {
             ObjectInputStream in = null;
             try {
@@ -144,7 +153,6 @@ public class TriangularMatrixParser implements Control {
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage());
         }
-        return false;
     }
 
 }
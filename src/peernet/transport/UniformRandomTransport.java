@@ -7,6 +7,7 @@ import peernet.config.IllegalParameterException;
 import peernet.core.CommonState;
 import peernet.core.Engine;
 import peernet.core.Node;
+import peernet.core.RandomStream;
 
 
 /**
@@ -65,6 +66,15 @@ public class UniformRandomTransport extends Transport {
     }
 
 
+    /**
+     * Returns the configured {@value #PAR_MINDELAY}.
+     */
+    @Override
+    public long minDelay() {
+        return min;
+    }
+
+
     /**
      * Delivers the message with a random delay, that is drawn from the configured
      * interval according to the uniform distribution.
@@ -78,7 +88,7 @@ public class UniformRandomTransport extends Transport {
          }
          */
         // avoid calling nextLong if possible
-        long delay = (range == 1 ? min : min + CommonState.r.nextLong(range));
+        long delay = (range == 1 ? min : min + CommonState.stream(RandomStream.TRANSPORT, src).nextLong(range));
         Address senderAddress = new AddressSim(src);
         //System.err.println("Delivery sceduled for " + dest + " of type " + payload.getClass().getCanonicalName() + " @time " + (CommonState.getTime() + delay));
         addEventIn(delay, senderAddress, ((AddressSim) dest).node, pid,
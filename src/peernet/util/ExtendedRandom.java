@@ -102,4 +102,36 @@ public class ExtendedRandom extends Random {
     public long getLastSeed() {
         return lastSeed;
     }
+
+
+    /**
+     * Returns a new, independent generator of the same kind, whose seed is
+     * derived from the last seed of this generator and <code>key</code>. The
+     * substream thus only depends on the seed and the key, not on the numbers
+     * drawn from this generator so far.
+     *
+     * @param key identifies the substream
+     */
+    public ExtendedRandom substream(long key) {
+        return new ExtendedRandom(substreamSeed(key));
+    }
+
+
+    /**
+     * Returns the seed of substream <code>key</code>.
+     */
+    protected long substreamSeed(long key) {
+        return mix(lastSeed + mix(key + 0x9E3779B97F4A7C15L));
+    }
+
+
+    /**
+     * The SplitMix64 finalizer, a bijection that scrambles the bits of
+     * <code>z</code>.
+     */
+    protected static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
 }
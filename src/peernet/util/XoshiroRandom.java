@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2003-2005 The BISON Project
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License version 2 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ */
+package peernet.util;
+
+
+/**
+ * A faster {@link ExtendedRandom}, based on the xoshiro256** generator of
+ * Blackman and Vigna, whose state is initialized from the seed with SplitMix64.
+ * Unlike <code>java.util.Random</code>, it keeps its state in plain fields
+ * rather than in an atomic variable, so it must not be shared by threads
+ * without synchronization; it also has a much longer period and better
+ * statistical quality. Select it with:
+ * <pre>
+ *   random peernet.util.XoshiroRandom
+ * </pre>
+ * Note that it draws different sequences than {@link ExtendedRandom} for the
+ * same seed.
+ */
+public class XoshiroRandom extends ExtendedRandom {
+    private static final long serialVersionUID = 1;
+
+    private long s0, s1, s2, s3;
+
+
+    /**
+     * Creates a generator seeded with <code>seed</code>.
+     */
+    public XoshiroRandom(long seed) {
+        super(seed);
+    }
+
+
+    /**
+     * Creates a generator seeded with the current time. Used when the
+     * generator is selected through the configuration, which then sets the
+     * configured seed.
+     */
+    public XoshiroRandom(String prefix) {
+        this(System.currentTimeMillis());
+    }
+
+
+    /**
+     * Sets the seed, expanding it into the 256-bit state with SplitMix64.
+     * Called by the constructor of <code>java.util.Random</code>, before the
+     * fields of this class are initialized, which is why they have no
+     * initializer.
+     */
+    @Override
+    public void setSeed(long seed) {
+        super.setSeed(seed);
+        long z = seed;
+        s0 = mix(z += 0x9E3779B97F4A7C15L);
+        s1 = mix(z += 0x9E3779B97F4A7C15L);
+        s2 = mix(z += 0x9E3779B97F4A7C15L);
+        s3 = mix(z += 0x9E3779B97F4A7C15L);
+    }
+
+
+    @Override
+    public long nextLong() {
+        long result = Long.rotateLeft(s1 * 5, 7) * 9;
+        long t = s1 << 17;
+        s2 ^= s0;
+        s3 ^= s1;
+        s1 ^= s2;
+        s0 ^= s3;
+        s2 ^= t;
+        s3 = Long.rotateLeft(s3, 45);
+        return result;
+    }
+
+
+    /**
+     * All other methods inherited from <code>java.util.Random</code> draw their
+     * bits from here.
+     */
+    @Override
+    protected int next(int bits) {
+        return (int) (nextLong() >>> (64 - bits));
+    }
+
+
+    @Override
+    public int nextInt() {
+        return (int) (nextLong() >>> 32);
+    }
+
+
+    /**
+     * Draws an integer in [0, bound) without division in the common case,
+     * using Lemire's multiply-and-reject method.
+     */
+    @Override
+    public int nextInt(int bound) {
+        if (bound <= 0)
+            throw new IllegalArgumentException("bound must be positive");
+        long m = (nextLong() >>> 32) * bound;
+        long low = m & 0xFFFFFFFFL;
+        if (low < bound) {
+            long threshold = (0x100000000L - bound) % bound;
+            while (low < threshold) {
+                m = (nextLong() >>> 32) * bound;
+                low = m & 0xFFFFFFFFL;
+            }
+        }
+        return (int) (m >>> 32);
+    }
+
+
+    @Override
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+
+    @Override
+    public float nextFloat() {
+        return (nextLong() >>> 40) * 0x1.0p-24f;
+    }
+
+
+    @Override
+    public boolean nextBoolean() {
+        return nextLong() < 0;
+    }
+
+
+    @Override
+    public ExtendedRandom substream(long key) {
+        return new XoshiroRandom(substreamSeed(key));
+    }
+}